@@ -28,6 +28,7 @@ import irssibot.util.log.*;
 
 import java.io.*;
 import java.util.*;
+import java.nio.charset.Charset;
 
 import org.w3c.dom.*;
 import org.xml.sax.*;
@@ -56,6 +57,10 @@ public class ConfigParser {
    * List of modules to load at bot startup
    */
   private Vector initialModules = null;
+  /**
+   * ModuleData objects of configured modules keyed by class name
+   */
+  private Hashtable moduleData = null;
   /**
    * List of server instances
    */
@@ -68,6 +73,14 @@ public class ConfigParser {
    * Module base dir
    */
   private String moduleBaseDir = null;
+  /**
+   * Number of selector threads for connections using the selector engine
+   */
+  private int selectorThreads = 1;
+  /**
+   * Number of shared module executor threads, or 0 for the default.
+   */
+  private int moduleWorkerThreads = 0;
   
   /**
    * Constructs.<P>
@@ -78,6 +91,7 @@ public class ConfigParser {
   public ConfigParser(String configFileName) throws IOException {
     serverInstances = new Vector();
     initialModules = new Vector();
+    moduleData = new Hashtable();
     databases = new ArrayList();
 
     Node node = readConfigFile(configFileName);
@@ -153,6 +167,11 @@ public class ConfigParser {
     while ( child != null ) {
        if ( child.getNodeName().equals("interface") ) {
 	  bindIP = XMLUtil.getNodeAttribute(child, "ip");
+       } else if ( child.getNodeName().equals("engine") ) {
+	selectorThreads = XMLUtil.getNodeIntAttribute(child, "selector-threads");
+	if ( selectorThreads < 1 ) {
+	  throw new IllegalArgumentException("selector-threads must be at least 1");
+	}
        } else if ( child.getNodeName().equals("log") ) {
 	String logClassName = XMLUtil.getNodeAttribute(child, "class");
 	String propertyFile = XMLUtil.getNodeAttribute(child, "property-file");
@@ -208,6 +227,9 @@ public class ConfigParser {
     Hashtable channels = null;
     long interval = 0;
     int maxBytes = 0;
+    String charset = null;
+    String engine = null;
+    String captureDir = null;
 
     network = XMLUtil.getNodeAttribute(node, "network");
 
@@ -236,6 +258,21 @@ public class ConfigParser {
       } else if ( nodeName.equals("output") ) {
 	interval = XMLUtil.getNodeIntAttribute(child, "flush-time-ms");
 	maxBytes = XMLUtil.getNodeIntAttribute(child, "max-output-bytes");
+	charset = XMLUtil.getNodeAttribute(child, "charset");
+	if ( (charset != null) && !Charset.isSupported(charset) ) {
+	  throw new IllegalArgumentException("Unsupported charset: " + charset);
+	}
+      } else if ( nodeName.equals("engine") ) {
+	engine = XMLUtil.getNodeAttribute(child, "type");
+	if ( !ServerInstanceData.ENGINE_THREAD.equals(engine) &&
+	     !ServerInstanceData.ENGINE_SELECTOR.equals(engine) ) {
+	  throw new IllegalArgumentException("Bad engine type: " + engine);
+	}
+      } else if ( nodeName.equals("capture") ) {
+	captureDir = XMLUtil.getNodeAttribute(child, "dir");
+	if ( (captureDir == null) || captureDir.equals("") ) {
+	  throw new MissingValueException("Attribute dir mandatory for capture node");
+	}
       } else if ( nodeName.equals("channel-list") ) {
 	channels = new Hashtable();
 	Node channelNode = child.getFirstChild();
@@ -268,7 +305,8 @@ public class ConfigParser {
     serverInstances.add(new ServerInstanceData(network, userFilePath, nick, 
 					       altNick, realName, ident, 
 					       serverList, channels, 
-					       interval, maxBytes));
+					       interval, maxBytes, charset, engine,
+					       captureDir));
   }
  
   /**
@@ -293,7 +331,13 @@ public class ConfigParser {
 	if ( moduleBaseDir == null ) {
 	  throw new MissingValueException("Attribute base-dir mandatory for node modules");
 	}
-	initialModules = XMLUtil.getListElements(node, "module");
+	if ( XMLUtil.getNodeAttribute(node, "worker-threads") != null ) {
+	  moduleWorkerThreads = XMLUtil.getNodeIntAttribute(node, "worker-threads");
+	  if ( moduleWorkerThreads < 1 ) {
+	    throw new IllegalArgumentException("worker-threads must be at least 1");
+	  }
+	}
+	handleModulesNode(node);
       }
 
       node = node.getNextSibling();
@@ -314,6 +358,63 @@ public class ConfigParser {
     return databases;
   }
 
+  /**
+   * Handles the modules node. Reads module class names and optional
+   * mailbox settings:<P>
+   *
+   * <pre>
+   * <module mailbox-capacity="1000" overflow="drop-oldest" execution="thread">class</module>
+   * </pre>
+   *
+   * @param node the modules node
+   */
+  private void handleModulesNode(Node node) {
+    Node child = node.getFirstChild();
+
+    while ( child != null ) {
+      if ( child.getNodeName().equals("module") ) {
+	String className = XMLUtil.getTextChildValue(child);
+	if ( (className == null) || className.equals("") ) {
+	  throw new MissingValueException("Class name missing for node module");
+	}
+
+	int capacity = ModuleData.DEFAULT_MAILBOX_CAPACITY;
+	if ( XMLUtil.getNodeAttribute(child, "mailbox-capacity") != null ) {
+	  capacity = XMLUtil.getNodeIntAttribute(child, "mailbox-capacity");
+	}
+	String overflow = XMLUtil.getNodeAttribute(child, "overflow");
+	if ( overflow == null ) {
+	  overflow = ModuleData.OVERFLOW_DROP_OLDEST;
+	}
+	String execution = XMLUtil.getNodeAttribute(child, "execution");
+	if ( execution == null ) {
+	  execution = ModuleData.EXECUTION_THREAD;
+	}
+
+	initialModules.add(className);
+	moduleData.put(className, new ModuleData(className, capacity, overflow, execution));
+      }
+
+      child = child.getNextSibling();
+    }
+  }
+
+  /**
+   * Returns the number of shared module executor threads, or 0 if
+   * not configured.<P>
+   */
+  public int getModuleWorkerThreads() {
+    return moduleWorkerThreads;
+  }
+
+  /**
+   * Returns configuration of modules as ModuleData objects keyed by 
+   * class name.<P>
+   */
+  public Hashtable getModuleData() {
+    return moduleData;
+  }
+
   /**
    * Return initial modules list.<P>
    */
@@ -328,6 +429,13 @@ public class ConfigParser {
     return serverInstances;
   }
   
+  /**
+   * Returns the number of selector threads for the selector engine.<P>
+   */
+  public int getSelectorThreads() {
+    return selectorThreads;
+  }
+
   /**
    * Returns logger.<P>
    */
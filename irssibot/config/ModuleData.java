@@ -0,0 +1,158 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.config;
+
+/**
+ * Container class for configuration data for a module (<module>) in
+ * the config file.
+ *
+ */
+public class ModuleData 
+{
+    /**
+     * When the mailbox is full, the oldest queued message is dropped.
+     * This is the default.
+     */
+    public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+    /**
+     * When the mailbox is full, the new message is dropped.
+     */
+    public static final String OVERFLOW_DROP_NEWEST = "drop-newest";
+    /**
+     * When the mailbox is full, the oldest queued message for the same
+     * channel is dropped, or the oldest message if there is none.
+     */
+    public static final String OVERFLOW_COALESCE = "coalesce";
+    /**
+     * When the mailbox is full, the connection delivering the message 
+     * waits until there is room. Stalls the connection while waiting.
+     */
+    public static final String OVERFLOW_BLOCK = "block";
+    /**
+     * The module processes messages in a thread of its own. This is
+     * the default.
+     */
+    public static final String EXECUTION_THREAD = "thread";
+    /**
+     * The module processes messages in the shared module executor.
+     */
+    public static final String EXECUTION_SHARED = "shared";
+    /**
+     * Default mailbox capacity.
+     */
+    public static final int DEFAULT_MAILBOX_CAPACITY = 1000;
+
+    private String className = null;
+    /**
+     * Maximum number of messages waiting for processing.
+     */
+    private int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+    /**
+     * What to do when the mailbox is full; one of the 
+     * <code>OVERFLOW_</code> constants.
+     */
+    private String overflowPolicy = OVERFLOW_DROP_OLDEST;
+    /**
+     * How messages are processed; one of the <code>EXECUTION_</code> 
+     * constants.
+     */
+    private String execution = EXECUTION_THREAD;
+
+    public String getClassName() { return className; }
+    public int getMailboxCapacity() { return mailboxCapacity; }
+    public String getOverflowPolicy() { return overflowPolicy; }
+    public String getExecution() { return execution; }
+
+    /**
+     * Constructs with default settings.<P>
+     *
+     * @param className module class name
+     */
+    public ModuleData(String className)
+    {
+	this.className = className;
+    }
+
+    /**
+     * Constructs.<P>
+     *
+     * @param className module class name
+     * @param mailboxCapacity maximum number of messages waiting
+     * @param overflowPolicy one of the <code>OVERFLOW_</code> constants
+     * @exception IllegalArgumentException if capacity or policy is invalid
+     */
+    public ModuleData(String className, int mailboxCapacity, String overflowPolicy)
+    {
+	this(className, mailboxCapacity, overflowPolicy, EXECUTION_THREAD);
+    }
+
+    /**
+     * Constructs.<P>
+     *
+     * @param className module class name
+     * @param mailboxCapacity maximum number of messages waiting
+     * @param overflowPolicy one of the <code>OVERFLOW_</code> constants
+     * @param execution one of the <code>EXECUTION_</code> constants
+     * @exception IllegalArgumentException if a setting is invalid
+     */
+    public ModuleData(String className, int mailboxCapacity, String overflowPolicy,
+		      String execution)
+    {
+	this.className = className;
+	this.mailboxCapacity = mailboxCapacity;
+	this.overflowPolicy = overflowPolicy;
+	this.execution = execution;
+
+	if( mailboxCapacity < 1 ) {
+	    throw new IllegalArgumentException("mailbox-capacity must be at least 1");
+	}
+	if( !isOverflowPolicy(overflowPolicy) ) {
+	    throw new IllegalArgumentException("Bad overflow policy: " + overflowPolicy);
+	}
+	if( !EXECUTION_THREAD.equals(execution) && !EXECUTION_SHARED.equals(execution) ) {
+	    throw new IllegalArgumentException("Bad execution: " + execution);
+	}
+    }
+
+    /**
+     * Checks if a string is one of the <code>OVERFLOW_</code> constants.<P>
+     */
+    public static boolean isOverflowPolicy(String policy)
+    {
+	return OVERFLOW_DROP_OLDEST.equals(policy) ||
+	    OVERFLOW_DROP_NEWEST.equals(policy) ||
+	    OVERFLOW_COALESCE.equals(policy) ||
+	    OVERFLOW_BLOCK.equals(policy);
+    }
+
+    /**
+     * Returns XML representation of this module configuration to be 
+     * used for storing the config file.<P>
+     *
+     * @return XML as a String
+     */
+    public String getXML()
+    {
+	return "<module mailbox-capacity=\"" + mailboxCapacity + "\"" + 
+	    " overflow=\"" + overflowPolicy + "\"" + 
+	    " execution=\"" + execution + "\">" + className + "</module>";
+    }
+}
@@ -34,6 +34,19 @@ import java.util.Hashtable;
  */
 public class ServerInstanceData 
 {
+    /**
+     * Engine type for a connection running in its own thread with
+     * blocking I/O. This is the default.
+     */
+    public static final String ENGINE_THREAD = "thread";
+    /**
+     * Engine type for a connection driven by a shared 
+     * <code>SelectorEngine</code> with non-blocking I/O.
+     *
+     * @see irssibot.core.SelectorEngine
+     */
+    public static final String ENGINE_SELECTOR = "selector";
+
     private String network = null;
     private String userFilePath = null;
     private String botNick = null;
@@ -53,6 +66,22 @@ public class ServerInstanceData
      * <code>outFlushTime</code> ms time period.
      */
     private int outMaxBytes = 1024;
+    /**
+     * Name of charset for traffic to and from the server, or null for
+     * the platform default.
+     */
+    private String outCharset = null;
+    /**
+     * Connection engine type; one of <code>ENGINE_THREAD</code>, 
+     * <code>ENGINE_SELECTOR</code>.
+     */
+    private String engine = ENGINE_THREAD;
+    /**
+     * Directory to write traffic captures to, or null if not capturing.
+     *
+     * @see irssibot.protocol.TrafficCapture
+     */
+    private String captureDir = null;
 
     public String getNetwork() { return network; }
     public String getUserFilePath() { return userFilePath; }
@@ -64,11 +93,15 @@ public class ServerInstanceData
     public Hashtable getChannels() { return channels; }
     public long getOutFlushTime() { return outFlushTime; }
     public int getOutMaxBytes() { return outMaxBytes; }
+    public String getOutCharset() { return outCharset; }
+    public String getEngine() { return engine; }
+    public String getCaptureDir() { return captureDir; }
  
     public ServerInstanceData(String network, String userFilePath, String botNick, 
 			      String botAltNick, String realName, String ident, 
 			      Vector serverList, Hashtable channels,
-			      long outFlushTime, int outMaxBytes)
+			      long outFlushTime, int outMaxBytes, String outCharset,
+			      String engine, String captureDir)
     {
 	this.network = network;
 	this.userFilePath = userFilePath;
@@ -80,6 +113,11 @@ public class ServerInstanceData
 	this.channels = channels;
 	this.outFlushTime = outFlushTime;
 	this.outMaxBytes = outMaxBytes;
+	this.outCharset = outCharset;
+	if( engine != null ) {
+	    this.engine = engine;
+	}
+	this.captureDir = captureDir;
     }
 
     public void setBotNick(String nick) {
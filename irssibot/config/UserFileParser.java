@@ -32,8 +32,16 @@ import java.util.Vector;
 import org.w3c.dom.*;
 import org.apache.xerces.parsers.DOMParser;
 
+/* XML (sax) parser support */
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+import org.apache.xerces.parsers.SAXParser;
+
 /**
- * tools for parsing an user file
+ * tools for parsing an user file. By default the file is parsed as a 
+ * stream, creating the User objects as their elements are read; the 
+ * file is never held in memory as a whole. The DOM path reads the 
+ * whole document first.
  *
  * @author Matti Dahlbom
  */
@@ -42,26 +50,66 @@ public class UserFileParser
     private String userFilePath = null;
     private Document document = null;
     private Vector users = null;
+    /**
+     * Indicates whether to parse as a stream instead of building a DOM
+     */
+    private boolean streaming = true;
+    /**
+     * Indicates whether the user file was read
+     */
+    private boolean fileRead = false;
+    /**
+     * Number of journal entries replayed by parse()
+     */
+    private int journalEntries = 0;
 
     public UserFileParser(String userFilePath)
+    {
+	this(userFilePath, true);
+    }
+
+    /**
+     * @param userFilePath path of the user file
+     * @param streaming true to parse as a stream, false to build a DOM
+     */
+    public UserFileParser(String userFilePath, boolean streaming)
     {
 	this.userFilePath = userFilePath;
+	this.streaming = streaming;
 	users = new Vector();
 
-	readUserFile();
+	if( !streaming ) {
+	    readUserFile();
+	}
     }
 
     /**
-     * invoke recursive parsing
+     * invoke recursive parsing, then replay the journal of changes made
+     * after the file was written.
+     *
+     * @return true if the file or journal was read
+     * @see irssibot.user.UserJournal
      */
     public boolean parse()
     {
-	if( document != null ) {
+	if( streaming ) {
+	    fileRead = streamUserFile();
+	} else if( document != null ) {
 	    recursiveParse(document);
-	    return true;
-	} else {
-	    return false;
+	    fileRead = true;
 	}
+	journalEntries = UserJournal.replay(userFilePath, users);
+
+	return fileRead || (journalEntries > 0);
+    }
+
+    /**
+     * get number of journal entries replayed by parse()
+     * @return number of entries
+     */
+    public int getJournalEntries()
+    {
+	return journalEntries;
     }
 
     /**
@@ -94,6 +142,181 @@ public class UserFileParser
 	return ret;
     }
 
+    /**
+     * parse the XML user file from disk as a stream, adding users as 
+     * their <user> elements end.
+     * @return true if successful
+     */
+    private boolean streamUserFile()
+    {
+	try {
+	    SAXParser parser = new SAXParser();
+	    parser.setContentHandler(new UserFileHandler());
+	    parser.parse(userFilePath);
+	} catch( Exception e ) {
+	    Log.debug(this, "Caught exception: "+e.getMessage());
+	    /* as with the DOM path, a broken file yields no users */
+	    users.clear();
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Handles SAX events of a user file. Accepts the same documents as 
+     * the DOM path: <user> elements at any depth, with <channel> and 
+     * <hostmasks> as direct children and <mask> elements as direct 
+     * children of <hostmasks>. Element and attribute names are case 
+     * insensitive.
+     */
+    private class UserFileHandler extends DefaultHandler
+    {
+	/**
+	 * current element depth
+	 */
+	private int depth = 0;
+	/**
+	 * depth of the current <user> element, or -1 if not in one
+	 */
+	private int userDepth = -1;
+	/**
+	 * the user being read, or null if the <user> had no name
+	 */
+	private User user = null;
+	/**
+	 * depth of the current <hostmasks> element, or -1
+	 */
+	private int hostmasksDepth = -1;
+	/**
+	 * masks of the current <hostmasks> element
+	 */
+	private Vector masks = null;
+	/**
+	 * text of the current <mask> element, or null if not in one
+	 */
+	private StringBuffer maskText = null;
+
+	public void startElement(String uri, String localName, String qName, 
+				 Attributes attrs)
+	{
+	    depth++;
+	    String name = (localName.length() > 0) ? localName : qName;
+
+	    if( userDepth == -1 ) {
+		if( name.equalsIgnoreCase("user") ) {
+		    userDepth = depth;
+		    user = createUser(attrs);
+		}
+	    } else if( depth == (userDepth + 1) ) {
+		if( (user != null) && name.equalsIgnoreCase("channel") ) {
+		    addChannel(attrs);
+		} else if( name.equalsIgnoreCase("hostmasks") ) {
+		    hostmasksDepth = depth;
+		    masks = new Vector();
+		}
+	    } else if( (depth == (hostmasksDepth + 1)) && name.equalsIgnoreCase("mask") ) {
+		maskText = new StringBuffer();
+	    }
+	}
+
+	public void characters(char ch[], int start, int length)
+	{
+	    if( maskText != null ) {
+		maskText.append(ch, start, length);
+	    }
+	}
+
+	public void endElement(String uri, String localName, String qName)
+	{
+	    if( (maskText != null) && (depth == (hostmasksDepth + 1)) ) {
+		if( maskText.length() > 0 ) {
+		    masks.add(maskText.toString());
+		}
+		maskText = null;
+	    } else if( depth == hostmasksDepth ) {
+		if( user != null ) {
+		    user.addHosts(masks);
+		}
+		hostmasksDepth = -1;
+		masks = null;
+	    } else if( depth == userDepth ) {
+		if( user != null ) {
+		    users.add(user);
+		}
+		userDepth = -1;
+		user = null;
+	    }
+	    depth--;
+	}
+
+	/**
+	 * creates the User of a <user> element (see handleUserTag())
+	 * @param attrs attributes of the element
+	 * @return User, or null if the name attribute is missing
+	 */
+	private User createUser(Attributes attrs)
+	{
+	    String userName = null;
+	    String password = null;
+	    String userGlobalFlags = "";
+
+	    for( int i = 0; i < attrs.getLength(); i++ ) {
+		String attrName = attrs.getQName(i);
+		if( attrName.equalsIgnoreCase("global-flags") ) {
+		    userGlobalFlags = attrs.getValue(i);
+		} else if( attrName.equalsIgnoreCase("password") ) {
+		    password = attrs.getValue(i);
+		} else if( attrName.equalsIgnoreCase("name") ) {
+		    userName = attrs.getValue(i);
+		}
+	    }
+
+	    /* name -attribute must exist */
+	    if( (userName == null) || userName.equals("") ) {
+		Log.debug(UserFileParser.this, "UserFileHandler: no name -attribute in <user> tag");
+		return null;
+	    }
+
+	    User ret = new User(userName,userGlobalFlags);
+	    if( password != null ) {
+		/* as handleUserTag(): a password not 8 chars long becomes "" */
+		String unscrambled = User.unscramblePassword(password);
+		ret.setPassword((unscrambled != null) ? unscrambled : "");
+	    }
+
+	    return ret;
+	}
+
+	/**
+	 * adds a <channel> element to the current user (see handleChannelTag())
+	 * @param attrs attributes of the element
+	 */
+	private void addChannel(Attributes attrs)
+	{
+	    String chanName = null;
+	    String chanFlags = null;
+
+	    for( int i = 0; i < attrs.getLength(); i++ ) {
+		String attrName = attrs.getQName(i);
+		if( attrName.equalsIgnoreCase("name") ) {
+		    chanName = attrs.getValue(i);
+		} else if( attrName.equalsIgnoreCase("flags") ) {
+		    chanFlags = attrs.getValue(i);
+		}
+	    }
+
+	    /* name -attribute must exist */
+	    if( (chanName == null) || (chanName.equals("")) ) {
+		Log.debug(UserFileParser.this, "UserFileHandler: no name " + 
+			  "-attribute in <channel> tag");
+	    } else if( !user.addChannelInfo(new UserChannelInfo(chanName,chanFlags)) ) {
+		Log.debug(UserFileParser.this, "UserFileHandler: channel " +
+			  chanName + " already defined for user " +
+			  user.getName());
+	    }
+	}
+    }
+
     /**
      * handle node <user> (represents a set of user settings)
      * a sample <user> tag would look like this:
@@ -28,6 +28,8 @@ import irssibot.util.log.Log;
 import irssibot.user.*;
 
 import java.util.Vector;
+import java.util.Hashtable;
+import java.util.Enumeration;
 
 /**
  * Represents an IRC channel the bot is supposed to be on.<P>
@@ -70,9 +72,14 @@ public class Channel
      */
     private boolean joined = false;
     /** 
-     * Contains Nick objects 
+     * Contains Nick objects keyed by nick in lower case, as given by
+     * the case mapping of the server.
      */
-    private Vector nickList = null;
+    private Hashtable nickIndex = null;
+    /**
+     * Case mapping of the server, used for nick keys.
+     */
+    private CaseMapping caseMapping = CaseMapping.RFC1459;
     /**
      * Contains Strings as banmasks
      */
@@ -108,18 +115,59 @@ public class Channel
      * completed (set true on RPL_ENDOFBANLIST)
      */
     private boolean banlistReady = false; 
+    /**
+     * Indicates whether the MODE #channel reply has been received
+     * (set true on RPL_CHANNELMODEIS)
+     */
+    private boolean modesReady = false;
+    /**
+     * Time the bot last joined the channel, or 0.
+     */
+    private long joinedTime = 0;
+    /**
+     * Time the WHO, ban list and mode queries were sent, or 0.
+     */
+    private long syncStartedTime = 0;
+    /**
+     * Time the replies to the WHO, ban list and mode queries had all 
+     * been received after joining, or 0 if not yet.
+     */
+    private long syncedTime = 0;
 
     public String getChannelName() { return channelName; }
     public String getChannelKey() { return channelKey; }
     public String getChannelTopic() { return channelTopic; }
     public Vector getBanList() { return banList; }
-    public Vector getNickList() { return nickList; }
+
+    /**
+     * Returns a snapshot of the Nick objects on this channel.<P>
+     *
+     * @return Vector of Nick objects
+     */
+    public Vector getNickList() { return new Vector(nickIndex.values()); }
     /**
      * Indicates whether the bot is currently on this channel.
      *
      * @return true is bot is on this channel
      */
     public boolean isJoined() { return joined; }
+    /**
+     * Returns the time (see System.currentTimeMillis()) the bot last
+     * joined the channel, or 0 if never.
+     */
+    public long getJoinedTime() { return joinedTime; }
+    /**
+     * Returns the time (see System.currentTimeMillis()) the nick list, 
+     * ban list and channel modes were fully synced after the bot last 
+     * joined, or 0 if not yet.
+     */
+    public long getSyncedTime() { return syncedTime; }
+    /**
+     * Indicates whether the channel is fully synced after joining.
+     *
+     * @return true if nick list, ban list and modes are known
+     */
+    public boolean isSynced() { return joined && (syncedTime != 0); }
 
     public void setChannelKey(String key) { channelKey = key; }
 
@@ -130,7 +178,10 @@ public class Channel
 	this.channelKey = channelKey;
 	this.serverConnection = serverConnection;
 	this.forcedModes = forcedModes;
-	nickList = new Vector();
+	if( (serverConnection != null) && (serverConnection.getCaseMapping() != null) ) {
+	    caseMapping = serverConnection.getCaseMapping();
+	}
+	nickIndex = new Hashtable();
 	banList = new Vector();
 	banexList = new Vector();
 	invexList = new Vector();
@@ -171,6 +222,28 @@ public class Channel
 	this.serverConnection = serverConnection;
     }
 
+    /**
+     * Sets the case mapping of the server, used for looking up nicks. 
+     * The nick index is rebuilt if the mapping changes.<P>
+     *
+     * @param caseMapping the case mapping
+     */
+    public void setCaseMapping(CaseMapping caseMapping)
+    {
+	if( caseMapping == this.caseMapping ) {
+	    return;
+	}
+
+	Hashtable oldIndex = nickIndex;
+	clearNicks();
+	this.caseMapping = caseMapping;
+
+	Enumeration en = oldIndex.elements();
+	while( en.hasMoreElements() ) {
+	    addNick((Nick)en.nextElement());
+	}
+    }
+
     /**
      * On RPL_CHANNELMODEIS reply compare current channel mode to forced modes. 
      * MODES #channel is invoked on joining the channel to retrieve the channel
@@ -203,6 +276,9 @@ public class Channel
 		}
 	    }
 	}
+
+	modesReady = true;
+	checkSynced();
     }
 
     /**
@@ -271,6 +347,7 @@ public class Channel
 	    serverConnection.getModuleHandler().forwardMessage(joinMessage,
 							       serverConnection);
 	}
+	checkSynced();
     }
 
     /**
@@ -289,8 +366,52 @@ public class Channel
 	    serverConnection.getModuleHandler().forwardMessage(joinMessage,
 							       serverConnection);
 	}
+	checkSynced();
+    }
+
+    /**
+     * Marks the channel synced once the WHO, ban list and mode replies 
+     * have all been received after joining, and lets the connection 
+     * start syncing the next channel.<P>
+     */
+    private void checkSynced()
+    {
+	if( joined && (syncStartedTime != 0) && (syncedTime == 0) &&
+	    nicklistReady && banlistReady && modesReady ) {
+	    syncedTime = System.currentTimeMillis();
+	    Log.info(this, "checkSynced(): " + channelName + " synced " + 
+		     (syncedTime - joinedTime) + " ms after joining");
+	    serverConnection.channelSynced(this);
+	}
     }
 
+    /**
+     * Sends the WHO, ban list and mode queries needed to sync the 
+     * channel after joining. Called by the connection, which limits 
+     * the number of channels syncing at a time.<P>
+     */
+    void startSync()
+    {
+	syncStartedTime = System.currentTimeMillis();
+	nicklistReady = false;
+	banlistReady = false;
+	modesReady = false;
+
+	/* get nick list */
+	invokeWho();
+
+	/* get ban list */
+	invokeBanList();
+
+	/* get channel modes */
+	serverConnection.write("MODE " + channelName + "\n", OutputQueue.PRIORITY_BULK);
+    }
+
+    /**
+     * Returns the time startSync() was last called, or 0.<P>
+     */
+    long getSyncStartedTime() { return syncStartedTime; }
+
     /**
      * Called on JOIN on this channel. If joiner is self (bot), invoke a WHO query 
      * to retrieve nameslist.<P>
@@ -303,20 +424,17 @@ public class Channel
 
 	/* add to nick list */
 	Nick nick = new Nick(host,false,false);
-	nickList.add(nick);
+	addNick(nick);
 
 	/* check if joiner is the bot itself */
 	if( serverConnection.getHost().matches(host) ) {
 	    joined = true;
+	    joinedTime = System.currentTimeMillis();
+	    syncStartedTime = 0;
+	    syncedTime = 0;
 
-	    /* get nick list */
-	    invokeWho();
-
-	    /* get ban list */
-	    invokeBanList();
-
-	    /* get channel modes */
-	    serverConnection.write("MODE " + channelName + "\n");
+	    /* queue WHO, ban list and mode queries */
+	    serverConnection.requestChannelSync(this);
 	} else {
 	    /* forward JOIN message to modules */
 	    serverConnection.getModuleHandler().forwardMessage(message,serverConnection);
@@ -386,7 +504,7 @@ public class Channel
 	    // bot self parted
 	    joined = false;
 	} else {
-	    nickList.remove(findNick(host.getNick()));
+	    removeNick(host.getNick());
 	}
     }	
 
@@ -404,7 +522,7 @@ public class Channel
 	    // bot self was kicked 
 	    joined = false;
 	} else {
-	    nickList.remove(nick);
+	    removeNick(arguments[1]);
 	}
     }
 
@@ -416,7 +534,7 @@ public class Channel
     public void onQuit(IrcMessage message)
     {
 	Host quittingHost = new Host(message.getPrefix());
-	nickList.remove(findNick(quittingHost.getNick()));
+	removeNick(quittingHost.getNick());
     }
 
     /**
@@ -428,8 +546,9 @@ public class Channel
     {
 	Log.debug(this, "doMaintain()");
 
-	for( int i = 0; i < nickList.size(); i++ ) {
-	    Nick nick = (Nick)nickList.elementAt(i);
+	Enumeration en = nickIndex.elements();
+	while( en.hasMoreElements() ) {
+	    Nick nick = (Nick)en.nextElement();
 	    User user = serverConnection.findUser(nick.getHost());
 	    if( user != null ) {
 		if( user.isOp(channelName) && !nick.isOp() ) {
@@ -529,7 +648,7 @@ public class Channel
 		    if( nick.getHost().getNick().equals(serverConnection.getHost().getNick()) ) {
 			doMaintain();
 		    }
-		    Log.debug(this, "mode change: "+nick.getHost().toString()+" +o");
+		    Log.debugf(this, "mode change: {} +o", nick.getHost());
 		}
 		index++;
 		break;
@@ -538,7 +657,7 @@ public class Channel
 		nick = findNick(arguments[index]);
 		if( nick != null) {
 		    nick.setOp(false);
-		    Log.debug(this, "mode change: "+nick.getHost().toString()+" -o");
+		    Log.debugf(this, "mode change: {} -o", nick.getHost());
 		}
 		index++;
 		break;
@@ -547,7 +666,7 @@ public class Channel
 		nick = findNick(arguments[index]);
 		if( nick != null) {
 		    nick.setVoice(true);
-		    Log.debug(this, "mode change: "+nick.getHost().toString()+" +v");
+		    Log.debugf(this, "mode change: {} +v", nick.getHost());
 		}
 		index++;
 		break;
@@ -556,7 +675,7 @@ public class Channel
 		nick = findNick(arguments[index]);
 		if( nick != null) {
 		    nick.setVoice(false);
-		    Log.debug(this, "mode change: "+nick.getHost().toString()+" -v");
+		    Log.debugf(this, "mode change: {} -v", nick.getHost());
 		}
 		index++;
 		break;
@@ -634,8 +753,9 @@ public class Channel
     public void onNick(IrcMessage message)
     {
 	Host host = new Host(message.getPrefix());
-	Nick nick = findNick(host.getNick());  
+	Nick nick = removeNick(host.getNick());  
 	nick.setNick(message.getTrailing()); 
+	addNick(nick);
     }
 
     /**
@@ -661,13 +781,62 @@ public class Channel
      */
     public Nick findNick(String name)
     {
-	for( int i = 0; i < nickList.size(); i++ ) {
-	    Nick nick = (Nick)nickList.elementAt(i);
-	    if( nick.getHost().getNick().equalsIgnoreCase(name) ) {
-		return nick;
+	if( name == null ) {
+	    return null;
+	}
+	return (Nick)nickIndex.get(caseMapping.toLowerCase(name));
+    }
+
+    /**
+     * Adds a nick to nick list, replacing any nick with the same name.
+     *
+     * @param nick the Nick to add
+     */
+    private void addNick(Nick nick)
+    {
+	String key = caseMapping.toLowerCase(nick.getHost().getNick());
+	nickIndex.put(key, nick);
+
+	if( serverConnection != null ) {
+	    serverConnection.getMembershipIndex().add(key, this);
+	}
+    }
+
+    /**
+     * Removes a nick from nick list.
+     *
+     * @param name nickname to remove
+     * @return the removed Nick object or null if not found
+     */
+    private Nick removeNick(String name)
+    {
+	if( name == null ) {
+	    return null;
+	}
+
+	String key = caseMapping.toLowerCase(name);
+	if( serverConnection != null ) {
+	    serverConnection.getMembershipIndex().remove(key, this);
+	}
+
+	return (Nick)nickIndex.remove(key);
+    }
+
+    /**
+     * Removes all nicks from nick list.
+     *
+     */
+    void clearNicks()
+    {
+	if( serverConnection != null ) {
+	    MembershipIndex memberships = serverConnection.getMembershipIndex();
+	    Enumeration en = nickIndex.keys();
+	    while( en.hasMoreElements() ) {
+		memberships.remove((String)en.nextElement(), this);
 	    }
 	}
-	return null;
+
+	nickIndex = new Hashtable();
     }
 
     /**
@@ -676,11 +845,11 @@ public class Channel
     private void invokeWho()
     {
 	/* clear out nick list */
-	nickList.clear();
+	clearNicks();
 
 	/* invoke WHO */
 	Log.debug(this, "sending 'WHO "+channelName+"' to server");
-	serverConnection.write("WHO "+channelName+"\n");
+	serverConnection.write("WHO "+channelName+"\n", OutputQueue.PRIORITY_BULK);
     }
 
     /**
@@ -692,7 +861,7 @@ public class Channel
 	/* clear banlist */
 	banList.clear();
 	Log.debug(this, "sending 'MODE "+channelName+" b' to server");
-	serverConnection.write("MODE "+channelName+" b\n");
+	serverConnection.write("MODE "+channelName+" b\n", OutputQueue.PRIORITY_BULK);
     }
 
     /**
@@ -710,7 +879,7 @@ public class Channel
 	Host host = new Host(name + "!" + hostString);
 
 	Nick nick = new Nick(host, isOp, isVoice);
-	nickList.add(nick);
+	addNick(nick);
     }
 }
 
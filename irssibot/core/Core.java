@@ -26,6 +26,7 @@ import irssibot.config.*;
 import irssibot.util.*;
 import irssibot.util.log.*;
 import irssibot.modules.AbstractModule;
+import irssibot.modules.ModuleExecutor;
 import irssibot.user.*;
 import irssibot.protocol.*;
 
@@ -56,6 +57,10 @@ public class Core
    * Modules base dir.
    */
   private String moduleBaseDir = null;
+  /**
+   * Module configurations (ModuleData) keyed by class name.
+   */
+  private Hashtable moduleData = new Hashtable();
   /**
    * General date format string.
    */
@@ -231,6 +236,7 @@ public class Core
     CommonLog logger = Log.getLogger();
     xml += "  <general>\n";
      xml += "    <interface ip=\"" + bindIP + "\" />\n";
+    xml += "    <engine selector-threads=\"" + SelectorEngine.getPoolSize() + "\" />\n";
     xml += "    <log class=\"" + logger.getClass().getName() + "\"\n" + 
       "         property-file=\"" + logger.getPropertyFilePath() + "\"\n" + 
       "         date-format=\"" + Log.getDateFormatString() + "\" />\n";
@@ -238,11 +244,17 @@ public class Core
 
     // construct XML for module list 
     AbstractModule modules[] = moduleHandler.getModuleTable();
-    xml += "  <modules base-dir=\"" + moduleBaseDir + "\">\n";
+    xml += "  <modules base-dir=\"" + moduleBaseDir + "\"" + 
+      " worker-threads=\"" + ModuleExecutor.getPoolSize() + "\">\n";
 
     for ( int i = 0; i < modules.length; i++ ) {
       String name = modules[i].getClass().getName();
-      xml += "    <module>" + name + "</module>\n";
+      ModuleData data = (ModuleData)moduleData.get(name);
+      if ( data != null ) {
+	xml += "    " + data.getXML() + "\n";
+      } else {
+	xml += "    <module>" + name + "</module>\n";
+      }
     }
 
     xml += "  </modules>\n\n";
@@ -316,6 +328,13 @@ public class Core
 			e.getClass().getName() + ": " + e.getMessage());
     } 
 
+    // apply configured mailbox settings 
+    ModuleData data = (ModuleData)moduleData.get(className);
+    if ( data != null ) {
+      loadedModule.setMailbox(data.getMailboxCapacity(), data.getOverflowPolicy());
+      loadedModule.setSharedExecution(ModuleData.EXECUTION_SHARED.equals(data.getExecution()));
+    }
+
     // add to module handling 
     try {
       if ( moduleHandler.addModule(className,loadedModule) )
@@ -344,6 +363,10 @@ public class Core
       for( int i = 0; i < modules.length; i++ ) {
 	String msg = modules[i].getModuleInfo()+" ("+modules[i].getClass().getName()+")";
 	caller.write("PRIVMSG "+source+" :  "+msg+"\n");
+	String execution = modules[i].isSharedExecution() ? 
+	  "shared (" + ModuleExecutor.getDescription() + ")" : "thread";
+	caller.write("PRIVMSG "+source+" :    "+modules[i].getMailbox()+
+		     ", execution "+execution+"\n");
       }
     } else {
       caller.write("PRIVMSG "+source+" :No modules loaded.\n");
@@ -352,6 +375,129 @@ public class Core
     return null;
   }
 
+  /**
+   * Lists pending tasks of the scheduler, at most 10 of them.<P>
+   *
+   * @param params array of String parameters
+   * @param caller calling server instance
+   * @param source nick or channel where call originated from
+   */
+  private String listScheduledTasks(String params[],ServerConnection caller,String source) {
+    if ( params != null )
+      return new String("listScheduledTasks(): incorrect number of arguments");
+
+    ScheduledTask tasks[] = Scheduler.getPendingTasks();
+    caller.write("PRIVMSG "+source+" :"+tasks.length+" scheduled tasks pending\n");
+    for( int i = 0; (i < tasks.length) && (i < 10); i++ ) {
+      caller.write("PRIVMSG "+source+" :  "+tasks[i]+"\n");
+    }
+    if( tasks.length > 10 ) {
+      caller.write("PRIVMSG "+source+" :  ..\n");
+    }
+
+    return null;
+  }
+
+  /**
+   * Shows heap and garbage collection figures, and unloaded modules 
+   * not yet garbage collected.<P>
+   *
+   * @param params array of String parameters
+   * @param caller calling server instance
+   * @param source nick or channel where call originated from
+   */
+  private String memory(String params[],ServerConnection caller,String source) {
+    if ( params != null )
+      return new String("memory(): incorrect number of arguments");
+
+    caller.write("PRIVMSG "+source+" :"+MemoryInfo.getHeapSummary()+"\n");
+    caller.write("PRIVMSG "+source+" :gc "+MemoryInfo.getGcSummary()+"\n");
+
+    String unreclaimed[] = moduleHandler.getUnreclaimedModules();
+    for( int i = 0; i < unreclaimed.length; i++ ) {
+      caller.write("PRIVMSG "+source+" :not yet collected: "+unreclaimed[i]+"\n");
+    }
+
+    return null;
+  }
+
+  /**
+   * Shows or sets log levels. Without parameters lists the global debug
+   * level and the levels set per source. With one parameter sets the 
+   * global debug level. With two parameters sets the level of a source 
+   * (class or package name, or "server" for server messages); level 
+   * "default" removes the level set for the source.<P>
+   *
+   * @param params array of String parameters
+   * @param caller calling server instance
+   * @param source nick or channel where call originated from
+   */
+  private String logLevel(String params[],ServerConnection caller,String source) {
+    if ( (params != null) && (params.length > 2) )
+      return new String("logLevel(): incorrect number of arguments");
+
+    try {
+      if ( params == null ) {
+	caller.write("PRIVMSG "+source+" :debug level "+Log.getDebugLevel()+"\n");
+	Hashtable levels = Log.getSourceLevels();
+	Enumeration e = levels.keys();
+	while ( e.hasMoreElements() ) {
+	  String name = (String)e.nextElement();
+	  caller.write("PRIVMSG "+source+" :  "+name+" "+levels.get(name)+"\n");
+	}
+      } else if ( params.length == 1 ) {
+	Log.setDebugLevel(Integer.parseInt(params[0].trim()));
+      } else if ( params[1].trim().equals("default") ) {
+	if ( !Log.removeSourceLevel(params[0].trim()) )
+	  return new String("logLevel(): no level set for " + params[0].trim());
+      } else {
+	Log.setSourceLevel(params[0].trim(), Integer.parseInt(params[1].trim()));
+      }
+    } catch ( NumberFormatException e ) {
+      return new String("logLevel(): bad level");
+    } catch ( IllegalArgumentException e ) {
+      return new String("logLevel(): " + e.getMessage());
+    }
+
+    return null;
+  }
+
+  /**
+   * Starts or stops capturing the traffic of the calling server instance,
+   * or shows the capture file. With "on", captures go to the directory 
+   * set in the config, or to "captures".<P>
+   *
+   * @param params array of String parameters
+   * @param caller calling server instance
+   * @param source nick or channel where call originated from
+   */
+  private String capture(String params[],ServerConnection caller,String source) {
+    if ( (params != null) && (params.length != 1) )
+      return new String("capture(): incorrect number of arguments");
+
+    if ( params != null ) {
+      String arg = params[0].trim();
+      if ( arg.equals("on") ) {
+	String dir = caller.getInstanceData().getCaptureDir();
+	caller.startCapture((dir != null) ? dir : "captures");
+      } else if ( arg.equals("off") ) {
+	caller.stopCapture();
+      } else {
+	return new String("capture(): argument must be on or off");
+      }
+    }
+
+    TrafficCapture capture = caller.getCapture();
+    if ( capture != null ) {
+      caller.write("PRIVMSG "+source+" :capturing to "+capture.getFile()+", "+
+		   capture.getRecordCount()+" records\n");
+    } else {
+      caller.write("PRIVMSG "+source+" :not capturing\n");
+    }
+
+    return null;
+  }
+
   /**
    * Unload a module.<P>
    *
@@ -524,7 +670,7 @@ public class Core
 
 	for( int i = 0; i < serverInstances.size(); i++ ) {
 	    ServerConnection connection = (ServerConnection)serverInstances.elementAt(i);
-	    connection.writeUserFile();
+	    connection.flushUserFile();
 	}
 	
 	/* save module states */
@@ -701,6 +847,14 @@ public class Core
 	    return unloadModule(params,caller,source);
 	} else if( method.equals("listLoadedModules") ) {
 	    return listLoadedModules(params,caller,source);
+	} else if( method.equals("listScheduledTasks") ) {
+	    return listScheduledTasks(params,caller,source);
+	} else if( method.equals("memory") ) {
+	    return memory(params,caller,source);
+	} else if( method.equals("logLevel") ) {
+	    return logLevel(params,caller,source);
+	} else if( method.equals("capture") ) {
+	    return capture(params,caller,source);
 	} else if( method.equals("quit") ) {
 	    return quit(params,caller,source);
 	} else if( method.equals("save") ) { 
@@ -748,6 +902,10 @@ public class Core
 
     // get module base dir make sure it is not in classpath
     moduleBaseDir = parser.getModuleBaseDir();
+    moduleData = parser.getModuleData();
+    if ( parser.getModuleWorkerThreads() > 0 ) {
+      ModuleExecutor.setPoolSize(parser.getModuleWorkerThreads());
+    }
     if ( moduleBaseDir.endsWith(File.separator) ) {
       moduleBaseDir = moduleBaseDir.substring(0, moduleBaseDir.length() - 1);
     }
@@ -769,7 +927,14 @@ public class Core
       }
     }
 
+    // start the scheduler before any module code runs
+    Scheduler.start();
+
+    // launch module handler before any server can send messages to it
+    moduleHandler = new ModuleHandler(this);
+
     // launch server instances 
+    SelectorEngine.setPoolSize(parser.getSelectorThreads());
     Vector instanceData = parser.getInstanceData();
     for ( int i = 0; i < instanceData.size(); i++ ) {
       Log.debug(this, "launch(): launching server instance #" + i);
@@ -777,12 +942,11 @@ public class Core
 	(ServerInstanceData)instanceData.elementAt(i);
       ServerConnection connection = 
 	new ServerConnection(instance, this);
-      connection.start();
+      connection.launch();
       serverInstances.add(connection);
     }
 
-    // load initial modules from config file. launch module handler 
-    moduleHandler = new ModuleHandler(this);
+    // load initial modules from config file 
     Vector initialModules = parser.getInitialModules();
     if( initialModules != null ) {
       for( int i = 0; i < initialModules.size(); i++ ) {
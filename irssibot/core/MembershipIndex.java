@@ -0,0 +1,111 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.core;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Maps nicks to the channels they are on, for one server connection. 
+ * Maintained by <code>Channel</code> as nicks are added to and removed 
+ * from its nick list, so that QUIT and NICK only need to visit the 
+ * channels the nick is actually on.<P>
+ *
+ * Nicks are given as keys already mapped to lower case with the 
+ * server's case mapping.<P>
+ */
+class MembershipIndex
+{
+    /**
+     * Vectors of Channel objects keyed by nick.
+     */
+    private Hashtable memberships = new Hashtable();
+
+    /**
+     * Records a nick being on a channel.<P>
+     *
+     * @param key nick in lower case
+     * @param channel the channel
+     */
+    synchronized void add(String key, Channel channel)
+    {
+	Vector channels = (Vector)memberships.get(key);
+	if( channels == null ) {
+	    channels = new Vector(2);
+	    memberships.put(key, channels);
+	}
+	if( !channels.contains(channel) ) {
+	    channels.add(channel);
+	}
+    }
+
+    /**
+     * Records a nick having left a channel.<P>
+     *
+     * @param key nick in lower case
+     * @param channel the channel
+     */
+    synchronized void remove(String key, Channel channel)
+    {
+	Vector channels = (Vector)memberships.get(key);
+	if( channels != null ) {
+	    channels.remove(channel);
+	    if( channels.isEmpty() ) {
+		memberships.remove(key);
+	    }
+	}
+    }
+
+    /**
+     * Returns the channels a nick is on. The returned array is a 
+     * snapshot and may be used while channels are updated.<P>
+     *
+     * @param key nick in lower case
+     * @return channels, empty if none
+     */
+    synchronized Channel[] getChannels(String key)
+    {
+	Vector channels = (Vector)memberships.get(key);
+	if( channels == null ) {
+	    return new Channel[0];
+	}
+
+	Channel list[] = new Channel[channels.size()];
+	channels.copyInto(list);
+	return list;
+    }
+
+    /**
+     * Removes all memberships.<P>
+     */
+    synchronized void clear()
+    {
+	memberships.clear();
+    }
+
+    /**
+     * Returns the number of nicks in the index.<P>
+     */
+    synchronized int size()
+    {
+	return memberships.size();
+    }
+}
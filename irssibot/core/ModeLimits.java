@@ -0,0 +1,179 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.core;
+
+/**
+ * Channel mode capabilities of a server, from the <code>MODES</code>, 
+ * <code>PREFIX</code> and <code>CHANMODES</code> tokens of RPL_ISUPPORT 
+ * (005). Used by the output queue to pack queued mode changes into as 
+ * few MODE lines as the server accepts. Servers that do not send the 
+ * tokens get the RFC 2811 defaults: 3 modes per line, prefixes 
+ * <code>ov</code> and list modes <code>beI</code>.<P>
+ *
+ * @see OutputQueue#pushMode(ModeQueueElement)
+ */
+class ModeLimits 
+{
+    /**
+     * Limits used until the server tells otherwise.
+     */
+    static final ModeLimits DEFAULT = new ModeLimits(null, null, null);
+    /**
+     * Number of modes per line if <code>MODES</code> is given without
+     * a value, meaning no limit. Line length still limits the count.
+     */
+    private static final int unlimitedModes = 100;
+
+    /**
+     * Maximum number of modes with a parameter per MODE line.
+     */
+    private int maxModes = 3;
+    /**
+     * Modes giving nick prefixes (op, voice..).
+     */
+    private String prefixModes = "ov";
+    /**
+     * CHANMODES type A: list modes, always with a parameter.
+     */
+    private String listModes = "beI";
+    /**
+     * CHANMODES type B: always with a parameter.
+     */
+    private String parameterModes = "k";
+    /**
+     * CHANMODES type C: with a parameter only when set.
+     */
+    private String setParameterModes = "l";
+    /**
+     * CHANMODES type D: never with a parameter.
+     */
+    private String flagModes = "imnpst";
+
+    /**
+     * Constructs from ISUPPORT token values. Null values keep the
+     * defaults.<P>
+     *
+     * @param modes value of <code>MODES</code>
+     * @param prefix value of <code>PREFIX</code>, for example <code>(ov)@+</code>
+     * @param chanModes value of <code>CHANMODES</code>, for example 
+     * <code>beI,k,l,imnpst</code>
+     */
+    ModeLimits(String modes, String prefix, String chanModes)
+    {
+	if ( modes != null ) {
+	    if ( modes.equals("") ) {
+		maxModes = unlimitedModes;
+	    } else {
+		try {
+		    maxModes = Math.max(1, Integer.parseInt(modes));
+		} catch ( NumberFormatException e ) {
+		    // keep default
+		}
+	    }
+	}
+
+	if ( prefix != null ) {
+	    int end = prefix.indexOf(')');
+	    if ( prefix.startsWith("(") && (end != -1) ) {
+		prefixModes = prefix.substring(1, end);
+	    } else if ( prefix.equals("") ) {
+		prefixModes = "";
+	    }
+	}
+
+	if ( chanModes != null ) {
+	    String types[] = { "", "", "", "" };
+	    int start = 0;
+	    for ( int i = 0; i < types.length; i++ ) {
+		int end = chanModes.indexOf(',', start);
+		if ( end == -1 ) {
+		    types[i] = chanModes.substring(start);
+		    break;
+		}
+		types[i] = chanModes.substring(start, end);
+		start = end + 1;
+	    }
+	    listModes = types[0];
+	    parameterModes = types[1];
+	    setParameterModes = types[2];
+	    flagModes = types[3];
+	}
+    }
+
+    /**
+     * Returns the maximum number of modes with a parameter per line.<P>
+     */
+    int getMaxModes() 
+    {
+	return maxModes;
+    }
+
+    /**
+     * Checks if the server knows a channel mode.<P>
+     *
+     * @param mode mode character
+     */
+    boolean isSupported(char mode)
+    {
+	return (prefixModes.indexOf(mode) != -1) || 
+	    (listModes.indexOf(mode) != -1) ||
+	    (parameterModes.indexOf(mode) != -1) ||
+	    (setParameterModes.indexOf(mode) != -1) ||
+	    (flagModes.indexOf(mode) != -1);
+    }
+
+    /**
+     * Checks if a mode change takes a parameter.<P>
+     *
+     * @param mode mode character
+     * @param adding true for +, false for -
+     */
+    boolean takesParameter(char mode, boolean adding)
+    {
+	if ( (prefixModes.indexOf(mode) != -1) || 
+	     (listModes.indexOf(mode) != -1) ||
+	     (parameterModes.indexOf(mode) != -1) ) {
+	    return true;
+	}
+
+	return adding && (setParameterModes.indexOf(mode) != -1);
+    }
+
+    /**
+     * Checks if a mode holds one value, so that a later change replaces 
+     * an earlier one instead of applying to another target.<P>
+     *
+     * @param mode mode character
+     */
+    boolean isSingleValued(char mode)
+    {
+	return (parameterModes.indexOf(mode) != -1) || 
+	    (setParameterModes.indexOf(mode) != -1) ||
+	    (flagModes.indexOf(mode) != -1);
+    }
+
+    public String toString()
+    {
+	return "MODES=" + maxModes + " PREFIX=" + prefixModes + 
+	    " CHANMODES=" + listModes + "," + parameterModes + "," + 
+	    setParameterModes + "," + flagModes;
+    }
+}
@@ -52,11 +52,42 @@ public class ModeQueueElement
      * Name of channel to apply this mode on. 
      */
     private String channelName = null;
+    /**
+     * Time the mode was pushed to the output queue.
+     */
+    private long queuedTime = 0;
+
+    /**
+     * Mode characters indexed by the <code>Irc.MODE_</code> constants.
+     */
+    private static final String modeChars = "\0oovvbbkkIIeell";
 
     public int getMode() { return mode; }
     public int getPriority() { return priority; }
     public String getTarget() { return target; }
     public String getChannelName() { return channelName; }
+    long getQueuedTime() { return queuedTime; }
+    void setQueuedTime(long time) { queuedTime = time; }
+
+    /**
+     * Returns the mode character, for example 'o' for <code>MODE_OP</code>
+     * and <code>MODE_DEOP</code>, or 0 if the mode is not known.<P>
+     */
+    public char getModeChar() 
+    {
+	if( (mode < 1) || (mode >= modeChars.length()) ) {
+	    return 0;
+	}
+	return modeChars.charAt(mode);
+    }
+
+    /**
+     * Returns true if the mode is set (+) and false if removed (-).<P>
+     */
+    public boolean isAdding() 
+    {
+	return (mode % 2) == 1;
+    }
 
     public ModeQueueElement(int mode,int priority,String target,String channelName)
     {
@@ -67,8 +98,8 @@ public class ModeQueueElement
     }
 
     /**
-     * Modes with IMMEDIATE priority will be not be queued, but instantly
-     * written to server.
+     * Modes with IMMEDIATE priority will be not be queued, but sent in 
+     * the output queue's express lane ahead of other output.
      */
     public static final int PRIORITY_IMMEDIATE = 999;
     /**
@@ -23,14 +23,19 @@
 package irssibot.core;
 
 import irssibot.modules.AbstractModule;
+import irssibot.modules.Subscription;
 import irssibot.user.*;
+import irssibot.util.Scheduler;
 import irssibot.util.log.Log;
 import irssibot.protocol.*;
 
 import java.util.Hashtable;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.Vector;
 import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 
 /**
  * Manages modules for IrssiBot. the modules can be loaded and added to
@@ -53,6 +58,59 @@ public class ModuleHandler {
   private AbstractModule moduleTable[] = null;
   private int numModules = 0;
   private Core core = null;
+  /**
+   * Modules that have claimed numeric replies, indexed by numeric. 
+   * Entries are replaced, never modified, so they can be read 
+   * without locking.
+   */
+  private AbstractModule numericClaims[][] = null;
+  /**
+   * Modules receiving each named command, indexed by 
+   * <code>opcode - Irc.OP_PRIVMSG</code>. Rebuilt by reconstructTable().
+   */
+  private Dispatch commandDispatch[] = null;
+  /**
+   * Modules receiving commands without a named opcode.
+   */
+  private Dispatch otherDispatch = null;
+  /**
+   * Class loaders of unloaded modules not yet garbage collected.
+   */
+  private Vector unloadedModules = new Vector();
+  /**
+   * Queue the references in unloadedModules are put in when their 
+   * class loader has been collected.
+   */
+  private ReferenceQueue reclaimedLoaders = new ReferenceQueue();
+
+  /**
+   * Modules receiving a command and their subscriptions. Never modified
+   * after construction so that it can be read without locking.
+   */
+  private static class Dispatch {
+    AbstractModule modules[] = null;
+    Subscription subscriptions[] = null;
+
+    Dispatch(int size) {
+      modules = new AbstractModule[size];
+      subscriptions = new Subscription[size];
+    }
+  }
+
+  /**
+   * Weak reference to the class loader of an unloaded module, for 
+   * verifying that the module has been garbage collected.
+   */
+  private static class UnloadedModule extends WeakReference {
+    String className = null;
+    long unloadTime = 0;
+
+    UnloadedModule(String className, ClassLoader loader, ReferenceQueue queue) {
+      super(loader, queue);
+      this.className = className;
+      this.unloadTime = System.currentTimeMillis();
+    }
+  }
 
   /**
    * Constructs.<P>
@@ -61,7 +119,9 @@ public class ModuleHandler {
    */
   public ModuleHandler(Core core) {
     loadedModules = new Hashtable();
+    numericClaims = new AbstractModule[Irc.MAX_NUMERIC + 1][];
     this.core = core;
+    reconstructTable();
   }
 
   /**
@@ -110,8 +170,8 @@ public class ModuleHandler {
   }
 
   /**
-   * Forwards an IrcMessage to all registered modules. All exceptions in the
-   * the module are caught and handled.<P>
+   * Forwards an IrcMessage to all registered modules whose subscription 
+   * accepts it. All exceptions in the the module are caught and handled.<P>
    *
    * @param message the IrcMessage to forward
    * @param caller the ServerConnection the message came from
@@ -120,13 +180,22 @@ public class ModuleHandler {
    */
   public boolean forwardMessage(IrcMessage message, ServerConnection caller) {
     boolean ret = true;
+    int index = message.getOpcode() - Irc.OP_PRIVMSG;
+    Dispatch dispatch = otherDispatch;
+
+    if ( (index >= 0) && (index < commandDispatch.length) ) {
+      dispatch = commandDispatch[index];
+    }
 
-    // add message to all module's message queue 
-    for ( int i = 0; i < numModules; i++ ) {
+    // add message to subscribed modules' message queues
+    for ( int i = 0; i < dispatch.modules.length; i++ ) {
       try {
-	moduleTable[i].addMessage(message, caller);
+	Subscription subscription = dispatch.subscriptions[i];
+	if ( (subscription == null) || subscription.accepts(message) ) {
+	  dispatch.modules[i].addMessage(message, caller);
+	}
       } catch ( Throwable t ) {
-	handleModuleCrash(t, moduleTable[i]);
+	handleModuleCrash(t, dispatch.modules[i]);
 	ret = false;
       }
     }
@@ -134,22 +203,183 @@ public class ModuleHandler {
     return ret;
   } 
 
+  /**
+   * Forwards a numeric reply to the modules that have claimed it. 
+   * All exceptions in the module are caught and handled.<P>
+   *
+   * @param message the numeric reply to forward
+   * @param caller the ServerConnection the message came from
+   * @return true is successful. false indicates an error occurred in a
+   * module and it was removed from module table.
+   * @see #claimNumeric(int,AbstractModule)
+   */
+  public boolean forwardNumeric(IrcMessage message, ServerConnection caller) {
+    AbstractModule claims[] = numericClaims[message.getOpcode()];
+    boolean ret = true;
+
+    if ( claims == null ) {
+      return true;
+    }
+
+    for ( int i = 0; i < claims.length; i++ ) {
+      try {
+	claims[i].addMessage(message, caller);
+      } catch ( Throwable t ) {
+	handleModuleCrash(t, claims[i]);
+	ret = false;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Claims a numeric reply for a module. Numeric replies are not 
+   * forwarded to modules unless claimed. Claims are released when the 
+   * module is removed.<P>
+   *
+   * @param numeric the numeric, for example <code>Irc.OP_RPL_WHOISUSER</code>
+   * @param module the claiming module
+   * @exception IllegalArgumentException if numeric is out of range
+   */
+  synchronized public void claimNumeric(int numeric, AbstractModule module) {
+    if ( !Irc.isNumeric(numeric) ) {
+      throw new IllegalArgumentException("Not a numeric: " + numeric);
+    }
+
+    AbstractModule claims[] = numericClaims[numeric];
+    int count = 0;
+    if ( claims != null ) {
+      count = claims.length;
+      for ( int i = 0; i < count; i++ ) {
+	if ( claims[i] == module ) {
+	  return;
+	}
+      }
+    }
+
+    AbstractModule newClaims[] = new AbstractModule[count + 1];
+    if ( claims != null ) {
+      System.arraycopy(claims, 0, newClaims, 0, count);
+    }
+    newClaims[count] = module;
+    numericClaims[numeric] = newClaims;
+  }
+
+  /**
+   * Releases a numeric reply claimed by a module.<P>
+   *
+   * @param numeric the numeric
+   * @param module the claiming module
+   */
+  synchronized public void releaseNumeric(int numeric, AbstractModule module) {
+    if ( !Irc.isNumeric(numeric) ) {
+      return;
+    }
+
+    AbstractModule claims[] = numericClaims[numeric];
+    if ( claims == null ) {
+      return;
+    }
+
+    int count = 0;
+    for ( int i = 0; i < claims.length; i++ ) {
+      if ( claims[i] != module ) {
+	count++;
+      }
+    }
+    if ( count == claims.length ) {
+      return;
+    }
+
+    if ( count == 0 ) {
+      numericClaims[numeric] = null;
+    } else {
+      AbstractModule newClaims[] = new AbstractModule[count];
+      int index = 0;
+      for ( int i = 0; i < claims.length; i++ ) {
+	if ( claims[i] != module ) {
+	  newClaims[index++] = claims[i];
+	}
+      }
+      numericClaims[numeric] = newClaims;
+    }
+  }
+
     /**
      * for optimal access to modules, construct a table representation of
      * the contents of the hash table and maintain the number of 
-     * loaded modules in numModules
+     * loaded modules in numModules. also builds the per-command 
+     * dispatch lists from module subscriptions.
      */
     private void reconstructTable()
     {
-	numModules = loadedModules.size(); 
-	moduleTable = null;
-	moduleTable = new AbstractModule[numModules];
+	AbstractModule table[] = new AbstractModule[loadedModules.size()];
 
 	Enumeration en = loadedModules.elements();
 	int i = 0;
 	while( en.hasMoreElements() ) {
-	    moduleTable[i++] = (AbstractModule)en.nextElement();
+	    table[i++] = (AbstractModule)en.nextElement();
+	}
+
+	/* subscribed[m][c] tells if module m receives command c */
+	int numCommands = Irc.getCommandCount();
+	Subscription subscriptions[] = new Subscription[table.length];
+	boolean subscribed[][] = new boolean[table.length][numCommands];
+	int numOther = 0;
+	for( i = 0; i < table.length; i++ ) {
+	    try {
+		subscriptions[i] = table[i].getSubscription();
+	    } catch( Throwable t ) {
+		Log.error(this, "reconstructTable(): getSubscription() of " + 
+			  table[i].getClass().getName() + " failed, " + 
+			  "forwarding all messages: " + t.getMessage());
+		subscriptions[i] = null;
+	    }
+
+	    if( subscriptions[i] == null ) {
+		for( int c = 0; c < numCommands; c++ ) {
+		    subscribed[i][c] = true;
+		}
+		numOther++;
+	    } else {
+		int opcodes[] = subscriptions[i].getOpcodes();
+		for( int j = 0; j < opcodes.length; j++ ) {
+		    subscribed[i][opcodes[j] - Irc.OP_PRIVMSG] = true;
+		}
+	    }
 	}
+
+	Dispatch newCommandDispatch[] = new Dispatch[numCommands];
+	for( int c = 0; c < numCommands; c++ ) {
+	    int count = 0;
+	    for( i = 0; i < table.length; i++ ) {
+		if( subscribed[i][c] ) {
+		    count++;
+		}
+	    }
+	    newCommandDispatch[c] = new Dispatch(count);
+	    count = 0;
+	    for( i = 0; i < table.length; i++ ) {
+		if( subscribed[i][c] ) {
+		    newCommandDispatch[c].modules[count] = table[i];
+		    newCommandDispatch[c].subscriptions[count++] = subscriptions[i];
+		}
+	    }
+	}
+
+	Dispatch newOtherDispatch = new Dispatch(numOther);
+	numOther = 0;
+	for( i = 0; i < table.length; i++ ) {
+	    if( subscriptions[i] == null ) {
+		newOtherDispatch.modules[numOther++] = table[i];
+	    }
+	}
+
+	commandDispatch = newCommandDispatch;
+	otherDispatch = newOtherDispatch;
+	moduleTable = table;
+	numModules = table.length;
     }
 
     /**
@@ -185,8 +415,8 @@ public class ModuleHandler {
 	    return false;
 	}
 
-	/* module loaded ok. start the consumer thread */
-	module.start();
+	/* module loaded ok. start the consumer thread or shared execution */
+	module.startProcessing();
 
 	reconstructTable();
 
@@ -208,13 +438,28 @@ public class ModuleHandler {
       module = (AbstractModule)loadedModules.get(moduleClassName);
       module.onUnload();
       module.killModule();
+
+      for ( int i = 0; i <= Irc.MAX_NUMERIC; i++ ) {
+	releaseNumeric(i, module);
+      }
       
+      /* drop everything referring to the module so that its class 
+	 loader can be collected in the normal course of GC */
       ClassLoader loader = module.getClass().getClassLoader();
+      if ( loader instanceof ModuleLoader ) {
+	int cancelled = Scheduler.cancelTasks(loader);
+	if ( cancelled > 0 ) {
+	  Log.debug(this, "removeModule(): cancelled " + cancelled + 
+		    " scheduled tasks of " + moduleClassName);
+	}
+	synchronized ( unloadedModules ) {
+	  pollReclaimed();
+	  unloadedModules.add(new UnloadedModule(moduleClassName, loader, reclaimedLoaders));
+	}
+      }
       loader = null;
       module = null;
       
-      System.gc();
-      
       loadedModules.remove(moduleClassName);
       ret = true;
     }
@@ -224,6 +469,46 @@ public class ModuleHandler {
     return ret;
   }
 
+  /**
+   * Returns the unloaded modules whose class loaders have not been 
+   * garbage collected yet, with the time since unloading. Logs the 
+   * ones collected since the last check.<P>
+   *
+   * @return descriptions, e.g. <code>"irssibot.modules.Alko (unloaded 42 s ago)"</code>
+   */
+  public String[] getUnreclaimedModules() {
+    long now = System.currentTimeMillis();
+
+    synchronized ( unloadedModules ) {
+      pollReclaimed();
+
+      String ret[] = new String[unloadedModules.size()];
+      for ( int i = 0; i < ret.length; i++ ) {
+	UnloadedModule unloaded = (UnloadedModule)unloadedModules.elementAt(i);
+	ret[i] = unloaded.className + " (unloaded " + 
+	  ((now - unloaded.unloadTime) / 1000) + " s ago)";
+      }
+
+      return ret;
+    }
+  }
+
+  /**
+   * Logs and forgets the unloaded modules whose class loaders have been
+   * garbage collected. Called with <code>unloadedModules</code> locked.<P>
+   */
+  private void pollReclaimed() {
+    long now = System.currentTimeMillis();
+    UnloadedModule reclaimed = null;
+
+    while ( (reclaimed = (UnloadedModule)reclaimedLoaders.poll()) != null ) {
+      Log.info(this, "pollReclaimed(): " + reclaimed.className + 
+	       " reclaimed within " + ((now - reclaimed.unloadTime) / 1000) + 
+	       " s of unloading");
+      unloadedModules.remove(reclaimed);
+    }
+  }
+
   /**
    * Loads state of a module from disk as a Properties object.<P>
    * 
@@ -27,6 +27,14 @@ import irssibot.protocol.*;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * This class represents a buffered output queue for a server connection.
@@ -37,6 +45,23 @@ import java.io.*;
  * but should be accurate enough) and that buffer may not be overflown
  * or else the client is disconnected with 'Excess Flood'.<P>
  *
+ * Output is rate limited with a token bucket holding <code>outMaxBytes</code>
+ * tokens, refilled at <code>outMaxBytes</code> per <code>outFlushTime</code> ms.
+ * Like the server's penalty counting, a line costs its length plus a fixed
+ * per-line penalty. A line longer than the bucket is sent when the bucket 
+ * is full.<P>
+ *
+ * Queued lines are divided into priority classes. Protocol control lines 
+ * (PONG, NICK, JOIN, ...) are always sent first, followed by modes pushed 
+ * with <code>ModeQueueElement.PRIORITY_IMMEDIATE</code>. Modes, replies and 
+ * bulk output share the rest by weighted deficit round robin, and 
+ * within a class, targets (channels and nicks) take turns. A module 
+ * flooding one channel thus delays replies to other channels by at 
+ * most a line.<P>
+ *
+ * Lines sent in one round are encoded into a reusable direct buffer and 
+ * written to the server with a single write.<P>
+ *
  * @author Matti Dahlbom
  * @version $Name:  $ $Revision: 1.1 $
  * @see irssibot.core.ModeQueueElement
@@ -58,19 +83,109 @@ public class OutputQueue extends Thread
      */
     private long lastModeFlushTime = -1;
     /**
-     * Output stream for server connection
+     * When output is held back by the rate limit, wait for at least 
+     * 1/<code>slotsPerInterval</code> of the bucket before sending 
+     * again, so that lines are written several at a time.
+     */
+    private static final int slotsPerInterval = 8;
+    /**
+     * Size of the write buffer. Lines sent in one round that do not fit
+     * are written in several parts.
      */
-    private BufferedOutputStream out = null;
+    private static final int writeBufferSize = 4096;
+    /**
+     * Output channel for server connection
+     */
+    private WritableByteChannel out = null;
+    /**
+     * Encoder for the output charset.
+     */
+    private CharsetEncoder encoder = null;
+    /**
+     * Encoded lines waiting to be written.
+     */
+    private ByteBuffer writeBuffer = null;
+    /**
+     * Number of writes to the server.
+     */
+    private long writeCount = 0;
+    /**
+     * Number of lines written to the server.
+     */
+    private long lineCount = 0;
+    /**
+     * Number of bytes written to the server.
+     */
+    private long byteCount = 0;
     /**
      * A Hashtable containing Vector objects as mode queues. Channel
      * name Strings are used as keys.
      */
     private Hashtable modeQueue = null;
     /**
-     * The actual output queue. The elements are <code>String</code> objects
-     * whose content is irc commands to be sent to the server.
+     * Channel mode capabilities of the server.
+     */
+    private ModeLimits modeLimits = ModeLimits.DEFAULT;
+    /**
+     * Maximum length of a MODE line, excluding the line feed.
+     */
+    private static final int maxLineLength = 510;
+    /**
+     * Protocol control: PONG, NICK, JOIN etc. Always sent first.
+     */
+    public static final int PRIORITY_CONTROL = 0;
+    /**
+     * Express lane for protective modes pushed with 
+     * <code>ModeQueueElement.PRIORITY_IMMEDIATE</code>. Sent right after 
+     * control lines.
+     */
+    public static final int PRIORITY_EXPRESS = 1;
+    /**
+     * Channel management: MODE, KICK, TOPIC, INVITE.
+     */
+    public static final int PRIORITY_MODE = 2;
+    /**
+     * Interactive output: PRIVMSG, NOTICE and anything not classified
+     * otherwise.
+     */
+    public static final int PRIORITY_REPLY = 3;
+    /**
+     * Bulk output such as WHO queries and long listings.
+     */
+    public static final int PRIORITY_BULK = 4;
+    /**
+     * Names of the priority classes for statistics.
+     */
+    private static final String classNames[] = 
+    { "control", "express", "mode", "reply", "bulk" };
+    /**
+     * Relative shares of the output rate of the priority classes, 
+     * in the order of the <code>PRIORITY_</code> constants. Control 
+     * and express are strict priority and have no weight.
+     */
+    private static final int classWeights[] = { 0, 0, 4, 4, 1 };
+    /**
+     * Bytes of deficit round robin quantum per unit of weight.
+     */
+    private static final int quantum = 128;
+    /**
+     * Token cost of a line in addition to its length.
      */
-    private Vector outQueue = null;
+    private static final int linePenalty = 32;
+    /**
+     * The output queues, indexed by priority class.
+     */
+    private OutputClass outClasses[] = null;
+    /**
+     * Priority class (other than control) visited next by the 
+     * round robin.
+     */
+    private int roundRobinClass = PRIORITY_MODE;
+    /**
+     * Number of tokens needed to send the next line, or 0 if the
+     * queue is empty.
+     */
+    private int tokensNeeded = 0;
     /**
      * Time interval (in milliseconds) during which max .<code>outMaxBytes</code> bytes
      * are allowed to be sent to the server.
@@ -86,115 +201,447 @@ public class OutputQueue extends Thread
      */
     private Object outLock = new Object();
     /**
-     * Point of time when the current output flush interval started
-     *
-     * @see java.lang.System#currentTimeMillis()
+     * Tokens currently in the bucket. May be negative after 
+     * <code>priorityOutput()</code> or a line longer than the bucket.
      */
-    private long intervalStarted = -1;
+    private double tokens = 0;
     /**
-     * Number of bytes sent during this interval
+     * Time the bucket was last refilled.
+     *
+     * @see java.lang.System#currentTimeMillis()
      */
-    private int intervalBytes = 0;
+    private long lastRefill = -1;
     
     /** 
      * Indicates whether this queueing thread is running or not.
      */
     private boolean alive = true;
+    /**
+     * Selector to wake up when new output is queued, or null if this 
+     * queue is pumped by its own thread.
+     *
+     * @see #service()
+     */
+    private Selector wakeupSelector = null;
     
-    public OutputQueue(BufferedOutputStream out, long outFlushTime, int outMaxBytes)
+    /**
+     * Constructs.<P>
+     *
+     * @param out channel to the server
+     * @param outFlushTime rate limit interval in milliseconds
+     * @param outMaxBytes bytes allowed per interval
+     * @param charset output charset
+     */
+    public OutputQueue(WritableByteChannel out, long outFlushTime, int outMaxBytes,
+		       Charset charset)
     {
 	super("OutputQueue");
 
 	this.out = out;
+	this.encoder = charset.newEncoder();
+	this.encoder.onMalformedInput(CodingErrorAction.REPLACE);
+	this.encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	this.writeBuffer = ByteBuffer.allocateDirect(writeBufferSize);
 	this.outFlushTime = outFlushTime;
 	this.outMaxBytes = outMaxBytes;
 	this.lastModeFlushTime = 0;
+	this.tokens = outMaxBytes;
+	this.lastRefill = System.currentTimeMillis();
 
 	modeQueue = new Hashtable();
 
-	outQueue = new Vector(10, 5);
+	outClasses = new OutputClass[classWeights.length];
+	for ( int i = 0; i < outClasses.length; i++ ) {
+	    outClasses[i] = new OutputClass(classWeights[i] * quantum);
+	}
     }
 
     public String toString() { return moduleName; }
 
     /**
-     * Outputs a line straight to the server past the queue.
+     * Makes this queue wake up the given selector whenever output is 
+     * queued. Used when the queue is pumped by a <code>SelectorEngine</code> 
+     * instead of its own thread.<P>
+     *
+     * @param selector selector to wake up
+     * @see #service()
+     */
+    void setWakeupSelector(Selector selector) {
+	wakeupSelector = selector;
+    }
+
+    /**
+     * Notifies whoever is pumping this queue that there is new data.<P>
+     *
+     * NOTE: must be called while holding <code>outLock</code>.<P>
+     */
+    private void notifyPump() {
+	outLock.notify();
+
+	if ( wakeupSelector != null ) {
+	    wakeupSelector.wakeup();
+	}
+    }
+
+    /**
+     * Outputs a line straight to the server past the queue. The line
+     * is charged to the rate limit, delaying queued output.
      *
      * @param line output line
      */
     public void priorityOutput(String line) {
 	synchronized ( outLock ) {
+	    refill(System.currentTimeMillis());
+	    tokens -= line.length() + linePenalty;
+
 	    try {
-		out.write(line.getBytes());
-		out.flush();
+		encode(line);
+		writeOut();
 	    } catch ( IOException e ) {
 		Log.log(this, e);
+		writeBuffer.clear();
 	    }
 	}
     }
 
     /**
-     * Adds an output line (irc command) to output queue. Lines longer than
-     * <code>outMaxBytes</code> are discarded without notice.
+     * Adds an output line (irc command) to output queue. The priority 
+     * class is chosen by the command.
      *
      * @param line output line
+     * @see #classify(String)
      */
     public void output(String line) {
-	if ( line.length() >= outMaxBytes ) {
-	    return;
+	output(line, classify(line));
+    }
+
+    /**
+     * Adds an output line (irc command) to output queue in the given
+     * priority class.
+     *
+     * @param line output line
+     * @param priority one of the <code>PRIORITY_</code> constants
+     * @exception IllegalArgumentException if priority is out of range
+     */
+    public void output(String line, int priority) {
+	if ( (priority < 0) || (priority >= outClasses.length) ) {
+	    throw new IllegalArgumentException("bad priority: " + priority);
 	}
 
 	synchronized ( outLock ) {
-	    outQueue.add(line);
+	    outClasses[priority].add(getTarget(line), line, System.currentTimeMillis());
 
-	    outLock.notify();
+	    notifyPump();
 	}
     }
 
     /**
-     * Flushes output queue to the server at maximum rate of 
-     * <code>outMaxBytes</code> bytes per <code>outFlushTime</code> 
-     * time interval (ms).<P>
+     * Adds a line queued at the given time. Must be called holding 
+     * <code>outLock</code>.<P>
+     */
+    private void output(String line, int priority, long queuedTime) {
+	outClasses[priority].add(getTarget(line), line, queuedTime);
+	notifyPump();
+    }
+
+    /**
+     * Returns the priority class of an output line by its command.<P>
      *
-     * NOTE: this method is synchronized from outside (in <code>run()</code>)
+     * @param line output line
+     * @return one of the <code>PRIORITY_</code> constants
+     */
+    public static int classify(String line) {
+	int end = line.indexOf(' ');
+	if ( end == -1 ) {
+	    end = line.length();
+	    while ( (end > 0) && (line.charAt(end - 1) <= ' ') ) {
+		end--;
+	    }
+	}
+	String command = line.substring(0, end).toUpperCase();
+
+	switch ( Irc.getOpcode(command) ) {
+	case Irc.OP_PING:
+	case Irc.OP_PONG:
+	case Irc.OP_NICK:
+	case Irc.OP_JOIN:
+	case Irc.OP_PART:
+	case Irc.OP_QUIT:
+	    return PRIORITY_CONTROL;
+	case Irc.OP_MODE:
+	case Irc.OP_KICK:
+	case Irc.OP_TOPIC:
+	case Irc.OP_INVITE:
+	    return PRIORITY_MODE;
+	case Irc.OP_PRIVMSG:
+	case Irc.OP_NOTICE:
+	    return PRIORITY_REPLY;
+	default:
+	    break;
+	}
+
+	if ( command.equals("PASS") || command.equals("USER") ) {
+	    return PRIORITY_CONTROL;
+	}
+	if ( command.equals("WHO") || command.equals("WHOIS") || 
+	     command.equals("NAMES") || command.equals("LIST") ) {
+	    return PRIORITY_BULK;
+	}
+
+	return PRIORITY_REPLY;
+    }
+
+    /**
+     * Returns the lower case target (first argument) of an output line,
+     * or an empty string if it has none.<P>
+     */
+    private static String getTarget(String line) {
+	int start = line.indexOf(' ');
+	if ( start == -1 ) {
+	    return "";
+	}
+	start++;
+
+	int end = start;
+	while ( (end < line.length()) && (line.charAt(end) > ' ') ) {
+	    end++;
+	}
+
+	return line.substring(start, end).toLowerCase();
+    }
+
+    /**
+     * Returns output statistics: number of writes, lines and bytes
+     * written to the server.<P>
+     */
+    public String getStatistics() {
+	synchronized ( outLock ) {
+	    String linesPerWrite = "0";
+	    if ( writeCount > 0 ) {
+		linesPerWrite = String.valueOf((lineCount * 10 / writeCount) / 10.0);
+	    }
+
+	    return writeCount + " writes, " + lineCount + " lines, " + 
+		byteCount + " bytes, " + linesPerWrite + " lines/write";
+	}
+    }
+
+    /**
+     * Returns the number of lines sent in a priority class.<P>
+     *
+     * @param priority one of the <code>PRIORITY_</code> constants
+     */
+    public long getSentLines(int priority) {
+	synchronized ( outLock ) {
+	    return outClasses[priority].sentLines;
+	}
+    }
+
+    /**
+     * Returns the average time in milliseconds the lines of a priority
+     * class spent queued before they were sent. For modes this includes
+     * the time in the mode queue.<P>
+     *
+     * @param priority one of the <code>PRIORITY_</code> constants
+     */
+    public long getAverageQueueTime(int priority) {
+	synchronized ( outLock ) {
+	    OutputClass outClass = outClasses[priority];
+	    if ( outClass.sentLines == 0 ) {
+		return 0;
+	    }
+	    return outClass.totalQueueTime / outClass.sentLines;
+	}
+    }
+
+    /**
+     * Returns the longest time in milliseconds a line of a priority
+     * class spent queued before it was sent.<P>
+     *
+     * @param priority one of the <code>PRIORITY_</code> constants
+     */
+    public long getMaxQueueTime(int priority) {
+	synchronized ( outLock ) {
+	    return outClasses[priority].maxQueueTime;
+	}
+    }
+
+    /**
+     * Returns time-in-queue statistics of the priority classes that
+     * have sent lines.<P>
+     */
+    public String getQueueTimeStatistics() {
+	String ret = "";
+
+	for ( int i = 0; i < outClasses.length; i++ ) {
+	    if ( getSentLines(i) > 0 ) {
+		if ( ret.length() > 0 ) {
+		    ret += ", ";
+		}
+		ret += classNames[i] + " " + getSentLines(i) + " lines avg " + 
+		    getAverageQueueTime(i) + " ms max " + getMaxQueueTime(i) + " ms";
+	    }
+	}
+
+	return ret;
+    }
+
+    /**
+     * Encodes a line to the write buffer, writing the buffer out 
+     * whenever it fills up.<P>
+     *
+     * @param line line to encode
+     * @exception IOException if writing fails
+     */
+    private void encode(String line) throws IOException {
+	CharBuffer chars = CharBuffer.wrap(line);
+
+	encoder.reset();
+	while ( encoder.encode(chars, writeBuffer, true) == CoderResult.OVERFLOW ) {
+	    writeOut();
+	}
+	while ( encoder.flush(writeBuffer) == CoderResult.OVERFLOW ) {
+	    writeOut();
+	}
+
+	lineCount++;
+    }
+
+    /**
+     * Writes the contents of the write buffer to the server.<P>
+     *
+     * @exception IOException if writing fails
+     */
+    private void writeOut() throws IOException {
+	if ( writeBuffer.position() == 0 ) {
+	    return;
+	}
+
+	writeBuffer.flip();
+	try {
+	    while ( writeBuffer.hasRemaining() ) {
+		byteCount += out.write(writeBuffer);
+	    }
+	    writeCount++;
+	} finally {
+	    writeBuffer.clear();
+	}
+    }
+
+    /**
+     * Adds tokens to the bucket for the time passed since last refill.<P>
+     *
+     * @param now current time
+     */
+    private void refill(long now) {
+	if ( now > lastRefill ) {
+	    tokens += (double)(now - lastRefill) * outMaxBytes / outFlushTime;
+	    if ( tokens > outMaxBytes ) {
+		tokens = outMaxBytes;
+	    }
+	}
+	lastRefill = now;
+    }
+
+    /**
+     * Returns the priority class to send the next line from, or -1 if
+     * all queues are empty. Control and express are always first; the 
+     * others take turns by deficit round robin. Calling again without 
+     * sending returns the same class.<P>
+     */
+    private int nextClass() {
+	if ( !outClasses[PRIORITY_CONTROL].isEmpty() ) {
+	    return PRIORITY_CONTROL;
+	}
+	if ( !outClasses[PRIORITY_EXPRESS].isEmpty() ) {
+	    return PRIORITY_EXPRESS;
+	}
+
+	boolean empty = true;
+	for ( int i = PRIORITY_MODE; i < outClasses.length; i++ ) {
+	    if ( !outClasses[i].isEmpty() ) {
+		empty = false;
+	    }
+	}
+	if ( empty ) {
+	    return -1;
+	}
+
+	while ( true ) {
+	    OutputClass outClass = outClasses[roundRobinClass];
+	    if ( outClass.isEmpty() ) {
+		outClass.deficit = 0;
+	    } else if ( outClass.deficit >= outClass.peek().line.length() + linePenalty ) {
+		return roundRobinClass;
+	    } else {
+		outClass.deficit += outClass.quantum;
+	    }
+
+	    roundRobinClass++;
+	    if ( roundRobinClass >= outClasses.length ) {
+		roundRobinClass = PRIORITY_MODE;
+	    }
+	}
+    }
+
+    /**
+     * Sends queued lines to the server as long as there are tokens 
+     * for them. The lines are written with a single write.<P>
+     *
+     * NOTE: this method is synchronized from outside (in <code>service()</code>)
      * to <code>outLock</code>.<P>
      *
      * @return true if there are lines in the queue but we cannot send any more
-     * during this interval. false if the queue is empty.
+     * until the bucket refills. false if the queue is empty.
      * @see #outLock
-     * @see #run()
+     * @see #service()
      */
     private boolean doOutput() {
-	long curTime = System.currentTimeMillis();
+	long now = System.currentTimeMillis();
+	refill(now);
 
-	// see if we may reset the interval
-	if ( (curTime - intervalStarted) > outFlushTime ) {
-	    intervalStarted = curTime;
-	    intervalBytes = 0;
-	}
+	boolean more = false;
+	int priority = -1;
+	tokensNeeded = 0;
 
-	while ( outQueue.size() > 0 ) {
-	    String s = (String)outQueue.elementAt(0);
-	    if ( (s.length() + intervalBytes) < outMaxBytes ) {
-		outQueue.remove(0);
-		intervalBytes += s.length();
-		
-		try {
-		    out.write(s.getBytes());
-		    out.flush();
-		} catch ( IOException e ) {
-		    Log.log(this, e);
+	try {
+	    while ( (priority = nextClass()) != -1 ) {
+		OutputClass outClass = outClasses[priority];
+		QueuedLine queued = outClass.peek();
+		int cost = queued.line.length() + linePenalty;
+
+		// a line longer than the bucket is sent when the bucket is full 
+		if ( (tokens < cost) && (tokens < outMaxBytes) ) {
+		    tokensNeeded = Math.max(Math.min(cost, outMaxBytes), 
+					    outMaxBytes / slotsPerInterval);
+		    more = true;
+		    break;
 		}
-	    } else {
-		return true;
-	    }
-	}	
 
-	return false;
+		outClass.poll();
+		if ( priority >= PRIORITY_MODE ) {
+		    outClass.deficit -= cost;
+		}
+		outClass.countSent(now - queued.queuedTime);
+		tokens -= cost;
+
+		encode(queued.line);
+	    }	
+
+	    writeOut();
+	} catch ( IOException e ) {
+	    Log.log(this, e);
+	    writeBuffer.clear();
+	}
+
+	return more;
     }
 
     /**
-     * Pushes a mode to a channel's mode queue.
+     * Pushes a mode to a channel's mode queue. Modes with priority 
+     * <code>PRIORITY_IMMEDIATE</code> skip the mode queue and are sent 
+     * in the express lane, ahead of all but protocol control lines. 
+     * They replace queued modes of the same kind for the same target.
      *
      * @param element the ModeQueueElement for the new mode
      * @see irssibot.core.ModeQueueElement
@@ -204,6 +651,7 @@ public class OutputQueue extends Thread
 	int index = 0;
 	ModeQueueElement cur = null;
 	synchronized ( outLock ) {
+	    element.setQueuedTime(System.currentTimeMillis());
 	    Vector queue = (Vector)modeQueue.get(element.getChannelName());
 	    
 	    // if no queue, create new one 
@@ -213,137 +661,176 @@ public class OutputQueue extends Thread
 	    }
 	    
 	    if( element.getPriority() == ModeQueueElement.PRIORITY_IMMEDIATE ) {
-		//send this one mode immediately
-		//##TODO##
-	    } else {
-		// insert mode to queue by its priority 
-		for( index = 0; index < queue.size(); index++ ) { 
-		    cur = (ModeQueueElement)queue.elementAt(index);
-		    if( element.getPriority() >= cur.getPriority() ) {
-			break;
-		    }
+		pushImmediateMode(element, queue);
+		if( queue.isEmpty() ) {
+		    modeQueue.remove(element.getChannelName());
+		}
+		return;
+	    }
+
+	    // insert mode to queue by its priority, after modes of equal priority 
+	    for( index = 0; index < queue.size(); index++ ) { 
+		cur = (ModeQueueElement)queue.elementAt(index);
+		if( element.getPriority() > cur.getPriority() ) {
+		    break;
 		}
 	    }
 	    
 	    queue.insertElementAt(element, index);
 
-	    outLock.notify();
+	    notifyPump();
+	}
+    }
+
+    /**
+     * Sends a mode in the express lane. Queued modes with the same mode
+     * character and target are removed so that a later mode flush 
+     * does not undo it.<P>
+     *
+     * NOTE: must be called while holding <code>outLock</code>.<P>
+     *
+     * @param element the mode
+     * @param queue mode queue of the channel
+     */
+    private void pushImmediateMode(ModeQueueElement element, Vector queue)
+    {
+	char mode = element.getModeChar();
+	if( (mode == 0) || !modeLimits.isSupported(mode) ) {
+	    Log.debugf(this, "pushImmediateMode(): mode {} not supported by server, dropped",
+		       element.getMode());
+	    return;
+	}
+
+	for( int i = queue.size() - 1; i >= 0; i-- ) {
+	    ModeQueueElement queued = (ModeQueueElement)queue.elementAt(i);
+	    if( (queued.getModeChar() == mode) && 
+		((element.getTarget() == null) || 
+		 element.getTarget().equalsIgnoreCase(queued.getTarget())) ) {
+		queue.removeElementAt(i);
+	    }
+	}
+
+	String line = "MODE " + element.getChannelName() + " " + 
+	    (element.isAdding() ? "+" : "-") + mode;
+	if( modeLimits.takesParameter(mode, element.isAdding()) ) {
+	    line += " " + ((element.getTarget() != null) ? element.getTarget() : "*");
+	}
+
+	output(line + "\n", PRIORITY_EXPRESS, element.getQueuedTime());
+    }
+
+    /**
+     * Sets the channel mode capabilities of the server, used to pack
+     * queued modes.<P>
+     *
+     * @param limits mode capabilities from RPL_ISUPPORT
+     */
+    void setModeLimits(ModeLimits limits)
+    {
+	synchronized ( outLock ) {
+	    modeLimits = limits;
 	}
     }
 
     /**
-     * Flushes the mode queue to the server.
+     * Flushes the mode queue to the server. Duplicate changes are 
+     * dropped and opposing changes of the same target (+o then -o) 
+     * cancel out; for single valued modes such as +l the last change 
+     * wins. The rest are packed into as few MODE lines as the server's
+     * MODES limit and the line length allow, sets before removals.<P>
      *
      * @param channelName name of channel whose mode queue to push
      * @param queue mode queue for the channel
      */
     private void doModeFlush(String channelName, Vector queue)
     {
-	String opModeList = "";
-	String opTargetList = "";
-	boolean opPolarity = true;
-	int opModes = 0;
-	String banModeList = "";
-	String banTargetList = "";
-	boolean banPolarity = true;
-	int banModes = 0;
+	ModeLimits limits = modeLimits;
+	Vector changes = new Vector(queue.size());
+	Hashtable changesByKey = new Hashtable();
 
-	Log.debug(this, "doModeFlush(): " + channelName + " " + queue.size());
+	Log.debugf(this, "doModeFlush(): {} {}", channelName, queue.size());
 
 	for( int i = 0; i < queue.size(); i++ ) {
 	    ModeQueueElement element = (ModeQueueElement)queue.elementAt(i);
-	    switch( element.getMode() ) {
-	    case Irc.MODE_OP: 
-		if( !opPolarity ) {
-		    opPolarity = true;
-		    opModeList += "+";
-		} else if( opModes == 0 ) {
-		    opModeList = "+";
+	    char mode = element.getModeChar();
+	    if( (mode == 0) || !limits.isSupported(mode) ) {
+		Log.debugf(this, "doModeFlush(): mode {} not supported by server, dropped",
+			   element.getMode());
+		continue;
+	    }
+
+	    boolean singleValued = limits.isSingleValued(mode);
+	    String key = String.valueOf(mode);
+	    if( !singleValued && (element.getTarget() != null) ) {
+		key += " " + element.getTarget().toLowerCase();
+	    }
+
+	    ModeQueueElement previous = (ModeQueueElement)changesByKey.remove(key);
+	    if( previous != null ) {
+		changes.remove(previous);
+		if( !singleValued && (previous.isAdding() != element.isAdding()) ) {
+		    continue;
 		}
-		opModeList += "o";
-		opTargetList += element.getTarget()+" ";
-		opModes++;
-		break;
-	    case Irc.MODE_DEOP: 
-		if( opPolarity ) {
-		    opPolarity = false;
-		    opModeList += "-";
-		} else if( opModes == 0 ) {
-		    opModeList = "-";
+	    }
+	    changes.add(element);
+	    changesByKey.put(key, element);
+	}
+
+	String prefix = "MODE " + channelName + " ";
+	StringBuffer modes = new StringBuffer();
+	StringBuffer parameters = new StringBuffer();
+	int parameterCount = 0;
+	char polarity = 0;
+	long queuedTime = Long.MAX_VALUE;
+
+	for( int pass = 0; pass < 2; pass++ ) {
+	    boolean adding = (pass == 0);
+	    char sign = adding ? '+' : '-';
+
+	    for( int i = 0; i < changes.size(); i++ ) {
+		ModeQueueElement element = (ModeQueueElement)changes.elementAt(i);
+		if( element.isAdding() != adding ) {
+		    continue;
 		}
-		opModeList += "o";
-		opTargetList += element.getTarget()+" ";
-		opModes++;
-		break;
-	    case Irc.MODE_VOICE: 
-		if( !opPolarity ) {
-		    opPolarity = true;
-		    opModeList += "+";
-		} else if( opModes == 0 ) {
-		    opModeList = "+";
+
+		char mode = element.getModeChar();
+		String parameter = null;
+		if( limits.takesParameter(mode, adding) ) {
+		    parameter = element.getTarget();
+		    if( parameter == null ) {
+			parameter = "*";
+		    }
 		}
-		opModeList += "v";
-		opTargetList += element.getTarget()+" ";
-		opModes++;
-		break;
-	    case Irc.MODE_DEVOICE: 
-		if( opPolarity ) {
-		    opPolarity = false;
-		    opModeList += "-";
-		} else if( opModes == 0 ) {
-		    opModeList = "-";
+
+		int length = prefix.length() + modes.length() + parameters.length() + 
+		    ((polarity != sign) ? 2 : 1) + 
+		    ((parameter != null) ? parameter.length() + 1 : 0);
+		if( (modes.length() > 0) && 
+		    (((parameter != null) && (parameterCount == limits.getMaxModes())) ||
+		     (length > maxLineLength)) ) {
+		    output(prefix + modes + parameters + "\n", PRIORITY_MODE, queuedTime);
+		    modes.setLength(0);
+		    parameters.setLength(0);
+		    parameterCount = 0;
+		    polarity = 0;
+		    queuedTime = Long.MAX_VALUE;
 		}
-		opModeList += "v";
-		opTargetList += element.getTarget()+" ";
-		opModes++;
-		break;
-	    case Irc.MODE_BAN: 
-		if( !banPolarity ) {
-		    banPolarity = false;
-		    banModeList += "+";
-		} else if( banModes == 0 ) {
-		    banModeList = "+";
+
+		queuedTime = Math.min(queuedTime, element.getQueuedTime());
+
+		if( polarity != sign ) {
+		    modes.append(sign);
+		    polarity = sign;
 		}
-		banModeList += "b";
-		banTargetList += element.getTarget()+" ";
-		banModes++;
-		break;
-	    case Irc.MODE_UNBAN: 
-		if( banPolarity ) {
-		    banPolarity = false;
-		    banModeList += "-";
-		} else if( banModes == 0 ) {
-		    banModeList = "-";
+		modes.append(mode);
+		if( parameter != null ) {
+		    parameters.append(' ').append(parameter);
+		    parameterCount++;
 		}
-		banModeList += "b";
-		banTargetList += element.getTarget()+" ";
-		banModes++;
-		break;
-	    default:
-		break;
-	    }
-
-	    /* push max 3 modes at a time */
-	    if( opModes == 3 ) {
-		output("MODE "+channelName+" "+opModeList+" "+opTargetList.trim()+"\n");
-		opModes = 0;
-		opPolarity = true;
-		opModeList = "";
-		opTargetList = "";
 	    }
-	    if( banModes == 3 ) {
-		output("MODE "+channelName+" "+banModeList+" "+banTargetList.trim()+"\n");
-		banModes = 0;
-		banPolarity = true;
-		banModeList = "";
-		banTargetList = "";
-	    }
-	}
-	if( opModes > 0 ) {
-	    output("MODE " + channelName + " " + opModeList + " " + opTargetList.trim() + "\n");
 	}
-	if( banModes > 0 ) {
-	    output("MODE " + channelName + " " + banModeList + " " + banTargetList.trim() + "\n");
+	if( modes.length() > 0 ) {
+	    output(prefix + modes + parameters + "\n", PRIORITY_MODE, queuedTime);
 	}
 
 	// empty queue 
@@ -351,65 +838,78 @@ public class OutputQueue extends Thread
     }
     
     /**
-     * After certain interval flushes the mode queue. Pumps the contents of
-     * the output queue to the server at maximum rate of <code>outMaxBytes</code> bytes
-     * per <code>outFlushTime</code> time interval (ms).
+     * Runs one round of queue processing without blocking. After certain 
+     * interval flushes the mode queue. Pumps the contents of the output 
+     * queue to the server as fast as the token bucket allows.<P>
      *
+     * @return number of milliseconds after which this method should be
+     * called again, or -1 if the queues are empty and there is nothing to 
+     * do until new output is queued.
      */
-    public void run()
+    public long service()
     {
 	Enumeration keys = null;
 	String key = null;
-	Vector queue = null;	    
-	
-	Log.debug(this, "run(): starting..");
+	long delay = -1;
 
-	intervalStarted = System.currentTimeMillis();
-	intervalBytes = 0;
+	synchronized ( outLock ) {
+	    // check mode queue
+	    if ( modeQueue.size() > 0 ) {
+		long now = System.currentTimeMillis();
+		if ( (now - lastModeFlushTime) >= modeFlushInterval ) {
+		    lastModeFlushTime = now;
 
-	while ( alive ) {
-	    synchronized ( outLock ) {
-		while ( (outQueue.size() < 1) && 
-			(modeQueue.size() < 1) ) {
-		    try {
-			if ( modeQueue.size() > 0 ) {
-			    outLock.wait(waitPeriod);
-			} else {
-			    outLock.wait();
-			}
-		    } catch ( InterruptedException e ) {
-			if ( !alive ) {
-			    break;
-			}
+		    keys = modeQueue.keys();
+		    while( keys.hasMoreElements() ) {
+			key = (String)keys.nextElement();
+			doModeFlush(key, (Vector)modeQueue.get(key));
+			modeQueue.remove(key);
 		    }
+		} else {
+		    delay = modeFlushInterval - (now - lastModeFlushTime);
 		}
+	    }
 
-		// check mode queue
-		if ( modeQueue.size() > 0 ) {
-		    long now = System.currentTimeMillis();
-		    if ( (now - lastModeFlushTime) >= modeFlushInterval ) {
-			lastModeFlushTime = now;
-
-			keys = modeQueue.keys();
-			while( keys.hasMoreElements() ) {
-			    key = (String)keys.nextElement();
-			    doModeFlush(key, (Vector)modeQueue.get(key));
-			    modeQueue.remove(key);
-			}
-		    } else {
-			continue;
-		    }
+	    // check output queue
+	    if ( doOutput() ) {
+		long sleepTime = (long)Math.ceil((tokensNeeded - tokens) * 
+						 outFlushTime / outMaxBytes);
+		if ( (delay == -1) || (sleepTime < delay) ) {
+		    delay = sleepTime;
 		}
+	    }
+	}
+
+	if ( delay == 0 ) {
+	    // wait(0) would mean forever
+	    delay = 1;
+	}
+
+	return delay;
+    }
 
-		// check output queue
-		if ( doOutput() ) {
-		    long sleepTime = outFlushTime - 
-			(System.currentTimeMillis() - intervalStarted);
-		    try {
-			outLock.wait(sleepTime);
-		    } catch ( InterruptedException e ) {
-			// dont care
+    /**
+     * Thread loop for a queue running in its own thread. Calls 
+     * <code>service()</code> and waits until it needs to be called again.
+     *
+     * @see #service()
+     */
+    public void run()
+    {
+	Log.debug(this, "run(): starting..");
+
+	while ( alive ) {
+	    synchronized ( outLock ) {
+		long delay = service();
+
+		try {
+		    if ( delay < 0 ) {
+			outLock.wait();
+		    } else {
+			outLock.wait(delay);
 		    }
+		} catch ( InterruptedException e ) {
+		    // alive is checked by the loop
 		}
 	    }
 	}
@@ -426,6 +926,115 @@ public class OutputQueue extends Thread
 	alive = false;
 	interrupt();
     }
+
+    /**
+     * A queued line and the time it was queued.
+     */
+    private static class QueuedLine
+    {
+	String line = null;
+	long queuedTime = 0;
+
+	QueuedLine(String line, long queuedTime) {
+	    this.line = line;
+	    this.queuedTime = queuedTime;
+	}
+    }
+
+    /**
+     * Output queue of one priority class. Keeps a FIFO of lines for 
+     * each target and takes lines from the targets in turn.
+     */
+    private static class OutputClass
+    {
+	/**
+	 * Number of lines sent.
+	 */
+	long sentLines = 0;
+	/**
+	 * Sum of the time sent lines spent queued.
+	 */
+	long totalQueueTime = 0;
+	/**
+	 * Longest time a sent line spent queued.
+	 */
+	long maxQueueTime = 0;
+	/**
+	 * Vectors of lines keyed by target.
+	 */
+	private Hashtable targets = new Hashtable();
+	/**
+	 * Targets with queued lines, the one to send from next first.
+	 */
+	private Vector rotation = new Vector();
+	/**
+	 * Deficit round robin quantum.
+	 */
+	int quantum = 0;
+	/**
+	 * Deficit round robin counter.
+	 */
+	int deficit = 0;
+
+	OutputClass(int quantum) {
+	    this.quantum = quantum;
+	}
+
+	boolean isEmpty() {
+	    return rotation.isEmpty();
+	}
+
+	void add(String target, String line, long queuedTime) {
+	    Vector lines = (Vector)targets.get(target);
+	    if ( lines == null ) {
+		lines = new Vector();
+		targets.put(target, lines);
+		rotation.add(target);
+	    }
+	    lines.add(new QueuedLine(line, queuedTime));
+	}
+
+	/**
+	 * Records a sent line.
+	 */
+	void countSent(long queueTime) {
+	    sentLines++;
+	    totalQueueTime += queueTime;
+	    if ( queueTime > maxQueueTime ) {
+		maxQueueTime = queueTime;
+	    }
+	}
+
+	/**
+	 * Returns the next line without removing it, or null.
+	 */
+	QueuedLine peek() {
+	    if ( rotation.isEmpty() ) {
+		return null;
+	    }
+	    Vector lines = (Vector)targets.get(rotation.elementAt(0));
+	    return (QueuedLine)lines.elementAt(0);
+	}
+
+	/**
+	 * Removes and returns the next line, and moves its target to the
+	 * end of the rotation.
+	 */
+	QueuedLine poll() {
+	    if ( rotation.isEmpty() ) {
+		return null;
+	    }
+	    Object target = rotation.remove(0);
+	    Vector lines = (Vector)targets.get(target);
+	    QueuedLine line = (QueuedLine)lines.remove(0);
+	    if ( lines.isEmpty() ) {
+		targets.remove(target);
+	    } else {
+		rotation.add(target);
+	    }
+	    return line;
+	}
+    }
 }
 
 
@@ -0,0 +1,749 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.core;
+
+import irssibot.util.log.Log;
+import irssibot.protocol.LineFramer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A connection engine that drives several server connections on a single
+ * thread using non-blocking I/O and a <code>java.nio.channels.Selector</code>.
+ * Server instances whose <code>&lt;engine type="selector" /&gt;</code> is
+ * set are registered to a small pool of these engines instead of running
+ * a reader thread and an output queue thread each.<P>
+ *
+ * The engine does the connecting, line reading and output queue pumping;
+ * the actual protocol handling is done by the same <code>ServerConnection</code>
+ * methods the threaded engine uses.<P>
+ *
+ * @see irssibot.core.ServerConnection#launch()
+ * @see irssibot.config.ServerInstanceData#ENGINE_SELECTOR
+ */
+public class SelectorEngine extends Thread
+{
+    private static String moduleName = "SelectorEngine";
+
+    /**
+     * Maximum interval (in milliseconds) between servicing the 
+     * connections, for noticing connect timeouts and quits.
+     */
+    private static final long tickInterval = 1000;
+    /**
+     * Delay (in milliseconds) before connecting to the next server after
+     * a failed connection attempt.
+     */
+    private static final long reconnectDelay = 5000;
+    /**
+     * Time (in milliseconds) a connection attempt may take, resolving
+     * the host name included, before it is given up and the next server 
+     * is tried.
+     */
+    private static final long connectTimeout = 30000;
+
+    /**
+     * Resolves server host names, so that a slow name server does not 
+     * hold up the engine threads.
+     */
+    private static ExecutorService resolver = 
+	Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+		    Thread thread = new Thread(task, moduleName + " resolver");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+
+    /**
+     * Number of engine threads to spread connections on.
+     */
+    private static int poolSize = 1;
+    /**
+     * The engine pool. Engines are created on demand.
+     */
+    private static SelectorEngine pool[] = null;
+    /**
+     * Counter for naming engine threads.
+     */
+    private static int engineCount = 0;
+
+    /**
+     * The selector multiplexing all channels of this engine.
+     */
+    private Selector selector = null;
+    /**
+     * Sessions (Session objects) driven by this engine. Accessed only
+     * by the engine thread.
+     */
+    private Vector sessions = null;
+    /**
+     * Connections registered but not yet picked up by the engine thread.
+     */
+    private Vector pendingConnections = null;
+    /**
+     * Number of connections assigned to this engine.
+     */
+    private int numConnections = 0;
+    /**
+     * Set when the engine has run out of connections and exits.
+     */
+    private boolean finished = false;
+
+    /**
+     * Sets the number of engine threads. Must be called before any 
+     * connections are registered.<P>
+     *
+     * @param size number of engine threads
+     * @exception IllegalArgumentException if size is less than 1
+     */
+    public static synchronized void setPoolSize(int size) {
+	if ( size < 1 ) {
+	    throw new IllegalArgumentException("pool size must be at least 1");
+	}
+	poolSize = size;
+    }
+
+    /**
+     * Returns the number of engine threads.<P>
+     */
+    public static synchronized int getPoolSize() {
+	return poolSize;
+    }
+
+    /**
+     * Registers a server connection to the least loaded engine in the 
+     * pool. The engine starts connecting it immediately.<P>
+     *
+     * @param connection connection to register
+     */
+    public static synchronized void register(ServerConnection connection) {
+	if ( (pool == null) || (pool.length != poolSize) ) {
+	    SelectorEngine old[] = pool;
+	    pool = new SelectorEngine[poolSize];
+	    if ( old != null ) {
+		System.arraycopy(old, 0, pool, 0, Math.min(old.length, poolSize));
+	    }
+	}
+
+	int index = -1;
+	for ( int i = 0; i < pool.length; i++ ) {
+	    if ( (pool[i] == null) || pool[i].isFinished() ) {
+		pool[i] = createEngine();
+	    }
+	    if ( (index == -1) || 
+		 (pool[i].numConnections < pool[index].numConnections) ) {
+		index = i;
+	    }
+	}
+
+	if ( !pool[index].add(connection) ) {
+	    // engine finished between the check and the add
+	    pool[index] = createEngine();
+	    pool[index].add(connection);
+	}
+    }
+
+    /**
+     * Creates a new engine. The engine thread is started when the first
+     * connection is added.<P>
+     *
+     * @return the new engine
+     * @exception IllegalStateException if a selector cannot be opened
+     */
+    private static SelectorEngine createEngine() {
+	SelectorEngine engine = null;
+	try {
+	    engine = new SelectorEngine();
+	} catch ( IOException e ) {
+	    Log.log(moduleName, e);
+	    throw new IllegalStateException("could not open selector: " + 
+					    e.getMessage());
+	}
+
+	return engine;
+    }
+
+    /**
+     * Constructs.<P>
+     *
+     * @exception IOException if the selector cannot be opened
+     */
+    private SelectorEngine() throws IOException
+    {
+	super("SelectorEngine-" + (engineCount++));
+
+	selector = Selector.open();
+	sessions = new Vector();
+	pendingConnections = new Vector();
+    }
+
+    public String toString() { return moduleName; }
+
+    /**
+     * Hands a connection to the engine thread.<P>
+     *
+     * @param connection connection to add
+     * @return false if this engine has already finished
+     */
+    private boolean add(ServerConnection connection) {
+	synchronized ( pendingConnections ) {
+	    if ( finished ) {
+		return false;
+	    }
+	    pendingConnections.add(connection);
+	    numConnections++;
+
+	    if ( getState() == Thread.State.NEW ) {
+		start();
+	    }
+	}
+	selector.wakeup();
+
+	return true;
+    }
+
+    /**
+     * Returns true if the engine thread has run out of connections
+     * and exited or is exiting.
+     */
+    private boolean isFinished() {
+	synchronized ( pendingConnections ) {
+	    return finished;
+	}
+    }
+
+    /**
+     * Picks up newly registered connections.
+     *
+     */
+    private void addPendingConnections() {
+	synchronized ( pendingConnections ) {
+	    for ( int i = 0; i < pendingConnections.size(); i++ ) {
+		ServerConnection connection = 
+		    (ServerConnection)pendingConnections.elementAt(i);
+		Log.debug(this, "adding server instance " + 
+			  connection.getInstanceData().getNetwork());
+		sessions.add(new Session(connection));
+	    }
+	    pendingConnections.clear();
+	}
+    }
+
+    /**
+     * Engine loop. Runs until all connections have finished.
+     *
+     */
+    public void run()
+    {
+	Log.debug(this, "run(): starting..");
+
+	while ( true ) {
+	    addPendingConnections();
+
+	    synchronized ( pendingConnections ) {
+		if ( sessions.isEmpty() && pendingConnections.isEmpty() ) {
+		    // mark finished while holding the lock so register() 
+		    // cannot hand us more work
+		    finished = true;
+		    break;
+		}
+	    }
+
+	    long now = System.currentTimeMillis();
+	    long timeout = tickInterval;
+	    for ( int i = sessions.size() - 1; i >= 0; i-- ) {
+		Session session = (Session)sessions.elementAt(i);
+		long delay = session.service(now);
+		if ( delay < 0 ) {
+		    // finished for good
+		    sessions.removeElementAt(i);
+		    synchronized ( pendingConnections ) {
+			numConnections--;
+		    }
+		} else if ( delay < timeout ) {
+		    timeout = delay;
+		}
+	    }
+
+	    try {
+		selector.select(Math.max(timeout, 1));
+	    } catch ( IOException e ) {
+		Log.log(this, e);
+	    }
+
+	    Iterator iter = selector.selectedKeys().iterator();
+	    while ( iter.hasNext() ) {
+		SelectionKey key = (SelectionKey)iter.next();
+		iter.remove();
+
+		Session session = (Session)key.attachment();
+		if ( key.isValid() ) {
+		    session.handleKey(key);
+		}
+	    }
+	}
+
+	try {
+	    selector.close();
+	} catch ( IOException e ) {
+	    Log.log(this, e);
+	}
+
+	Log.debug(this, "run(): engine thread '" + getName() + "' exiting..");
+    }
+
+    /**
+     * Non-blocking I/O state for a single server connection.
+     *
+     */
+    private class Session
+    {
+	private ServerConnection connection = null;
+	private SocketChannel channel = null;
+	private SelectionKey key = null;
+	private ServerAddress address = null;
+	private ChannelOutputBuffer out = null;
+	private LineFramer framer = null;
+	/**
+	 * Time when the next connection attempt may be made.
+	 */
+	private long connectTime = 0;
+	/**
+	 * Time when the pending connection attempt times out.
+	 */
+	private long connectDeadline = 0;
+	/**
+	 * Server address being resolved by the resolver, or null.
+	 */
+	private Future resolving = null;
+
+	Session(ServerConnection connection)
+	{
+	    this.connection = connection;
+	    framer = new LineFramer();
+	}
+
+	/**
+	 * Does the periodic work for this session: connecting, pumping
+	 * output and closing. Timed events of the connection are run by 
+	 * the <code>Scheduler</code>.<P>
+	 *
+	 * @param now current time
+	 * @return milliseconds until this session needs service again, or 
+	 * -1 if the connection has finished for good
+	 */
+	long service(long now)
+	{
+	    if ( channel == null ) {
+		if ( !connection.isContinueConnecting() ) {
+		    cancelResolving();
+		    connection.connectionFinished();
+		    return -1;
+		}
+		if ( resolving != null ) {
+		    return checkResolved(now);
+		}
+		if ( now < connectTime ) {
+		    return connectTime - now;
+		}
+		startConnect();
+		return tickInterval;
+	    }
+
+	    if ( !channel.isConnected() ) {
+		// waiting for OP_CONNECT
+		if ( now >= connectDeadline ) {
+		    Log.info(this, "service(): connecting to " + address.getHost() + ":" + 
+			     address.getPort() + " timed out");
+		    connectFailed();
+		    return reconnectDelay;
+		}
+		return Math.min(tickInterval, connectDeadline - now);
+	    }
+
+	    long delay = tickInterval;
+	    if ( connection.isConnectionAlive() && connection.isContinueConnecting() ) {
+		long queueDelay = connection.getOutputQueue().service();
+		if ( (queueDelay >= 0) && (queueDelay < delay) ) {
+		    delay = queueDelay;
+		}
+	    }
+
+	    if ( !writePending() ) {
+		return delay;
+	    }
+
+	    if ( !connection.isConnectionAlive() || !connection.isContinueConnecting() ) {
+		close();
+	    }
+
+	    return delay;
+	}
+
+	/**
+	 * Starts connecting to the next server by handing its host name to
+	 * the resolver.
+	 *
+	 */
+	private void startConnect()
+	{
+	    address = connection.prepareConnect(connection.nextServerAddress());
+	    if ( address == null ) {
+		connectTime = System.currentTimeMillis() + reconnectDelay;
+		return;
+	    }
+
+	    connectDeadline = System.currentTimeMillis() + connectTimeout;
+	    final InetSocketAddress unresolved = 
+		InetSocketAddress.createUnresolved(address.getHost(), address.getPort());
+	    resolving = resolver.submit(new Callable() {
+		    public Object call() throws UnknownHostException {
+			try {
+			    InetSocketAddress serverAddr = 
+				new InetSocketAddress(unresolved.getHostString(), 
+						      unresolved.getPort());
+			    if ( serverAddr.isUnresolved() ) {
+				throw new UnknownHostException(unresolved.getHostString());
+			    }
+			    return serverAddr;
+			} finally {
+			    selector.wakeup();
+			}
+		    }
+		});
+	}
+
+	/**
+	 * Checks on the host name being resolved, and starts the 
+	 * non-blocking connect once the address is known.<P>
+	 *
+	 * @param now current time
+	 * @return milliseconds until this session needs service again
+	 */
+	private long checkResolved(long now)
+	{
+	    if ( !resolving.isDone() ) {
+		if ( now >= connectDeadline ) {
+		    Log.info(this, "checkResolved(): resolving " + address.getHost() + 
+			     " timed out");
+		    connectFailed();
+		    return reconnectDelay;
+		}
+		return Math.min(tickInterval, connectDeadline - now);
+	    }
+
+	    InetSocketAddress serverAddr = null;
+	    try {
+		serverAddr = (InetSocketAddress)resolving.get();
+	    } catch ( ExecutionException e ) {
+		Log.log(this, e.getCause());
+		connectFailed();
+		return reconnectDelay;
+	    } catch ( InterruptedException e ) {
+		Log.log(this, e);
+		connectFailed();
+		return reconnectDelay;
+	    }
+	    resolving = null;
+
+	    openChannel(serverAddr);
+	    return tickInterval;
+	}
+
+	/**
+	 * Starts a non-blocking connect to a resolved server address.<P>
+	 *
+	 * @param serverAddr address of the server
+	 */
+	private void openChannel(InetSocketAddress serverAddr)
+	{
+	    try {
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+
+		InetAddress bindAddr = connection.getBindAddress();
+		if ( bindAddr != null ) {
+		    channel.socket().bind(new InetSocketAddress(bindAddr, 0));
+		}
+
+		if ( channel.connect(serverAddr) ) {
+		    key = channel.register(selector, SelectionKey.OP_READ, this);
+		    connected();
+		} else {
+		    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+		}
+	    } catch ( IOException e ) {
+		Log.log(this, e);
+		connectFailed();
+	    }
+	}
+
+	/**
+	 * Cleans up after a failed connection attempt.
+	 *
+	 */
+	private void connectFailed()
+	{
+	    cancelResolving();
+	    closeChannel();
+	    connection.closeSession();
+	    connectTime = System.currentTimeMillis() + reconnectDelay;
+	}
+
+	/**
+	 * Gives up on the host name being resolved, if any. The lookup 
+	 * itself cannot be interrupted and finishes in the background.
+	 *
+	 */
+	private void cancelResolving()
+	{
+	    if ( resolving != null ) {
+		resolving.cancel(false);
+		resolving = null;
+	    }
+	}
+
+	/**
+	 * Starts the IRC session once the socket is connected.
+	 *
+	 */
+	private void connected()
+	{
+	    framer.reset();
+	    out = new ChannelOutputBuffer();
+	    connection.openSession(out, address, false);
+	    connection.getOutputQueue().setWakeupSelector(selector);
+	}
+
+	/**
+	 * Handles a selected key.<P>
+	 *
+	 * @param key the selected key
+	 */
+	void handleKey(SelectionKey key)
+	{
+	    try {
+		if ( key.isConnectable() ) {
+		    if ( channel.finishConnect() ) {
+			key.interestOps(SelectionKey.OP_READ);
+			connected();
+		    }
+		    return;
+		}
+
+		if ( key.isReadable() ) {
+		    read();
+		}
+
+		if ( key.isValid() && key.isWritable() ) {
+		    writePending();
+		}
+	    } catch ( IOException e ) {
+		if ( connection.isConnectionAlive() ) {
+		    connection.connectionLost(e);
+		    close();
+		} else {
+		    Log.log(this, e);
+		    connectFailed();
+		}
+	    }
+	}
+
+	/**
+	 * Reads available data from the channel and processes all
+	 * complete lines.<P>
+	 *
+	 * @exception IOException if reading fails or the server closed 
+	 * the connection
+	 */
+	private void read() throws IOException
+	{
+	    int count = channel.read(framer.getBuffer());
+	    if ( count < 0 ) {
+		throw new EOFException("connection closed by server");
+	    }
+
+	    while ( connection.isConnectionAlive() && framer.nextLine() ) {
+		try {
+		    connection.processLine(framer.getArray(), 
+					   framer.getLineOffset(),
+					   framer.getLineLength(), 
+					   framer.getFrameLength());
+		} catch ( RuntimeException e ) {
+		    // dont let one bad line take down the whole engine
+		    Log.log(this, e);
+		}
+	    }
+	}
+
+	/**
+	 * Writes out as much pending output as the socket accepts and sets
+	 * write interest accordingly.<P>
+	 *
+	 * @return true if all pending output was written
+	 */
+	private boolean writePending()
+	{
+	    if ( (out == null) || (key == null) || !key.isValid() ) {
+		return true;
+	    }
+
+	    boolean done = false;
+	    try {
+		done = out.writeTo(channel);
+	    } catch ( IOException e ) {
+		connection.connectionLost(e);
+		close();
+		return true;
+	    }
+
+	    if ( done ) {
+		key.interestOps(SelectionKey.OP_READ);
+	    } else {
+		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	    }
+
+	    return done;
+	}
+
+	/**
+	 * Closes the session after the connection has been lost or
+	 * the server instance quit.
+	 *
+	 */
+	private void close()
+	{
+	    Log.debug(this, "close(): closing connection");
+	    closeChannel();
+	    connection.closeSession();
+	}
+
+	/**
+	 * Closes the socket channel.
+	 *
+	 */
+	private void closeChannel()
+	{
+	    if ( key != null ) {
+		key.cancel();
+		key = null;
+	    }
+	    if ( channel != null ) {
+		try {
+		    channel.close();
+		} catch ( IOException e ) {
+		    Log.log(this, e);
+		}
+		channel = null;
+	    }
+	    out = null;
+	}
+
+	public String toString() {
+	    return moduleName + " (" + connection.getInstanceData().getNetwork() + ")";
+	}
+    }
+
+    /**
+     * A channel that buffers data written by the output queue 
+     * until the engine thread can write it to the non-blocking channel.
+     *
+     */
+    private class ChannelOutputBuffer implements WritableByteChannel
+    {
+	private ByteBuffer pending = ByteBuffer.allocateDirect(4096);
+
+	/**
+	 * Buffers the data and wakes the engine up to write it out.
+	 *
+	 * @param data data to write
+	 * @return number of bytes buffered
+	 */
+	public int write(ByteBuffer data) {
+	    int length = data.remaining();
+
+	    synchronized ( this ) {
+		ensureCapacity(length);
+		pending.put(data);
+	    }
+	    selector.wakeup();
+
+	    return length;
+	}
+
+	public boolean isOpen() {
+	    return true;
+	}
+
+	public void close() {
+	    // the engine closes the socket channel
+	}
+
+	/**
+	 * Grows the pending buffer to fit given number of new bytes.<P>
+	 *
+	 * @param length number of bytes to be added
+	 */
+	private void ensureCapacity(int length) {
+	    if ( pending.remaining() < length ) {
+		ByteBuffer grown = 
+		    ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, 
+						       pending.position() + length));
+		pending.flip();
+		grown.put(pending);
+		pending = grown;
+	    }
+	}
+
+	/**
+	 * Writes pending data to a channel.<P>
+	 *
+	 * @param channel channel to write to
+	 * @return true if all pending data was written
+	 * @exception IOException if writing fails
+	 */
+	synchronized boolean writeTo(SocketChannel channel) throws IOException {
+	    if ( pending.position() == 0 ) {
+		return true;
+	    }
+
+	    pending.flip();
+	    try {
+		channel.write(pending);
+	    } finally {
+		pending.compact();
+	    }
+
+	    return pending.position() == 0;
+	}
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.core;
+
+/**
+ * Represents a parsed IRC server address from the server list of 
+ * a server instance.<P>
+ *
+ * @see irssibot.core.ServerConnection#prepareConnect(String)
+ */
+public class ServerAddress
+{
+    /**
+     * Host name or IP address of the server.
+     */
+    private String host = null;
+    /**
+     * Server port.
+     */
+    private int port = 6667;
+    /**
+     * Server password, or null if none.
+     */
+    private String password = null;
+
+    public ServerAddress(String host, int port, String password)
+    {
+	this.host = host;
+	this.port = port;
+	this.password = password;
+    }
+
+    /**
+     * Returns the host name or IP address of the server.
+     */
+    public String getHost() {
+	return host;
+    }
+
+    /**
+     * Returns the server port.
+     */
+    public int getPort() {
+	return port;
+    }
+
+    /**
+     * Returns the server password, or null if none.
+     */
+    public String getPassword() {
+	return password;
+    }
+
+    public String toString() {
+	return host + ":" + port;
+    }
+}
@@ -31,6 +31,11 @@ import irssibot.protocol.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
 
 /**
  * Represents a connection to an IRC server.<P>
@@ -44,9 +49,9 @@ public class ServerConnection extends Thread
 
     private Core core = null;
 
-    private BufferedInputStream serverIn = null;
-    private BufferedReader serverInReader = null;
-    private BufferedOutputStream serverOut = null;
+    private InputStream serverIn = null;
+    private LineFramer serverInFramer = null;
+    private WritableByteChannel serverOut = null;
     private Socket socket = null;
     private String errorMsg = null;
     private String statusString = null;
@@ -56,6 +61,10 @@ public class ServerConnection extends Thread
 
     private ServerInstanceData instanceData = null;
     private Vector users = null;
+    /**
+     * Index for finding users by name and host.
+     */
+    private UserIndex userIndex = null;
     private Vector channelConnects = null;
     private Hashtable channels = null;
     private Host botHost = null;
@@ -63,16 +72,97 @@ public class ServerConnection extends Thread
 
     private String serverUserModes = null;
     private String serverChannelModes = null;
+    /**
+     * Tokens advertised by the server in RPL_ISUPPORT. Tokens without
+     * a value map to an empty string.
+     */
+    private Hashtable serverSupport = new Hashtable();
+    /**
+     * Case mapping for nicks and channel names on the current server.
+     */
+    private CaseMapping caseMapping = CaseMapping.RFC1459;
+    /**
+     * Channels of each nick on the joined channels.
+     */
+    private MembershipIndex memberships = new MembershipIndex();
 
     private String currentServer = null;
     private int currentServerIndex = 0;
     private boolean useAltNick = false;
-    private long lastSaveTime = 0;
     private boolean userDataChanged = false;
     private boolean connectionReady = false;
 
-    private long nickRegainTime = 0;
-    private long channelRejoinTime = 0;
+    /**
+     * Interval (ms) of saving the user file and module states.
+     */
+    private static final long saveInterval = 300000;
+    /**
+     * Interval (ms) of attempting to regain the bot nick and rejoin 
+     * channels.
+     */
+    private static final long maintainInterval = 15000;
+    /**
+     * Scheduled saving of the user file and module states.
+     */
+    private ScheduledTask saveTask = null;
+    /**
+     * Scheduled nick regaining and channel rejoining for the current 
+     * session.
+     */
+    private ScheduledTask maintainTask = null;
+    /**
+     * Charset of the current session, for both reading and writing.
+     */
+    private Charset charset = Charset.defaultCharset();
+    /**
+     * Delay (ms) from a change in user data to writing the user file.
+     * Changes made during the delay are written together.
+     */
+    private static final long userFileDelay = 5000;
+    /**
+     * Scheduled write of changed user data, or null.
+     */
+    private ScheduledTask userFileTask = null;
+    /**
+     * Background writer of the user file.
+     */
+    private UserFileWriter userFileWriter = null;
+    /**
+     * Journal of changes to the users since the user file was written.
+     */
+    private UserJournal userJournal = null;
+    /**
+     * Number of journal entries after which the user file is rewritten.
+     */
+    private static final int journalCompactEntries = 500;
+
+    /**
+     * Maximum length of a line sent to the server, excluding the line feed.
+     */
+    private static final int maxLineLength = 510;
+    /**
+     * Maximum number of channels whose WHO, ban list and mode queries
+     * may be outstanding at a time. Keeps the replies from flooding 
+     * the connection after joining many channels.
+     */
+    private static final int maxSyncingChannels = 3;
+    /**
+     * Time (ms) after which a channel sync not completed is given up.
+     */
+    private static final long channelSyncTimeout = 60000;
+    /**
+     * Channels waiting for their sync queries to be sent.
+     */
+    private Vector syncQueue = new Vector();
+    /**
+     * Channels whose sync queries have been sent but not all replied.
+     */
+    private Vector syncingChannels = new Vector();
+    /**
+     * Time the channels were joined after connecting, or 0 after all
+     * have synced.
+     */
+    private long joinBurstTime = 0;
 
     /**
      * Number of bytes read from the server
@@ -83,6 +173,19 @@ public class ServerConnection extends Thread
      */
     private long bytesWritten = 0;
 
+    /**
+     * Directory to write traffic captures to, or null if not capturing.
+     */
+    private String captureDir = null;
+    /**
+     * Capture of the traffic of the current session, or null.
+     */
+    private volatile TrafficCapture capture = null;
+    /**
+     * Lock for starting and stopping captures.
+     */
+    private Object captureLock = new Object();
+
     /**
      * Returns the allowed channel modes for the current server.
      *
@@ -90,6 +193,30 @@ public class ServerConnection extends Thread
      */
     public String getServerChannelModes() { return serverChannelModes; }
 
+    /**
+     * Returns the case mapping for nicks and channel names on the 
+     * current server.<P>
+     */
+    public CaseMapping getCaseMapping() { return caseMapping; }
+
+    /**
+     * Returns the value of a RPL_ISUPPORT token advertised by the current
+     * server.<P>
+     *
+     * @param token token name, for example "PREFIX"
+     * @return token value, empty string if the token has no value, or 
+     * null if not advertised
+     */
+    public String getServerSupport(String token) 
+    { 
+	return (String)serverSupport.get(token); 
+    }
+
+    /**
+     * Returns the index of channels each nick is on.<P>
+     */
+    MembershipIndex getMembershipIndex() { return memberships; }
+
     /**
      * Constructs.<P>
      *
@@ -105,6 +232,7 @@ public class ServerConnection extends Thread
 
 	this.instanceData = instanceData;
 	this.channels = instanceData.getChannels();
+	this.captureDir = instanceData.getCaptureDir();
 
 	channelConnects = new Vector();
 
@@ -115,8 +243,18 @@ public class ServerConnection extends Thread
 	} else {
 	    users = new Vector();
 	}
+	userIndex = new UserIndex(users);
+	userFileWriter = new UserFileWriter(instanceData.getUserFilePath());
+	userJournal = new UserJournal(instanceData.getUserFilePath());
+
+	// fold replayed journal entries into the user file at next save 
+	userDataChanged = (parser.getJournalEntries() > 0);
 
-	lastSaveTime = System.currentTimeMillis();
+	saveTask = Scheduler.schedule(getName() + ": save state", new Runnable() {
+		public void run() {
+		    saveState();
+		}
+	    }, saveInterval, saveInterval);
     }
 
     public String toString() { return moduleName; }
@@ -131,7 +269,12 @@ public class ServerConnection extends Thread
 
     public void addUser(User user)
     {
-	users.add(user);
+	synchronized ( userFileWriter ) {
+	    users.add(user);
+	    userIndex.invalidate();
+	    userJournal.userChanged(user);
+	    userDataChanged = true;
+	}
     }
 
     /**
@@ -140,8 +283,14 @@ public class ServerConnection extends Thread
      * @return server traffic statistics
      */
     public String getTrafficInfo() {
-	return new String("Bytes sent to server: " + bytesWritten + 
-			  " Bytes received from server: " + bytesRead);
+	String info = "Bytes sent to server: " + bytesWritten + 
+	    " Bytes received from server: " + bytesRead;
+	if ( outputQueue != null ) {
+	    info += " Output: " + outputQueue.getStatistics() + 
+		". Time in queue: " + outputQueue.getQueueTimeStatistics();
+	}
+
+	return info;
     }
 
     /**
@@ -154,8 +303,13 @@ public class ServerConnection extends Thread
     {
 	boolean ret = false;
 
-	if( (user != null) && users.contains(user) ) {
-	    ret = users.remove(user);
+	synchronized ( userFileWriter ) {
+	    if( (user != null) && users.contains(user) ) {
+		ret = users.remove(user);
+		userIndex.invalidate();
+		userJournal.userDeleted(user);
+		userDataChanged = true;
+	    }
 	}
 	
 	return ret;
@@ -215,15 +369,7 @@ public class ServerConnection extends Thread
      */    
     public User findUser(String name)
     {
-	// go through all users 
-	for( int i = 0; i < users.size(); i++ ) {
-	    User user = (User)users.elementAt(i);
-	    if( user.getName().equalsIgnoreCase(name) ) {
-		return user;
-	    }
-	}
-
-	return null;
+	return userIndex.findUser(name);
     }
 
     /**
@@ -235,19 +381,7 @@ public class ServerConnection extends Thread
      */
     public User findUser(Host host)
     {
-	Vector hosts = null;
-
-	for( int i = 0; i < users.size(); i++ ) {
-	    User user = (User)users.elementAt(i);
-	    if( user.hasMatchingHost(host) && user.isLoggedIn() ) {
-		if( user.isDynamic() ) {
-		    if( host.equals(user.getLoginHost()) ) return user;
-		} else {
-		    return user;
-		}
-	    }
-	}
-	return null;
+	return userIndex.findLoggedInUser(host);
     }
 
     /**
@@ -261,21 +395,7 @@ public class ServerConnection extends Thread
      */
     private User findMatchingUser(Host host)
     {
-	Vector hosts = null;
-
-	/* go through all users */
-	for( int i = 0; i < users.size(); i++ ) {
-	    User user = (User)users.elementAt(i);
-	    hosts = user.getHosts();
-	    /* go through all user's hosts */
-	    for( int j = 0; j < hosts.size(); j++ ) {
-		Host userHost = (Host)hosts.elementAt(j);
-		if( host.matches(userHost) ) {
-		    return user;
-		}
-	    }
-	}
-	return null;
+	return userIndex.findMatchingUser(host);
     }
 
     /**
@@ -295,121 +415,301 @@ public class ServerConnection extends Thread
     }
 
     /**
-     * Attempts to connect to an irc server.
+     * Starts this connection with the engine selected in its instance data:
+     * either as its own thread doing blocking reads, or multiplexed with
+     * other connections on a shared <code>SelectorEngine</code>.<P>
      *
-     * @param server address in form of ip:port:password
+     * @see irssibot.core.SelectorEngine
+     */
+    public void launch()
+    {
+	if( ServerInstanceData.ENGINE_SELECTOR.equals(instanceData.getEngine()) ) {
+	    SelectorEngine.register(this);
+	} else {
+	    start();
+	}
+    }
+
+    /**
+     * Returns the next address from the server list, cycling around
+     * at the end of the list.
+     *
+     * @return server address in form of ip:port:password
+     */
+    String nextServerAddress()
+    {
+	String address = 
+	    (String)instanceData.getServerList().elementAt(currentServerIndex++);
+	if( currentServerIndex >= instanceData.getServerList().size() ) {
+	    currentServerIndex = 0;
+	}
+
+	return address;
+    }
+
+    /**
+     * Returns the local address to bind outgoing connections to, or null
+     * if none configured.
+     *
+     * @return bind address or null
+     * @exception UnknownHostException if the configured address is invalid
+     */
+    InetAddress getBindAddress() throws UnknownHostException
+    {
+	if ( (core.getBindIP() != null) && 
+	     (core.getBindIP().length() > 0) ) {
+	    InetAddress bindAddr = InetAddress.getByName(core.getBindIP());
+	    Log.debug(this, "binding to local IP " + 
+		      bindAddr.getHostAddress());
+	    return bindAddr;
+	}
+
+	return null;
+    }
+
+    /**
+     * Marks the instance as not connected and parses a server address
+     * prior to connecting to it.
+     *
+     * @param addr address in form of ip:port:password
      * if no port/password given, using defaults 6667/null.
+     * @return parsed address, or null if the address is malformed
      */
-    private void connect(String addr)
+    ServerAddress prepareConnect(String addr)
     {
-	boolean isOk = true;
 	String ip = null;
 	String pass = null;
 	int port = 6667;
 
-	Log.debug(this, "connect()");
-
 	/* mark instance as not connected */
 	currentServer = null;
 	statusString = "not connected";
+
+	if ( maintainTask != null ) {
+	    maintainTask.cancel();
+	    maintainTask = null;
+	}
+
+	/* hand changes still waiting for the delayed write to the writer
+	   thread. not waiting for it: this may run on the selector thread,
+	   and the journal keeps the changes safe meanwhile */
+	writeUserFile();
+	userJournal.close();
 	connectionReady = false;
 
 	String addrData[] = StringUtil.separate(addr,':');
 
 	if( addrData.length < 1 ) {
 	    Log.debug(this, "Bad server address");
-	    isOk = false;
-	} else {
-	    if( addrData.length > 2 ) pass = addrData[2];
-	    if( addrData.length > 1 ) {
-		try {
-		    port = Integer.parseInt(addrData[1]);
-		} catch( NumberFormatException ne ) {
-		    /* bad port value; die */
-		    Log.debug(this, "connect(): invalid port. NumberFormatException: " +
-			      ne.getMessage());
-		    isOk = false;
-		    continueConnecting = false;
-		}
+	    return null;
+	}
+
+	if( addrData.length > 2 ) pass = addrData[2];
+	if( addrData.length > 1 ) {
+	    try {
+		port = Integer.parseInt(addrData[1]);
+	    } catch( NumberFormatException ne ) {
+		/* bad port value; die */
+		Log.debug(this, "connect(): invalid port. NumberFormatException: " +
+			  ne.getMessage());
+		continueConnecting = false;
+		return null;
 	    }
-	    ip = addrData[0];
 	}
+	ip = addrData[0];
+
+	currentServer = addr;
+	statusString = "connecting to " + addr;
+	Log.debug(this, statusString);
+
+	return new ServerAddress(ip, port, pass);
+    }
+
+    /**
+     * Attempts to connect to an irc server.
+     *
+     * @param server address in form of ip:port:password
+     * if no port/password given, using defaults 6667/null.
+     */
+    private void connect(String addr)
+    {
+	Log.debug(this, "connect()");
+
+	ServerAddress address = prepareConnect(addr);
 
 	/* if server address is well-formed, attempt to connect */
-	if( isOk ) {
+	if( address != null ) {
 	    /* connect to irc server */
-	    currentServer = addr;
-	    statusString = "connecting to " + addr;
-	    Log.debug(this, statusString);
 	    try {
-	       InetAddress serverAddr = InetAddress.getByName(ip);
-	       if ( (core.getBindIP() != null) && 
-		    (core.getBindIP().length() > 0) ) {
-		  InetAddress bindAddr = InetAddress.getByName(core.getBindIP());
-		  Log.debug(this, "binding to local IP " + 
-			    bindAddr.getHostAddress());
-		  socket = new Socket(serverAddr, port, bindAddr, 0);
+	       InetAddress serverAddr = InetAddress.getByName(address.getHost());
+	       InetAddress bindAddr = getBindAddress();
+	       if ( bindAddr != null ) {
+		  socket = new Socket(serverAddr, address.getPort(), bindAddr, 0);
 	       } else {
-		  socket = new Socket(serverAddr, port);
+		  socket = new Socket(serverAddr, address.getPort());
 	       }
 	       
-		serverIn = new BufferedInputStream(socket.getInputStream());
-		serverInReader = new BufferedReader(new InputStreamReader(serverIn));
-		serverOut = new BufferedOutputStream(socket.getOutputStream());
+		serverIn = socket.getInputStream();
+		serverInFramer = new LineFramer();
 		socket.setSoTimeout(1000);
+		openSession(Channels.newChannel(socket.getOutputStream()), 
+			    address, true);
 	    } catch( IOException e ) {
 		Log.log(this, e);
 		
-		isOk = false;
 		currentServer = null;
 	    }
-	    
-	    if( isOk ) {
-		// create & launch an output queue 
-		if ( outputQueue != null ) {
-		    Log.debug(this, "connect(): killing existing OutputQueue..");
-		    outputQueue.killQueue();
-		    try {
-			outputQueue.join();
-		    } catch ( InterruptedException e ) {
-			// do nothing
-		    }
-		    outputQueue = null;
-		}
-		outputQueue = new OutputQueue(serverOut, instanceData.getOutFlushTime(), 
-					      instanceData.getOutMaxBytes());
-		outputQueue.start();
+	} 
+    } 
 
-		Log.debug(this, "connected, sending client data to server..");
+    /**
+     * Starts an IRC session over an established connection: creates the 
+     * output queue and sends the client data to the server.<P>
+     *
+     * @param out output channel to the server
+     * @param address address of the server connected to
+     * @param threaded if true, the output queue is run by its own thread.
+     * Otherwise it must be pumped by calling <code>OutputQueue.service()</code>.
+     */
+    void openSession(WritableByteChannel out, ServerAddress address, boolean threaded)
+    {
+	serverOut = new CaptureChannel(out);
+	if( captureDir != null ) {
+	    openCapture();
+	}
+	serverSupport.clear();
+	syncQueue.clear();
+	syncingChannels.clear();
+	joinBurstTime = 0;
+	caseMapping = CaseMapping.RFC1459;
+
+	// create & launch an output queue 
+	if ( outputQueue != null ) {
+	    Log.debug(this, "connect(): killing existing OutputQueue..");
+	    outputQueue.killQueue();
+	    try {
+		outputQueue.join();
+	    } catch ( InterruptedException e ) {
+		// do nothing
+	    }
+	    outputQueue = null;
+	}
+	charset = Charset.defaultCharset();
+	if ( instanceData.getOutCharset() != null ) {
+	    charset = Charset.forName(instanceData.getOutCharset());
+	}
+	outputQueue = new OutputQueue(serverOut, instanceData.getOutFlushTime(), 
+				      instanceData.getOutMaxBytes(), charset);
+	if( threaded ) {
+	    outputQueue.start();
+	}
 
-		// send data about bot/client 
-		if( (pass != null) && !pass.equals("") ) {
-		    write("PASS " + pass + "\n");
-		}
+	Log.debug(this, "connected, sending client data to server..");
 
-		String nickLine = null;
-		if( !useAltNick ) {
-		    Log.debug(this, "using nick \"" + instanceData.getBotNick() + "\"");
-		    nickLine = "NICK " + instanceData.getBotNick();
-		} else {
-		    Log.debug(this, "using alt nick "+instanceData.getBotAltNick() + "\"");
-		    nickLine = "NICK " + instanceData.getBotAltNick();
+	// send data about bot/client 
+	String pass = address.getPassword();
+	if( (pass != null) && !pass.equals("") ) {
+	    write("PASS " + pass + "\n");
+	}
+
+	String nickLine = null;
+	if( !useAltNick ) {
+	    Log.debug(this, "using nick \"" + instanceData.getBotNick() + "\"");
+	    nickLine = "NICK " + instanceData.getBotNick();
+	} else {
+	    Log.debug(this, "using alt nick "+instanceData.getBotAltNick() + "\"");
+	    nickLine = "NICK " + instanceData.getBotAltNick();
+	}
+
+	write(nickLine + "\n");
+	Log.info(this, "connect(): wrote: " + nickLine);
+
+	String userLine = 
+	    "USER " + instanceData.getIdent() + " hut " + address.getHost() + 
+	    " :" + instanceData.getRealName();
+	write(userLine + "\n");
+	Log.info(this, "connect(): wrote: " + userLine);
+
+	connectionAlive = true;
+
+	if ( maintainTask != null ) {
+	    maintainTask.cancel();
+	}
+	maintainTask = Scheduler.schedule(getName() + ": regain nick, rejoin", new Runnable() {
+		public void run() {
+		    maintainSession();
 		}
+	    }, maintainInterval, maintainInterval);
+    }
 
-		write(nickLine + "\n");
-		Log.info(this, "connect(): wrote: " + nickLine);
+    /**
+     * Marks the current session closed after the connection to the 
+     * server has been torn down.
+     *
+     */
+    void closeSession()
+    {
+	if ( maintainTask != null ) {
+	    maintainTask.cancel();
+	    maintainTask = null;
+	}
+	connectionAlive = false;
+	closeCapture();
+	serverIn = null; 
+	serverInFramer = null;
+	serverOut = null; 
+	socket = null;
+    }
 
-		String userLine = 
-		    "USER " + instanceData.getIdent() + " hut " + ip + 
-		    " :" + instanceData.getRealName();
-		write(userLine + "\n");
-		Log.info(this, "connect(): wrote: " + userLine);
+    /**
+     * Called when reading from the server fails or the server closes
+     * the connection.<P>
+     *
+     * @param e the cause
+     */
+    void connectionLost(IOException e)
+    {
+	// connection closed
+	continueConnecting = false;
+	connectionAlive = false;
+	Log.log(this, e);
+    }
 
-		connectionAlive = true;
-		currentServer = addr;
-	    } 
-	} 
-    } 
+    /**
+     * Called when connecting is finished for good, after the last
+     * session has been closed.
+     *
+     */
+    void connectionFinished()
+    {
+	if( errorMsg != null ) {
+	    Log.debug(this, "ERROR: " + errorMsg);
+	}
+
+	currentServer = null;
+	statusString = "not connected";
+
+	if ( saveTask != null ) {
+	    saveTask.cancel();
+	    saveTask = null;
+	}
+
+	if( outputQueue != null ) {
+	    outputQueue.killQueue();
+	    outputQueue = null;
+	}
+    }
+
+    /**
+     * Returns true if there is a live session to the server.
+     */
+    boolean isConnectionAlive() { return connectionAlive; }
+
+    /**
+     * Returns true if the connection should (re)connect to the server
+     * when the current session ends.
+     */
+    boolean isContinueConnecting() { return continueConnecting; }
 
     /**
      * Sets the ServerConnection's status string.
@@ -477,23 +777,230 @@ public class ServerConnection extends Thread
 	Log.debug(this, "bot host from RPL_USERHOST: " + botHost.toString());
 
 	// join channels 
+	Vector toJoin = new Vector();
 	Enumeration en = instanceData.getChannels().elements();
 	while( en.hasMoreElements() ) {
 	    Channel channel = (Channel)en.nextElement();
 	    channel.setServerConnection(this);
 	    channel.setServerChannelModes(serverChannelModes);
+	    channel.setCaseMapping(caseMapping);
 
 	    Log.debug(this, "joining channel "+channel.getChannelName()+"..");
-	    if( channel.getChannelKey() != null ) {
-		write("JOIN " + channel.getChannelName() + " " + 
-		      channel.getChannelKey() + "\n");
-	    } else {
-		write("JOIN " + channel.getChannelName() + "\n");
-	    }
+	    toJoin.add(channel);
 	}
+	joinBurstTime = System.currentTimeMillis();
+	joinChannels(toJoin);
 	connectionReady = true;	
     }
 
+    /**
+     * Joins channels with as few JOIN lines as the line length and the
+     * server's TARGMAX limit for JOIN allow. Channels with a key are 
+     * listed first, as the server matches keys to channels by 
+     * position.<P>
+     *
+     * @param toJoin Channel objects to join
+     */
+    private void joinChannels(Vector toJoin)
+    {
+	Vector ordered = new Vector(toJoin.size());
+	for( int i = 0; i < toJoin.size(); i++ ) {
+	    if( hasKey((Channel)toJoin.elementAt(i)) ) {
+		ordered.add(toJoin.elementAt(i));
+	    }
+	}
+	for( int i = 0; i < toJoin.size(); i++ ) {
+	    if( !hasKey((Channel)toJoin.elementAt(i)) ) {
+		ordered.add(toJoin.elementAt(i));
+	    }
+	}
+
+	int maxTargets = getMaxTargets("JOIN");
+	StringBuffer names = new StringBuffer();
+	StringBuffer keys = new StringBuffer();
+	int count = 0;
+
+	for( int i = 0; i < ordered.size(); i++ ) {
+	    Channel channel = (Channel)ordered.elementAt(i);
+	    String name = channel.getChannelName();
+	    String key = hasKey(channel) ? channel.getChannelKey() : null;
+
+	    int length = "JOIN ".length() + names.length() + 1 + name.length() + 
+		keys.length() + ((key != null) ? key.length() + 2 : 0);
+	    if( (count > 0) && ((count >= maxTargets) || (length > maxLineLength)) ) {
+		writeJoin(names, keys);
+		names.setLength(0);
+		keys.setLength(0);
+		count = 0;
+	    }
+
+	    if( names.length() > 0 ) {
+		names.append(',');
+	    }
+	    names.append(name);
+	    if( key != null ) {
+		if( keys.length() > 0 ) {
+		    keys.append(',');
+		}
+		keys.append(key);
+	    }
+	    count++;
+	}
+	if( count > 0 ) {
+	    writeJoin(names, keys);
+	}
+    }
+
+    /**
+     * Indicates whether a channel has a (non-empty) key.<P>
+     */
+    private static boolean hasKey(Channel channel)
+    {
+	return (channel.getChannelKey() != null) && (channel.getChannelKey().length() > 0);
+    }
+
+    /**
+     * Writes a JOIN line.<P>
+     *
+     * @param names comma separated channel names
+     * @param keys comma separated keys of the first channels, or empty
+     */
+    private void writeJoin(StringBuffer names, StringBuffer keys)
+    {
+	if( keys.length() > 0 ) {
+	    write("JOIN " + names + " " + keys + "\n");
+	} else {
+	    write("JOIN " + names + "\n");
+	}
+    }
+
+    /**
+     * Returns the maximum number of targets for a command given by the
+     * server's TARGMAX token, or Integer.MAX_VALUE if not limited.<P>
+     *
+     * example: <code>TARGMAX=PRIVMSG:4,NOTICE:4,JOIN:</code>
+     *
+     * @param command the command
+     */
+    private int getMaxTargets(String command)
+    {
+	String targMax = getServerSupport("TARGMAX");
+	if( targMax == null ) {
+	    return Integer.MAX_VALUE;
+	}
+
+	StringTokenizer st = new StringTokenizer(targMax, ",");
+	while( st.hasMoreTokens() ) {
+	    String entry = st.nextToken();
+	    int colonIndex = entry.indexOf(':');
+	    if( (colonIndex != -1) && 
+		entry.substring(0, colonIndex).equalsIgnoreCase(command) ) {
+		try {
+		    return Math.max(1, Integer.parseInt(entry.substring(colonIndex + 1)));
+		} catch( NumberFormatException e ) {
+		    return Integer.MAX_VALUE;
+		}
+	    }
+	}
+
+	return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Queues a joined channel for its WHO, ban list and mode queries. 
+     * At most <code>maxSyncingChannels</code> channels have their queries 
+     * outstanding at a time; the rest wait their turn.<P>
+     *
+     * @param channel the joined channel
+     */
+    void requestChannelSync(Channel channel)
+    {
+	synchronized ( syncQueue ) {
+	    /* a rejoin while still syncing restarts the sync */
+	    syncingChannels.remove(channel);
+	    if( !syncQueue.contains(channel) ) {
+		syncQueue.add(channel);
+	    }
+	    startChannelSyncs();
+	}
+    }
+
+    /**
+     * Called by a channel when it has been fully synced.<P>
+     *
+     * @param channel the synced channel
+     */
+    void channelSynced(Channel channel)
+    {
+	synchronized ( syncQueue ) {
+	    syncingChannels.remove(channel);
+	    startChannelSyncs();
+	}
+    }
+
+    /**
+     * Starts syncing queued channels while there is room, and reports
+     * when all channels joined after connecting have synced. Called 
+     * with the <code>syncQueue</code> lock held.<P>
+     */
+    private void startChannelSyncs()
+    {
+	while( (syncingChannels.size() < maxSyncingChannels) && !syncQueue.isEmpty() ) {
+	    Channel channel = (Channel)syncQueue.remove(0);
+	    if( channel.isJoined() ) {
+		syncingChannels.add(channel);
+		channel.startSync();
+	    }
+	}
+
+	if( (joinBurstTime != 0) && syncQueue.isEmpty() && syncingChannels.isEmpty() && 
+	    allChannelsSynced() ) {
+	    Log.info(this, "startChannelSyncs(): all channels synced " + 
+		     (System.currentTimeMillis() - joinBurstTime) + " ms after joining");
+	    joinBurstTime = 0;
+	}
+    }
+
+    /**
+     * Indicates whether every channel has been joined and synced.<P>
+     */
+    private boolean allChannelsSynced()
+    {
+	Enumeration elements = channels.elements();
+	while( elements.hasMoreElements() ) {
+	    if( !((Channel)elements.nextElement()).isSynced() ) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Gives up channel syncs that have not completed in time, so that
+     * a lost reply does not hold up the other channels.<P>
+     *
+     * @param now current time
+     */
+    private void checkChannelSyncs(long now)
+    {
+	synchronized ( syncQueue ) {
+	    for( int i = syncingChannels.size() - 1; i >= 0; i-- ) {
+		Channel channel = (Channel)syncingChannels.elementAt(i);
+		if( (now - channel.getSyncStartedTime()) > channelSyncTimeout ) {
+		    Log.error(this, "checkChannelSyncs(): " + channel.getChannelName() + 
+			      " not synced in " + channelSyncTimeout + " ms, giving up");
+		    syncingChannels.removeElementAt(i);
+		}
+	    }
+	    if( (joinBurstTime != 0) && ((now - joinBurstTime) > channelSyncTimeout) ) {
+		Log.info(this, "checkChannelSyncs(): not all channels synced in " + 
+			 channelSyncTimeout + " ms");
+		joinBurstTime = 0;
+	    }
+	    startChannelSyncs();
+	}
+    }
+
     /**
      * Returns XML representation of this server connection to be 
      * written to configuration file.
@@ -510,7 +1017,12 @@ public class ServerConnection extends Thread
 	    "              ident=\"" + instanceData.getIdent() + "\"\n" +
 	    "              realname=\""+instanceData.getRealName()+"\" />\n";
 	ret += "    <output flush-time-ms=\"" + instanceData.getOutFlushTime() + 
-	  "\" max-output-bytes=\"" + instanceData.getOutMaxBytes() + "\" />\n";
+	  "\" max-output-bytes=\"" + instanceData.getOutMaxBytes() + "\"";
+	if ( instanceData.getOutCharset() != null ) {
+	    ret += " charset=\"" + instanceData.getOutCharset() + "\"";
+	}
+	ret += " />\n";
+	ret += "    <engine type=\"" + instanceData.getEngine() + "\" />\n";
 	ret += "    <user-file path=\""+instanceData.getUserFilePath()+"\" />\n";
 	ret += "    <server-list>\n";
 	
@@ -552,106 +1064,43 @@ public class ServerConnection extends Thread
      */
     public void run()
     {
-	String msg = null;
-	int msgLen = 0;
-
 	currentServerIndex = 0;
 
 	while( continueConnecting ) {
 	    connectionAlive = false;
 
 	    while( !connectionAlive ) {
-		String address = 
-		    (String)instanceData.getServerList().elementAt(currentServerIndex++);
-		if( currentServerIndex >= instanceData.getServerList().size() ) {
-		    currentServerIndex = 0;
-		}
-
 		// attempt connecting
-		connect(address);
+		connect(nextServerAddress());
 	    }
 
-	    // init timer variables 
-	    nickRegainTime = System.currentTimeMillis();
-	    channelRejoinTime = System.currentTimeMillis();
-
 	    // the main loop 
 	    while( continueConnecting && connectionAlive ) {
-		msg = null;
-
 		// read server messages 
 		try {
-		    while ( msg == null ) {
+		    while ( !serverInFramer.nextLine() ) {
 			try {
-			    msg = serverInReader.readLine();
+			    if ( serverInFramer.fill(serverIn) < 0 ) {
+				throw new EOFException("connection closed by server");
+			    }
 			} catch ( InterruptedIOException e ) {
 			    // dont care
 			}
 		    }
 
-		    // log server message 
-		    Log.server(msg);
-
-		    bytesRead += msg.length();
-
-		    IrcMessage message = IrcMessage.parse(msg);
-		    
-		    // process message from server 
-		    processServerMessage(message);
+		    try {
+			processLine(serverInFramer.getArray(), 
+				    serverInFramer.getLineOffset(),
+				    serverInFramer.getLineLength(), 
+				    serverInFramer.getFrameLength());
+		    } catch ( RuntimeException e ) {
+			// dont let one bad line take down the connection
+			Log.log(this, e);
+		    }
 		} catch( IOException e ) {
-		    // connection closed
-		    continueConnecting = false;
-		    connectionAlive = false;
-		    Log.log(this, e);
+		    connectionLost(e);
 		    break;
 		}
-
-		/* check user file write -timer event */
-		long now = System.currentTimeMillis();
-		if( (now - lastSaveTime) > 300000 ) {
-		  /* write user file && prompt modulehandler to save module states */
-		  writeUserFile();
-		  core.saveModuleStates(false);
-
-		    lastSaveTime = now;
-
-		    /* force finalization and garbage collect */
-		    System.runFinalization();
-		    System.gc();
-		}	
-
-		/* handle misc timed events */
-		if( connectionReady && continueConnecting ) {
-		    /* every 15 seconds, attempt to regain bot nick */
-		    if( (now - nickRegainTime) >= 15000 ) {
-			if( !instanceData.getBotNick().equalsIgnoreCase(botHost.getNick()) ) {
-			    write("NICK "+instanceData.getBotNick()+"\n");
-			}
-			nickRegainTime = now;
-		    }
-		    
-		    /* every 15 seconds, attempt to rejoin channels if not on them */
-		    if( (now - channelRejoinTime) >= 15000 ) {
-			Enumeration elements = channels.elements();
-			while( elements.hasMoreElements() ) {
-			    Channel channel = (Channel)elements.nextElement();
-			    if( !channel.isJoined() ) {
-				if( channel.getChannelKey() == null ) {
-				    Log.debug(this, "run(): attempting to rejoin channel " +
-					      channel.getChannelName());
-				    write("JOIN "+channel.getChannelName()+"\n");
-				} else {
-				    Log.debug(this, "run(): attempting to rejoin channel " +
-					      channel.getChannelName() +
-					      " with key " + channel.getChannelKey());
-				    write("JOIN " + channel.getChannelName() + " " + 
-					  channel.getChannelKey()+"\n");
-				}
-			    }
-			}
-			channelRejoinTime = now;
-		    }
-		}
 	    } // while( continueConnecting && connectionAlive ) {
 	    
 	    // thread dying - close socket and clean up 
@@ -660,25 +1109,94 @@ public class ServerConnection extends Thread
 		serverIn.close();
 		serverOut.close();
 		socket.close(); 
-
-		serverIn = null; 
-		serverOut = null; 
 	    } catch( IOException e ) { 
 		Log.log(this, e);
 	    }	
+	    closeSession();
 	} // while ( continueConnection ) {
 
-	if( errorMsg != null ) {
-	    Log.debug(this, "ERROR: " + errorMsg);
+	Log.debug(this, "Thread \"" + getName() + "\"  exiting..");
+
+	connectionFinished();
+    }
+
+    /**
+     * Processes a single line read from the server.<P>
+     *
+     * @param data array containing the line
+     * @param offset offset of the line in data
+     * @param length length of the line without line terminator
+     * @param frameLength number of bytes the line took on the wire
+     */
+    void processLine(byte data[], int offset, int length, int frameLength)
+    {
+	bytesRead += frameLength;
+
+	TrafficCapture current = capture;
+	if( current != null ) {
+	    try {
+		current.recordIn(data, offset, length);
+	    } catch( IOException e ) {
+		captureFailed(current, e);
+	    }
 	}
 
-	Log.debug(this, "Thread \"" + getName() + "\"  exiting..");
+	IrcMessage message = IrcMessage.parse(data, offset, length, charset);
 
-	currentServer = null;
-	statusString = "not connected";
+	// log server message 
+	if( Log.isServerEnabled() ) {
+	    Log.server(message.toString());
+	}
+	
+	// process message from server 
+	processServerMessage(message);
+    }
 
-	outputQueue.killQueue();
-	outputQueue = null;
+    /**
+     * Saves the user file and prompts the modules to save their 
+     * states. Run by the scheduler every <code>saveInterval</code> ms.<P>
+     */
+    private void saveState()
+    {
+	/* write user file && prompt modulehandler to save module states */
+	writeUserFile();
+	core.saveModuleStates(false);
+
+	Log.debug(this, "saveState(): " + MemoryInfo.getHeapSummary() + 
+		  ", gc " + MemoryInfo.getGcSummary());
+    }
+
+    /**
+     * Attempts to regain the bot nick and rejoin channels the bot is 
+     * not on, and gives up channel syncs that got no reply. Run by the 
+     * scheduler every <code>maintainInterval</code> ms while connected.<P>
+     */
+    private void maintainSession()
+    {
+	if( !connectionReady || !continueConnecting || !connectionAlive ) {
+	    return;
+	}
+
+	/* attempt to regain bot nick */
+	if( !instanceData.getBotNick().equalsIgnoreCase(botHost.getNick()) ) {
+	    write("NICK "+instanceData.getBotNick()+"\n");
+	}
+
+	/* attempt to rejoin channels if not on them */
+	Vector toJoin = new Vector();
+	Enumeration elements = channels.elements();
+	while( elements.hasMoreElements() ) {
+	    Channel channel = (Channel)elements.nextElement();
+	    if( !channel.isJoined() ) {
+		Log.debug(this, "maintainSession(): attempting to rejoin channel " +
+			  channel.getChannelName());
+		toJoin.add(channel);
+	    }
+	}
+	joinChannels(toJoin);
+
+	/* give up channel syncs that got no reply */
+	checkChannelSyncs(System.currentTimeMillis());
     }
 
     /**
@@ -689,22 +1207,26 @@ public class ServerConnection extends Thread
     private void processServerMessage(IrcMessage message)
     { 
 	Channel channel = null;
-	String command = message.getCommand();
-	String arguments[] = message.getArguments();
-	String trailing = message.getTrailing();
+	String arguments[] = null;
+	int opcode = message.getOpcode();
 
-	if( command.equals("PRIVMSG") ) {
+	switch ( opcode ) {
+	case Irc.OP_PRIVMSG:
 	    processPrivmsg(message);
 
 	    core.getModuleHandler().forwardMessage(message, this);
-	} else if( command.equals("ERROR") ) {
+	    break;
+	case Irc.OP_ERROR:
 	    // ERROR: close connection 
 	    connectionAlive = false;
 	    continueConnecting = true;
-	    errorMsg = trailing;
-	} else if( command.equals("PING") ) {
+	    errorMsg = message.getTrailing();
+	    break;
+	case Irc.OP_PING:
 	    write("PONG " + message.getTrailing() + "\n");
-	} else if( command.equals("MODE") ) {
+	    break;
+	case Irc.OP_MODE:
+	    arguments = message.getArguments();
 	    if( arguments[0] != null ) {
 		channel = findChannel(arguments[0]);
 		
@@ -714,12 +1236,14 @@ public class ServerConnection extends Thread
 	    }
 
 	    core.getModuleHandler().forwardMessage(message, this);
-	} else if( command.equals("JOIN") ) {
+	    break;
+	case Irc.OP_JOIN:
+	    String trailing = message.getTrailing();
 	    String chanName = null;
 	    if( trailing != null )
 		chanName = trailing;
 	    else 
-		chanName = arguments[0].toLowerCase();
+		chanName = message.getArguments()[0].toLowerCase();
 
 	    channel = findChannel(chanName);
 
@@ -731,16 +1255,18 @@ public class ServerConnection extends Thread
 
 	    // Channel.onJoin() handles sending to modules 
 	    channel.onJoin(message);
-	} else if( command.equals(Irc.RPL_CHANNELMODEIS) ) {
+	    break;
+	case Irc.OP_RPL_CHANNELMODEIS:
 	    // channel MODE reply. send to correct Channel 
-	    channel = findChannel(arguments[1]);
+	    channel = findChannel(message.getArguments()[1]);
 
 	    if( channel != null ) {
 		channel.onChannelModeIs(message);
 	    } 
-	} else if( command.equals(Irc.RPL_WHOREPLY) ) {
+	    break;
+	case Irc.OP_RPL_WHOREPLY:
 	    // WHO reply. send to correct Channel 
-	    channel = findChannel(arguments[1]);
+	    channel = findChannel(message.getArguments()[1]);
 
 	    if( channel != null ) {
 		channel.processWhoReply(message);
@@ -748,8 +1274,10 @@ public class ServerConnection extends Thread
 		Log.error(this, "processServerMessage(): channel == null in WHO reply " +
 			  message.toString());
 	    }
-	} else if( command.equals("PART") ) {
+	    break;
+	case Irc.OP_PART:
 	    // PART, send to correct Channel
+	    arguments = message.getArguments();
 	    channel = findChannel(arguments[0]);
 	    if( channel != null ) {
 		channel.onPart(message);
@@ -758,44 +1286,54 @@ public class ServerConnection extends Thread
 	    } else {
 		Log.debug(this, "NULL channel: " + arguments[0]);
 	    }
-
-	} else if( command.equals("TOPIC") ) {
-	    channel = findChannel(arguments[0]);
+	    break;
+	case Irc.OP_TOPIC:
+	    channel = findChannel(message.getArguments()[0]);
 	    channel.onTopic(message);
 
 	    core.getModuleHandler().forwardMessage(message, this);
-	} else if( command.equals("KICK") ) {
-	    channel = findChannel(arguments[0]);
+	    break;
+	case Irc.OP_KICK:
+	    channel = findChannel(message.getArguments()[0]);
 	    channel.onKick(message);
 
 	    core.getModuleHandler().forwardMessage(message, this);
-	} else if( command.equals("QUIT") ) {
+	    break;
+	case Irc.OP_QUIT:
 	    processQuit(message);
 
 	    core.getModuleHandler().forwardMessage(message, this);
-	} else if( command.equals("NICK") ) {
+	    break;
+	case Irc.OP_NICK:
 	    processNick(message);
 
 	    core.getModuleHandler().forwardMessage(message, this);
-	} else if( command.equals(Irc.RPL_TOPIC) ) {
-	    channel = findChannel(arguments[1]);
+	    break;
+	case Irc.OP_RPL_TOPIC:
+	    channel = findChannel(message.getArguments()[1]);
 	    channel.onTopicMsg(message);
-	} else if( command.equals(Irc.RPL_BANLIST) ) {
-	    channel = findChannel(arguments[1]);
+	    break;
+	case Irc.OP_RPL_BANLIST:
+	    channel = findChannel(message.getArguments()[1]);
 	    channel.onBanListMsg(message);
-	} else if( command.equals(Irc.RPL_ENDOFBANLIST) ) {
-	    channel = findChannel(arguments[1]);
+	    break;
+	case Irc.OP_RPL_ENDOFBANLIST:
+	    channel = findChannel(message.getArguments()[1]);
 	    channel.onEndOfBanListMsg(message);
-	} else if( command.equals(Irc.RPL_ENDOFWHO) ) {
-	    channel = findChannel(arguments[1]);
+	    break;
+	case Irc.OP_RPL_ENDOFWHO:
+	    channel = findChannel(message.getArguments()[1]);
 	    channel.onEndOfWhoMsg(message);
-	} else if( command.equals(Irc.ERR_NICKNAMEINUSE)    || 
-		   command.equals(Irc.ERR_ERRONEUSNICKNAME) || 
-		   command.equals(Irc.ERR_UNAVAILRESOURCE) ) {
+	    break;
+	case Irc.OP_ERR_NICKNAMEINUSE:
+	case Irc.OP_ERR_ERRONEUSNICKNAME:
+	case Irc.OP_ERR_UNAVAILRESOURCE:
 	    useAltNick = !useAltNick;
-	} else if( command.equals(Irc.RPL_MYINFO) ) {
+	    break;
+	case Irc.OP_RPL_MYINFO:
 	    // parse allowed user/channel modes out of 004:
 	    // :irc2.fi.quakenet.eu.org 004 TuneX server u2.10 dioswkgX biklmnopstv
+	    arguments = message.getArguments();
 	    serverUserModes = arguments[3];
 	    serverChannelModes = "";
 
@@ -808,12 +1346,77 @@ public class ServerConnection extends Thread
 		    serverChannelModes += arguments[4].charAt(i);
 		}
 	    }
-	} else if( command.equals(Irc.RPL_WELCOME) ) {
+	    break;
+	case Irc.OP_RPL_ISUPPORT:
+	    processISupport(message);
+	    break;
+	case Irc.OP_RPL_WELCOME:
 	    // server WELCOME; send USERHOST <botnick> 
+	    arguments = message.getArguments();
 	    Log.debug(this, "sending 'USERHOST " + arguments[0] + "'");
 	    write("USERHOST " + arguments[0] + "\n");
-	} else if( command.equals(Irc.RPL_USERHOST) ) {
+	    break;
+	case Irc.OP_RPL_USERHOST:
 	    doUserHost(message);
+	    break;
+	}
+
+	// numerics claimed by modules 
+	ModuleHandler moduleHandler = core.getModuleHandler();
+	if( Irc.isNumeric(opcode) && (moduleHandler != null) ) {
+	    moduleHandler.forwardNumeric(message, this);
+	}
+    }
+
+    /**
+     * Stores the tokens of a RPL_ISUPPORT message.<P>
+     *
+     * example:<br>
+     * <code>
+     * :irc.example.net 005 bot MODES=4 CASEMAPPING=rfc1459 :are supported
+     * </code>
+     *
+     * @param message the RPL_ISUPPORT message
+     */
+    private void processISupport(IrcMessage message)
+    {
+	String arguments[] = message.getArguments();
+	if( arguments == null ) {
+	    return;
+	}
+
+	// first argument is own nick 
+	for( int i = 1; i < arguments.length; i++ ) {
+	    String token = arguments[i];
+	    int equalsIndex = token.indexOf('=');
+
+	    if( token.startsWith("-") ) {
+		serverSupport.remove(token.substring(1));
+	    } else if( equalsIndex == -1 ) {
+		serverSupport.put(token, "");
+	    } else {
+		serverSupport.put(token.substring(0, equalsIndex), 
+				  token.substring(equalsIndex + 1));
+	    }
+	}
+
+	CaseMapping mapping = CaseMapping.forName(getServerSupport("CASEMAPPING"));
+	if( mapping != caseMapping ) {
+	    Log.debug(this, "processISupport(): case mapping " + mapping);
+	    caseMapping = mapping;
+
+	    Enumeration en = channels.elements();
+	    while( en.hasMoreElements() ) {
+		((Channel)en.nextElement()).setCaseMapping(caseMapping);
+	    }
+	}
+
+	ModeLimits limits = new ModeLimits(getServerSupport("MODES"), 
+					   getServerSupport("PREFIX"),
+					   getServerSupport("CHANMODES"));
+	Log.debug(this, "processISupport(): mode limits " + limits);
+	if( outputQueue != null ) {
+	    outputQueue.setModeLimits(limits);
 	}
     }
 
@@ -919,7 +1522,7 @@ public class ServerConnection extends Thread
     }
 
     /**
-     * Forwards a NICK message to all channels and handles changes 
+     * Forwards a NICK message to the channels the nick is on and handles changes 
      * to own nick.<P>
      *
      * @param message message to send
@@ -934,28 +1537,27 @@ public class ServerConnection extends Thread
 	    botHost.setNick(message.getTrailing());
 	} 
 
-	Enumeration en = channels.elements();
-	while( en.hasMoreElements() ) {
-	    Channel channel = (Channel)en.nextElement();
-	    // if nick is on channel, invoke onNick() 
-	    if( channel.findNick(host.getNick()) != null ) {
-		channel.onNick(message);
-	    }
+	// invoke onNick() on channels the nick is on 
+	Channel list[] = memberships.getChannels(caseMapping.toLowerCase(host.getNick()));
+	for( int i = 0; i < list.length; i++ ) {
+	    list[i].onNick(message);
 	}
     }
 
     /**
-     * Forwards a QUIT message to all channels.<P>
+     * Forwards a QUIT message to the channels the quitting nick is on.<P>
      *
      * @param message message to send
      */
     private void processQuit(IrcMessage message)
     {
-	Enumeration en = channels.elements();
-	while( en.hasMoreElements() ) {
-	    Channel channel = (Channel)en.nextElement();
-	    if( channel.isJoined() ) {
-		channel.onQuit(message);
+	Host host = new Host(message.getPrefix());
+
+	// invoke onQuit() on channels the nick is on 
+	Channel list[] = memberships.getChannels(caseMapping.toLowerCase(host.getNick()));
+	for( int i = 0; i < list.length; i++ ) {
+	    if( list[i].isJoined() ) {
+		list[i].onQuit(message);
 	    }
 	}
     }
@@ -1001,6 +1603,7 @@ public class ServerConnection extends Thread
 	if( channels.containsKey(channel.getChannelName()) ) {
 	    write("PART "+channel.getChannelName()+"\n");;
 	    channels.remove(channel.getChannelName());
+	    channel.clearNicks();
 	    ret = true;
 	}
 	return ret;
@@ -1039,47 +1642,237 @@ public class ServerConnection extends Thread
      */
     public void notifyUserDataChanged()
     {
-	userDataChanged = true;
+	synchronized ( userFileWriter ) {
+	    userDataChanged = true;
+	    scheduleUserFileWrite();
+	}
 	doMaintain();
     }
 
     /**
-     * Writes user file to disk.
+     * Notifies ServerConnection that a user has been changed. The change
+     * is appended to the user journal right away; the user file is 
+     * rewritten at the next periodic save, or soon if the journal has
+     * grown long. Users added or deleted with addUser() or delUser() are 
+     * journaled by those.<P>
+     *
+     * @param user the changed user
+     */
+    public void notifyUserDataChanged(User user)
+    {
+	synchronized ( userFileWriter ) {
+	    if( users.contains(user) ) {
+		userJournal.userChanged(user);
+	    }
+	    userDataChanged = true;
+	    if( userJournal.getEntryCount() >= journalCompactEntries ) {
+		scheduleUserFileWrite();
+	    }
+	}
+	doMaintain();
+    }
+
+    /**
+     * Schedules writing the user file after <code>userFileDelay</code>
+     * unless already scheduled. Called with the userFileWriter lock held.<P>
+     */
+    private void scheduleUserFileWrite()
+    {
+	if ( userFileTask == null ) {
+	    userFileTask = Scheduler.schedule(getName() + ": write user file", new Runnable() {
+		    public void run() {
+			writeUserFile();
+		    }
+		}, userFileDelay);
+	}
+    }
+
+    /**
+     * Writes user file to disk if user data has changed. The file is 
+     * written in the background; this returns once the contents have
+     * been taken. The user journal is compacted: entries made before
+     * the contents were taken are dropped once the file is written.<P>
      *
      */
     public void writeUserFile()
     {
-	String ret = null;
-	boolean isOk = true;
-	FileWriter fileWriter = null;
+	StringBuffer contents = null;
+
+	synchronized ( userFileWriter ) {
+	    if ( userFileTask != null ) {
+		userFileTask.cancel();
+		userFileTask = null;
+	    }
+	    if( !userDataChanged ) {
+		return;
+	    }
+	    userDataChanged = false;
 
-	if( userDataChanged ) {
 	    Log.debug(this, "writing userfile..");
 
-	    ret = "<users-file>\n";
+	    contents = new StringBuffer(users.size() * 256 + 64);
+	    contents.append("<users-file>\n");
 	    for( int i = 0; i < users.size(); i++ ) {
 		User user = (User)users.elementAt(i);
-		ret += user.getXML()+"\n";
+		user.appendXML(contents);
+		contents.append('\n');
 	    }
-	    ret += "</users-file>\n";
-	    
-	    File            destFile;
-	    FileWriter      destFileWriter;
-	    
-	    destFile = new File(instanceData.getUserFilePath());
-	
-	    try { 
-		destFileWriter = new FileWriter(destFile);
-		destFileWriter.write(ret,0,(int)ret.length());
-		destFileWriter.flush();
-		destFileWriter.close();
+	    contents.append("</users-file>\n");
+
+	    /* submit under the same lock as the journal rotation, so 
+	       snapshots reach the writer in generation order */
+	    final int generation = userJournal.rotate();
+	    userFileWriter.submit(contents.toString(), new Runnable() {
+		    public void run() {
+			userJournal.snapshotWritten(generation);
+		    }
+		});
+	}
+    }	
+
+    /**
+     * Writes user file to disk if user data has changed, and waits until
+     * the file has been written.<P>
+     */
+    public void flushUserFile()
+    {
+	writeUserFile();
+	userFileWriter.flush();
+    }
+
+    /**
+     * Starts capturing the traffic of this connection to a file per 
+     * session in the given directory, beginning with the current 
+     * session.<P>
+     *
+     * @param dir directory to write captures to
+     * @see irssibot.protocol.TrafficCapture
+     */
+    public void startCapture(String dir)
+    {
+	synchronized ( captureLock ) {
+	    captureDir = dir;
+	    if( connectionAlive && (capture == null) ) {
+		openCapture();
+	    }
+	}
+    }
+
+    /**
+     * Stops capturing the traffic of this connection.<P>
+     */
+    public void stopCapture()
+    {
+	synchronized ( captureLock ) {
+	    captureDir = null;
+	    closeCapture();
+	}
+    }
+
+    /**
+     * Returns the capture of the current session, or null if not 
+     * capturing.<P>
+     */
+    public TrafficCapture getCapture() { return capture; }
+
+    /**
+     * Opens a capture file for the current session.
+     */
+    private void openCapture()
+    {
+	synchronized ( captureLock ) {
+	    closeCapture();
+
+	    File dir = new File(captureDir);
+	    String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+	    File file = new File(dir, instanceData.getNetwork() + "-" + time + ".cap");
+	    try {
+		dir.mkdirs();
+		capture = new TrafficCapture(file, instanceData.getNetwork(), currentServer);
+		Log.info(this, "capturing traffic to " + file);
 	    } catch( IOException e ) {
-		e.printStackTrace();
-		isOk = false;
+		Log.error(this, "openCapture(): could not create " + file + ": " + 
+			  e.getMessage());
 	    }
-	    userDataChanged = false;
 	}
-    }	
+    }
+
+    /**
+     * Closes the capture file of the current session, if any.
+     */
+    private void closeCapture()
+    {
+	synchronized ( captureLock ) {
+	    if( capture != null ) {
+		capture.close();
+		Log.info(this, "captured " + capture.getRecordCount() + " records to " + 
+			 capture.getFile());
+		capture = null;
+	    }
+	}
+    }
+
+    /**
+     * Gives up a capture that could not be written. Capturing resumes
+     * at the next session.
+     *
+     * @param failed the capture
+     * @param e the cause
+     */
+    private void captureFailed(TrafficCapture failed, IOException e)
+    {
+	synchronized ( captureLock ) {
+	    if( capture == failed ) {
+		Log.error(this, "capture to " + failed.getFile() + " failed: " + 
+			  e.getMessage());
+		failed.close();
+		capture = null;
+	    }
+	}
+    }
+
+    /**
+     * Output channel to the server that records the output in the 
+     * capture of the session, if there is one.
+     */
+    private class CaptureChannel implements WritableByteChannel
+    {
+	private WritableByteChannel out = null;
+
+	CaptureChannel(WritableByteChannel out) 
+	{
+	    this.out = out;
+	}
+
+	public int write(ByteBuffer src) throws IOException
+	{
+	    TrafficCapture current = capture;
+	    if( current == null ) {
+		return out.write(src);
+	    }
+
+	    ByteBuffer written = src.duplicate();
+	    int num = out.write(src);
+	    written.limit(written.position() + num);
+	    try {
+		current.recordOut(written);
+	    } catch( IOException e ) {
+		captureFailed(current, e);
+	    }
+
+	    return num;
+	}
+
+	public boolean isOpen() 
+	{
+	    return out.isOpen();
+	}
+
+	public void close() throws IOException
+	{
+	    out.close();
+	}
+    }
 
     /**
      * Write bytes/string to server. This function will be replaced by a bursting
@@ -1097,6 +1890,26 @@ public class ServerConnection extends Thread
 	    Log.error(this, "write(): str = " + str + ", serverOut = " + serverOut);
 	}
     } 
+
+    /**
+     * Write string to server in the given output priority class. For 
+     * example, long listings may be written with 
+     * <code>OutputQueue.PRIORITY_BULK</code> so as not to delay 
+     * other output.<P>
+     *
+     * @param str string to write
+     * @param priority one of the <code>OutputQueue.PRIORITY_</code> constants
+     */
+    synchronized public void write(String str, int priority)
+    {
+	if( (str != null) && (serverOut != null) ) {
+	    outputQueue.output(str, priority);
+
+	    bytesWritten += str.length();
+	} else {
+	    Log.error(this, "write(): str = " + str + ", serverOut = " + serverOut);
+	}
+    } 
 }
 
 
@@ -0,0 +1,218 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.core;
+
+import irssibot.util.log.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes a user file in the background. The contents are written to a
+ * temporary file in the same directory, synced to disk and renamed over 
+ * the user file, so a crash during the write leaves the previous file 
+ * intact. If new contents are submitted while a write is in progress,
+ * only the latest contents are written after it.<P>
+ *
+ * All user files are written by a single shared writer thread.<P>
+ */
+class UserFileWriter
+{
+    /**
+     * Component info string to be returned by toString()
+     */
+    private static final String info = "UserFileWriter";
+    /**
+     * The shared writer thread
+     */
+    private static ExecutorService executor = 
+	Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+		    Thread thread = new Thread(task, info);
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+
+    /**
+     * The user file
+     */
+    private File file = null;
+    /**
+     * Contents waiting to be written, or null
+     */
+    private String pending = null;
+    /**
+     * Run after the pending contents have been written, or null
+     */
+    private Runnable pendingCallback = null;
+    /**
+     * Indicates whether a write task has been submitted and not finished
+     */
+    private boolean busy = false;
+    /**
+     * Number of files written
+     */
+    private int writeCount = 0;
+    /**
+     * Duration (ms) of the last write
+     */
+    private long lastWriteTime = 0;
+
+    /**
+     * Writes the pending contents until there are none.
+     */
+    private final Runnable writeTask = new Runnable() {
+	    public void run() {
+		drain();
+	    }
+	};
+
+    /**
+     * Constructs.<P>
+     *
+     * @param path path of the user file
+     */
+    UserFileWriter(String path)
+    {
+	file = new File(path);
+    }
+
+    public String toString() { return info + " (" + file + ")"; }
+
+    /**
+     * Queues contents for writing, replacing contents queued earlier 
+     * and not yet written. Returns right away.<P>
+     *
+     * @param contents the whole user file
+     * @param written run by the writer thread once the contents are on
+     * disk, or null. Not run if the contents are replaced or writing fails.
+     */
+    synchronized void submit(String contents, Runnable written)
+    {
+	pending = contents;
+	pendingCallback = written;
+	if ( !busy ) {
+	    busy = true;
+	    executor.execute(writeTask);
+	}
+    }
+
+    /**
+     * Waits until the queued contents have been written.<P>
+     */
+    synchronized void flush()
+    {
+	while ( busy ) {
+	    try {
+		wait();
+	    } catch ( InterruptedException e ) {
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Returns statistics, e.g. <code>"12 writes, last took 8 ms"</code>.<P>
+     */
+    synchronized String getStatistics()
+    {
+	return writeCount + " writes, last took " + lastWriteTime + " ms";
+    }
+
+    /**
+     * Writes pending contents until there are none. Run by the writer
+     * thread.<P>
+     */
+    private void drain()
+    {
+	while ( true ) {
+	    String contents = null;
+	    Runnable written = null;
+	    synchronized ( this ) {
+		if ( pending == null ) {
+		    busy = false;
+		    notifyAll();
+		    return;
+		}
+		contents = pending;
+		written = pendingCallback;
+		pending = null;
+		pendingCallback = null;
+	    }
+
+	    long start = System.currentTimeMillis();
+	    try {
+		write(contents);
+		if ( written != null ) {
+		    written.run();
+		}
+	    } catch ( IOException e ) {
+		Log.error(this, "drain(): failed to write user file: " + e.getMessage());
+	    }
+
+	    synchronized ( this ) {
+		writeCount++;
+		lastWriteTime = System.currentTimeMillis() - start;
+	    }
+	}
+    }
+
+    /**
+     * Writes contents to a temporary file and renames it over the user 
+     * file.<P>
+     *
+     * @param contents the whole user file
+     * @exception IOException if writing or renaming fails
+     */
+    private void write(String contents) throws IOException
+    {
+	File dir = file.getAbsoluteFile().getParentFile();
+	File tempFile = new File(dir, file.getName() + ".tmp");
+
+	FileOutputStream out = new FileOutputStream(tempFile);
+	try {
+	    Writer writer = new BufferedWriter(new OutputStreamWriter(out));
+	    writer.write(contents);
+	    writer.flush();
+	    out.getFD().sync();
+	} finally {
+	    out.close();
+	}
+
+	try {
+	    Files.move(tempFile.toPath(), file.toPath(), 
+		       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	} catch ( AtomicMoveNotSupportedException e ) {
+	    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+}
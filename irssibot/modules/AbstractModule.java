@@ -24,26 +24,34 @@ package irssibot.modules;
 
 import irssibot.protocol.*;
 import irssibot.core.*;
+import irssibot.config.ModuleData;
 import irssibot.util.log.Log;
 
-import java.util.Vector;
 import java.util.Properties;
 
 /**
  * Base class for all modules for IrssiBot. Implements some basic
  * functionality common for all modules. The module acts as a
  * 'consumer' for the bot core, who 'produces' IrcMessage objects
- * to the module's processing queue.
+ * to the module's processing queue.<P>
  *
+ * By default the module consumes its queue in a thread of its own. 
+ * With shared execution the queue is consumed by tasks run in the 
+ * ModuleExecutor instead, and the module's own thread is never started.
+ * In both cases messages are processed one at a time, in order.<P>
+ *
+ * @see ModuleExecutor
  * @author Matti Dahlbom
  * @version $Name:  $$Revision: 1.2 $ 
  */
 public abstract class AbstractModule extends Thread 
 {
     /**
-     * Vector containing MessageData objects waiting for processing.
+     * MessageData objects waiting for processing.
      */
-    private final Vector messageQueue = new Vector(10, 5);
+    private Mailbox mailbox = 
+	new Mailbox(ModuleData.DEFAULT_MAILBOX_CAPACITY, 
+		    ModuleData.OVERFLOW_DROP_OLDEST);
     /**
      * A lock object used for producer-consumer synchronization
      */
@@ -66,6 +74,37 @@ public abstract class AbstractModule extends Thread
    * The message causing the consumer exception.<P>
    */
   private IrcMessage consumerMessage = null;
+    /**
+     * Maximum number of messages processed by one shared execution task
+     * before giving other modules a turn.
+     */
+    private static final int SHARED_BATCH_SIZE = 32;
+    /**
+     * Whether the queue is consumed in the ModuleExecutor instead of
+     * this thread.
+     */
+    private boolean sharedExecution = false;
+    /**
+     * Whether processing has been started.
+     */
+    private boolean started = false;
+    /**
+     * Whether a shared execution task has been submitted and not yet
+     * finished.
+     */
+    private boolean drainScheduled = false;
+    /**
+     * The thread running the shared execution task, or null.
+     */
+    private Thread drainThread = null;
+    /**
+     * The shared execution task.
+     */
+    private final Runnable drainTask = new Runnable() {
+	    public void run() {
+		drainMailbox();
+	    }
+	};
 
     /**
      * Constructs with named thread.<P>
@@ -120,10 +159,102 @@ public abstract class AbstractModule extends Thread
 	/* do nothing */
     }
 
+    /**
+     * Returns the messages this module wants to receive. Called when the 
+     * module is added; messages not matching the subscription are not
+     * queued for the module. The default subscribes to all messages
+     * except numeric replies, which must be claimed separately.<P>
+     *
+     * @return subscription, or null for all messages
+     * @see irssibot.core.ModuleHandler#claimNumeric(int,AbstractModule)
+     */
+    public Subscription getSubscription()
+    {
+	return null;
+    }
+
+    /**
+     * Sets the size of the message queue and what to do when it is full.
+     * Messages already queued are kept, up to the new capacity.<P>
+     *
+     * @param capacity maximum number of messages waiting for processing
+     * @param overflowPolicy one of the <code>ModuleData.OVERFLOW_</code> constants
+     * @see irssibot.config.ModuleData
+     */
+    public final void setMailbox(int capacity, String overflowPolicy)
+    {
+	synchronized ( processLock ) {
+	    Mailbox newMailbox = new Mailbox(capacity, overflowPolicy);
+	    MessageData data = null;
+
+	    while ( (data = mailbox.poll()) != null ) {
+		newMailbox.offer(data);
+	    }
+	    mailbox = newMailbox;
+
+	    processLock.notifyAll();
+	}
+    }
+
+    /**
+     * Selects whether the message queue is consumed in the shared 
+     * ModuleExecutor instead of a thread of its own. Must be called 
+     * before startProcessing().<P>
+     *
+     * @param shared true for shared execution
+     * @exception IllegalStateException if processing has been started
+     */
+    public final void setSharedExecution(boolean shared)
+    {
+	synchronized ( processLock ) {
+	    if ( started ) {
+		throw new IllegalStateException("module already started");
+	    }
+	    sharedExecution = shared;
+	}
+    }
+
+    /**
+     * Returns true if the message queue is consumed in the shared 
+     * ModuleExecutor.<P>
+     */
+    public final boolean isSharedExecution()
+    {
+	return sharedExecution;
+    }
+
+    /**
+     * Starts processing queued messages, either by starting the module 
+     * thread or by scheduling on the shared executor.<P>
+     */
+    public final void startProcessing()
+    {
+	synchronized ( processLock ) {
+	    started = true;
+	    if ( sharedExecution ) {
+		scheduleDrain();
+		return;
+	    }
+	}
+
+	start();
+    }
+
+    /**
+     * Returns the message queue of this module, for inspecting its 
+     * counters.<P>
+     */
+    public final Mailbox getMailbox()
+    {
+	return mailbox;
+    }
+
     /**
      * Appends the new IrcMessage+ServerConnection pair to the end of the message queue. 
      * Access to the queue is synchronized. When a new message is added to the queue,
-     * the waiting consumer thread is notify()'ed.
+     * the waiting consumer thread is notify()'ed. If the queue is full, the 
+     * overflow policy of the queue decides which message is dropped, or 
+     * whether to wait for room.
      * 
      * @param message the IrcMessage to append to the message queue
      * @exception Exception thrown if an exception was thrown by the
@@ -140,10 +271,30 @@ public abstract class AbstractModule extends Thread
 		throw consumerException;
 	    }
 
+	    // wait for room if so configured 
+	    if ( mailbox.isFull() && 
+		 ModuleData.OVERFLOW_BLOCK.equals(mailbox.getOverflowPolicy()) ) {
+		mailbox.countBlocked();
+		while ( alive && mailbox.isFull() ) {
+		    try {
+			processLock.wait();
+		    } catch ( InterruptedException e ) {
+			// dont care
+		    }
+		}
+	    }
+
 	    // add the message at the end of the queue 
-	    messageQueue.add(new MessageData(message, serverConnection));
+	    MessageData dropped = mailbox.offer(new MessageData(message, serverConnection));
+	    if ( (dropped != null) && mailbox.markOverflowing() ) {
+		Log.info(this, "addMessage(): message queue full, dropping messages (" + 
+			 mailbox + ")");
+	    }
 
 	    // notify the consumer thread 
+	    if ( sharedExecution ) {
+		scheduleDrain();
+	    }
 	    processLock.notifyAll();
 	}
     }
@@ -159,7 +310,7 @@ public abstract class AbstractModule extends Thread
 	MessageData messageData = null;
 
 	synchronized ( processLock ) {
-	    while ( alive && (messageQueue.size() == 0) ) {
+	    while ( alive && mailbox.isEmpty() ) {
 		try {
 		    processLock.wait();
 		} catch ( InterruptedException e ) {
@@ -172,9 +323,76 @@ public abstract class AbstractModule extends Thread
 	    }
 
 	    // fetch & remove first message in queue 
-	    messageData = (MessageData)messageQueue.remove(0);
+	    messageData = mailbox.poll();
+
+	    // wake up producers waiting for room 
+	    processLock.notifyAll();
+	}
+
+	process(messageData);
+    } 
+
+    /**
+     * Submits the shared execution task unless already submitted. Must
+     * be called holding processLock.<P>
+     */
+    private void scheduleDrain()
+    {
+	if ( started && alive && !drainScheduled && !mailbox.isEmpty() ) {
+	    drainScheduled = true;
+	    ModuleExecutor.execute(drainTask);
+	}
+    }
+
+    /**
+     * Shared execution task. Processes up to SHARED_BATCH_SIZE queued
+     * messages and resubmits itself if more are left.<P>
+     */
+    private void drainMailbox()
+    {
+	synchronized ( processLock ) {
+	    drainThread = Thread.currentThread();
+	}
+
+	try {
+	    for ( int i = 0; i < SHARED_BATCH_SIZE; i++ ) {
+		MessageData messageData = null;
+
+		synchronized ( processLock ) {
+		    if ( !alive ) {
+			break;
+		    }
+		    messageData = mailbox.poll();
+		    if ( messageData == null ) {
+			break;
+		    }
+
+		    // wake up producers waiting for room 
+		    processLock.notifyAll();
+		}
+
+		process(messageData);
+	    }
+	} finally {
+	    synchronized ( processLock ) {
+		drainThread = null;
+		// clear an interrupt from killModule() before the thread is reused
+		Thread.interrupted();
+
+		drainScheduled = false;
+		scheduleDrain();
+	    }
 	}
-	    
+    }
+
+    /**
+     * Passes a message on to processMessage(). An exception is stored
+     * and thrown to the producer on the next addMessage().<P>
+     *
+     * @param messageData message to process
+     */
+    private void process(MessageData messageData)
+    {
 	try {
 	    processMessage(messageData.message, messageData.serverConnection);
 	} catch ( Exception e ) {
@@ -209,6 +427,10 @@ public abstract class AbstractModule extends Thread
       alive = false;
       
       interrupt();
+      if ( drainThread != null ) {
+	drainThread.interrupt();
+      }
+      processLock.notifyAll();
     }
   }
 
@@ -226,34 +448,3 @@ public abstract class AbstractModule extends Thread
 	Log.debug(this, "run(): module thread '" + getName() + "' exiting..");
     }
 }
-
-/**
- * Storage class for storing data about a IrcMessage and the
- * ServerConnection that sent it.
- *
- */
-class MessageData 
-{
-    /**
-     * The actual message
-     */
-    public IrcMessage message = null;
-    /**
-     * The connection from whom the message came from
-     */
-    public ServerConnection serverConnection = null;
-
-    public MessageData(IrcMessage message,ServerConnection serverConnection)
-    {
-	this.message = message;
-	this.serverConnection = serverConnection;
-    }
-}
-
-
-
-
-
-
-
-
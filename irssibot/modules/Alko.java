@@ -53,6 +53,15 @@ public class Alko extends AbstractModule {
     return moduleInfo;
   }
 
+  /**
+   * Receives the punkku command, privately or as !lines on channels.<P>
+   */
+  public Subscription getSubscription() {
+    Subscription subscription = new Subscription(new String[] { "PRIVMSG" });
+    subscription.setChannelTextPrefix("!");
+    return subscription;
+  }
+
   /**
    * Constructs.<P>
    *
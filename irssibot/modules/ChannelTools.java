@@ -194,6 +194,15 @@ public class ChannelTools extends AbstractModule
     return moduleInfo;
   }
 
+  /**
+   * Receives commands privately or as !lines on channels, plus JOINs and MODEs.<P>
+   */
+  public Subscription getSubscription() {
+    Subscription subscription = new Subscription(new String[] { "PRIVMSG", "JOIN", "MODE" });
+    subscription.setChannelTextPrefix("!");
+    return subscription;
+  }
+
   /**
    * Called upon loading the module.<P>
    *
@@ -722,7 +731,7 @@ public class ChannelTools extends AbstractModule
 		String banMask = (String)v.elementAt(j);
 		if( banMask.equalsIgnoreCase(target) ) {
 		    ModeQueueElement element = 
-			new ModeQueueElement(Irc.MODE_BAN,ModeQueueElement.PRIORITY_NORMAL,
+			new ModeQueueElement(Irc.MODE_BAN,ModeQueueElement.PRIORITY_IMMEDIATE,
 					     banMask,channel.getChannelName());
 		    caller.getOutputQueue().pushMode(element);
 		    
@@ -775,7 +784,7 @@ public class ChannelTools extends AbstractModule
 	  if ( !isSelf && ((opped == null) || !(opped.isOp(channelName))) ) {
 	    ModeQueueElement mode = 
 	      new ModeQueueElement(Irc.MODE_DEOP,
-				   ModeQueueElement.PRIORITY_NORMAL,
+				   ModeQueueElement.PRIORITY_IMMEDIATE,
 				   oppedHost.getNick(),
 				   channelName);
 	    caller.getOutputQueue().pushMode(mode);
@@ -973,8 +982,10 @@ public class ChannelTools extends AbstractModule
     } else {
       boolean joinFlood = checkJoinFlood(user, host, channel);
 
-      Log.debug(this, "doJoin(): checkJoinFlood() returned " + joinFlood + " for nick " + 
-		host.getNick() + " on channel " + channel.getChannelName());
+      if ( Log.isDebugEnabled(this) ) {
+	Log.debug(this, "doJoin(): checkJoinFlood() returned " + joinFlood + " for nick " + 
+		  host.getNick() + " on channel " + channel.getChannelName());
+      }
       
       if ( !joinFlood ) {
 	// enforce hostname lookup
@@ -141,6 +141,15 @@ public class HTMLTools extends AbstractModule {
 	return moduleInfo;
     }
 
+    /**
+     * Returns the messages handled by this module. All channel messages are scanned for URLs.<P>
+     */
+    public Subscription getSubscription()
+    {
+	Subscription subscription = new Subscription(new String[] { "PRIVMSG" });
+	return subscription;
+    }
+
     /**
      * Default constructor
      *
@@ -98,6 +98,16 @@ import java.sql.*;
  *
  * </pre>
  *
+ * Quotes are written to the database in the background, in batches of
+ * up to <code>batchsize</code> rows (module state, default 100) at 
+ * least every <code>flushinterval</code> ms (default 2000). At most 
+ * <code>maxbuffered</code> rows (default 5000) wait to be written; 
+ * when that many do, logging waits for the writer. Buffered quotes are 
+ * written before the quote commands read the database and when the 
+ * module is unloaded. Adding <code>rewriteBatchedStatements=true</code>
+ * to the JDBC URL makes MySQL Connector/J send each batch as one 
+ * multi-row INSERT.<p>
+ *
  * @author Matti Dahlbom
  * @version $Name:  $ $Revision: 1.1.1.1 $
  */
@@ -146,6 +156,31 @@ public class Logger extends AbstractModule
    * Database connection
    */
   private Connection connection = null;
+  /**
+   * Maximum number of quotes written in one batch
+   */
+  private int batchSize = 100;
+  /**
+   * Maximum time (ms) a quote waits to be written
+   */
+  private long flushInterval = 2000;
+  /**
+   * Maximum number of quotes waiting to be written
+   */
+  private int maxBuffered = 5000;
+  /**
+   * Writes quotes to the database in the background
+   */
+  private QuoteWriter quoteWriter = null;
+  /**
+   * Maximum number of cached nick ids
+   */
+  private static final int maxCachedNickIds = 10000;
+  /**
+   * Cache of nick ids. Maps nick table name and nick, separated by 
+   * a space, to nick_id (Integer).
+   */
+  private Hashtable nickIds = new Hashtable();
   /**
    * Reference to bot core
    */
@@ -182,6 +217,10 @@ public class Logger extends AbstractModule
 	props.setProperty("autonickjoin", "false");
       }
 
+      props.setProperty("batchsize", String.valueOf(batchSize));
+      props.setProperty("flushinterval", String.valueOf(flushInterval));
+      props.setProperty("maxbuffered", String.valueOf(maxBuffered));
+
       changed = false;
     }
     return props;
@@ -194,6 +233,14 @@ public class Logger extends AbstractModule
     return moduleInfo;
   }
 
+  /**
+   * Returns the messages handled by this module. All channel messages are logged.<P>
+   */
+  public Subscription getSubscription() {
+    Subscription subscription = new Subscription(new String[] { "PRIVMSG", "JOIN", "NICK" });
+    return subscription;
+  }
+
   /**
    * Disconnects from the database.<P>
    *
@@ -229,10 +276,28 @@ public class Logger extends AbstractModule
       if( tmp != null ) {
 	autoNickJoin = tmp.equalsIgnoreCase("true") ? true : false;
       }
+      try {
+	tmp = state.getProperty("batchsize");
+	if( tmp != null ) {
+	  batchSize = Math.max(1, Integer.parseInt(tmp));
+	}
+	tmp = state.getProperty("flushinterval");
+	if( tmp != null ) {
+	  flushInterval = Math.max(0, Long.parseLong(tmp));
+	}
+	tmp = state.getProperty("maxbuffered");
+	if( tmp != null ) {
+	  maxBuffered = Math.max(batchSize, Integer.parseInt(tmp));
+	}
+      } catch( NumberFormatException e ) {
+	Log.error(this, "onLoad(): bad batch settings: " + e.getMessage());
+      }
     } 
 
     //##TODO## fetch dateformat from core
 
+    quoteWriter = new QuoteWriter();
+
     return true;
   }
 
@@ -243,9 +308,28 @@ public class Logger extends AbstractModule
   public void onUnload() {
     Log.debug(this, "unUnload()");
 
+    closeQuoteWriter();
     closeConnection();
   }
 
+  /**
+   * Kills module thread after writing the buffered quotes. Called 
+   * without onUnload() when the bot quits.<P>
+   */
+  public void killModule() {
+    closeQuoteWriter();
+    super.killModule();
+  }
+
+  /**
+   * Writes the buffered quotes and stops the quote writer.<P>
+   */
+  private void closeQuoteWriter() {
+    if( quoteWriter != null ) {
+      quoteWriter.close();
+    }
+  }
+
   /**
      * Returns a string with non-alphanumerics removed
      * from the input.
@@ -270,7 +354,7 @@ public class Logger extends AbstractModule
       return ret;
   }
 
-  private boolean createQuoteTable(String tableName)
+  private boolean createQuoteTable(Connection connection, String tableName)
   {
     if( connection == null ) {
       return false;
@@ -559,8 +643,10 @@ public class Logger extends AbstractModule
       return;
     }
 
-    /* look for nick in network_nick table */
-    int nickId = getNickId(nick,nickTableName);
+    /* look for nick in cache and network_nick table */
+    String nickKey = nickTableName + " " + nick;
+    Integer cachedId = (Integer)nickIds.get(nickKey);
+    int nickId = (cachedId != null) ? cachedId.intValue() : getNickId(nick,nickTableName);
 
     /* if nick not found, insert it into network_alias and network_nick */
     if( nickId == -1 ) {
@@ -620,32 +706,15 @@ public class Logger extends AbstractModule
       }
     }	    
 
-    /* insert into quote table */
-    sql = 
-      "INSERT INTO " + quoteTableName + " (nick_id,quoteline,created) " +
-      "VALUES (?,?,?)"; 
-    cont = true;
-    retry = false;
-		
-    while( cont ) {
-      try {
-	pstmt = connection.prepareStatement(sql);
-	pstmt.setInt(1,nickId);
-	pstmt.setString(2,msg);
-	pstmt.setTimestamp(3,new Timestamp(new java.util.Date().getTime()));
-	pstmt.execute();
-	cont = false;
-      } catch( SQLException e ) {
-	e.printStackTrace();
-	if( retry ) {
-	  cont = false;
-	} else {
-	  /* if failed/quote table missing, attempt to create it */
-	  createQuoteTable(quoteTableName);
-	  retry = true;
-	}
+    if( (cachedId == null) && (nickId != -1) ) {
+      if( nickIds.size() >= maxCachedNickIds ) {
+	nickIds.clear();
       }
-    } 
+      nickIds.put(nickKey, Integer.valueOf(nickId));
+    }
+
+    /* queue for the quote table */
+    quoteWriter.add(quoteTableName, nickId, msg, new Timestamp(System.currentTimeMillis()));
   }
     
   /**
@@ -1105,6 +1174,9 @@ public class Logger extends AbstractModule
     if( user != null ) {
       /* bot needs to be ON channel */
       if( channel.isJoined() ) {
+	/* let commands see the quotes logged so far */
+	quoteWriter.flush();
+
 	/* select command */
 	if( cmd.equals("quote") ) {
 	  commandQuote(host,user,args,channel);
@@ -1279,14 +1351,337 @@ public class Logger extends AbstractModule
       caller.write("PRIVMSG "+source+" :"+message+"\n");
     } 
   }
-}
 
+  /**
+   * A quote waiting to be written.
+   */
+  private static class QuoteRow
+  {
+    String tableName;
+    int nickId;
+    String quote;
+    Timestamp created;
+
+    QuoteRow(String tableName, int nickId, String quote, Timestamp created) 
+    {
+      this.tableName = tableName;
+      this.nickId = nickId;
+      this.quote = quote;
+      this.created = created;
+    }
+  }
 
+  /**
+   * Writes quotes to the database in a thread of its own with a 
+   * connection of its own, as batched INSERTs. Quotes are written when 
+   * <code>batchSize</code> of them are waiting, when the first of them 
+   * has waited <code>flushInterval</code> ms, and when flushed.
+   */
+  private class QuoteWriter implements Runnable
+  {
+    /**
+     * Quotes waiting to be written (QuoteRow)
+     */
+    private Vector rows = new Vector();
+    /**
+     * Time (ms) the first of the waiting quotes was added
+     */
+    private long firstAdded = 0;
+    /**
+     * Number of quotes added
+     */
+    private long added = 0;
+    /**
+     * Number of quotes written or dropped
+     */
+    private long done = 0;
+    /**
+     * Indicates whether the waiting quotes should be written now
+     */
+    private boolean flushRequested = false;
+    /**
+     * Indicates whether the writer is stopping
+     */
+    private boolean closed = false;
+    /**
+     * The writer thread
+     */
+    private Thread thread = null;
+    /**
+     * Database connection of the writer thread
+     */
+    private Connection writerConnection = null;
+    /**
+     * Name of the database writerConnection is to
+     */
+    private String writerDbName = null;
+    /**
+     * Number of quotes written, dropped and batches written
+     */
+    private long written = 0;
+    private long dropped = 0;
+    private long batches = 0;
+
+    QuoteWriter()
+    {
+      thread = new Thread(this, "Logger quote writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
 
+    /**
+     * Queues a quote for writing, waiting for room if 
+     * <code>maxBuffered</code> quotes are waiting.
+     */
+    synchronized void add(String tableName, int nickId, String quote, Timestamp created)
+    {
+      while( !closed && (rows.size() >= maxBuffered) ) {
+	try {
+	  wait();
+	} catch( InterruptedException e ) {
+	  // module is being killed; let the row in
+	  Thread.currentThread().interrupt();
+	  break;
+	}
+      }
+      if( closed ) {
+	if( dropped++ == 0 ) {
+	  Log.error(Logger.this, "add(): quote writer closed, dropping quotes");
+	}
+	return;
+      }
 
+      rows.add(new QuoteRow(tableName, nickId, quote, created));
+      added++;
+      if( rows.size() == 1 ) {
+	// the writer starts timing flushInterval 
+	firstAdded = System.currentTimeMillis();
+	notifyAll();
+      } else if( rows.size() >= batchSize ) {
+	notifyAll();
+      }
+    }
 
+    /**
+     * Waits (up to 10 s) until the quotes added so far are written.
+     */
+    synchronized void flush()
+    {
+      long target = added;
+      long deadline = System.currentTimeMillis() + 10000;
+
+      flushRequested = true;
+      notifyAll();
+      while( (done < target) && thread.isAlive() ) {
+	long left = deadline - System.currentTimeMillis();
+	if( left <= 0 ) {
+	  Log.error(Logger.this, "flush(): timed out, " + (target - done) + 
+		    " quotes not yet written");
+	  return;
+	}
+	try {
+	  wait(left);
+	} catch( InterruptedException e ) {
+	  Thread.currentThread().interrupt();
+	  return;
+	}
+      }
+    }
 
+    /**
+     * Writes the waiting quotes and stops the writer thread. Waits up
+     * to 30 s for the writing to finish.
+     */
+    void close()
+    {
+      synchronized( this ) {
+	if( closed ) {
+	  return;
+	}
+	closed = true;
+	notifyAll();
+      }
 
+      try {
+	thread.join(30000);
+      } catch( InterruptedException e ) {
+	Thread.currentThread().interrupt();
+      }
+      Log.info(Logger.this, "quote writer stopped: " + written + " quotes written in " + 
+	       batches + " batches, " + dropped + " dropped");
+    }
 
+    public void run()
+    {
+      while( true ) {
+	Vector batch = null;
+
+	synchronized( this ) {
+	  while( true ) {
+	    if( rows.isEmpty() ) {
+	      if( closed ) {
+		closeWriterConnection();
+		return;
+	      }
+	      flushRequested = false;
+	      waitForRows(0);
+	      continue;
+	    }
 
+	    long wait = (firstAdded + flushInterval) - System.currentTimeMillis();
+	    if( closed || flushRequested || (rows.size() >= batchSize) || (wait <= 0) ) {
+	      break;
+	    }
+	    waitForRows(wait);
+	  }
+
+	  batch = rows;
+	  rows = new Vector();
+	  flushRequested = false;
+	  // room for the module thread 
+	  notifyAll();
+	}
+
+	writeBatch(batch);
+
+	synchronized( this ) {
+	  done += batch.size();
+	  notifyAll();
+	}
+      }
+    }
+
+    /**
+     * Waits for quotes to be added. Called with this locked.
+     *
+     * @param timeout time (ms) to wait, or 0 to wait until notified
+     */
+    private void waitForRows(long timeout)
+    {
+      try {
+	wait(timeout);
+      } catch( InterruptedException e ) {
+	// stopped by close() 
+      }
+    }
+
+    /**
+     * Writes quotes grouped by table.
+     */
+    private void writeBatch(Vector batch)
+    {
+      Hashtable byTable = new Hashtable();
+      Vector tableNames = new Vector();
+      for( int i = 0; i < batch.size(); i++ ) {
+	QuoteRow row = (QuoteRow)batch.elementAt(i);
+	Vector tableRows = (Vector)byTable.get(row.tableName);
+	if( tableRows == null ) {
+	  tableRows = new Vector();
+	  byTable.put(row.tableName, tableRows);
+	  tableNames.add(row.tableName);
+	}
+	tableRows.add(row);
+      }
 
+      for( int i = 0; i < tableNames.size(); i++ ) {
+	String tableName = (String)tableNames.elementAt(i);
+	writeRows(tableName, (Vector)byTable.get(tableName));
+      }
+    }
+
+    /**
+     * Writes quotes to a quote table as batched INSERTs of at most 
+     * <code>batchSize</code> rows. If writing fails, reconnects, 
+     * creates the table in case it is missing and tries once more 
+     * with the batches that were not yet written; if that fails, the 
+     * remaining quotes are dropped.
+     */
+    private void writeRows(String tableName, Vector tableRows)
+    {
+      String sql = 
+	"INSERT INTO " + tableName + " (nick_id,quoteline,created) " +
+	"VALUES (?,?,?)"; 
+      int size = tableRows.size();
+      /* rows before this index have been written */
+      int done = 0;
+
+      for( int attempt = 0; attempt < 2; attempt++ ) {
+	try {
+	  Connection c = getWriterConnection();
+	  if( c == null ) {
+	    throw new SQLException("no database connection");
+	  }
+	  if( attempt > 0 ) {
+	    createQuoteTable(c, tableName);
+	  }
+
+	  PreparedStatement pstmt = c.prepareStatement(sql);
+	  try {
+	    while( done < size ) {
+	      int end = Math.min(done + batchSize, size);
+	      for( int i = done; i < end; i++ ) {
+		QuoteRow row = (QuoteRow)tableRows.elementAt(i);
+		pstmt.setInt(1,row.nickId);
+		pstmt.setString(2,row.quote);
+		pstmt.setTimestamp(3,row.created);
+		pstmt.addBatch();
+	      }
+	      pstmt.executeBatch();
+	      batches++;
+	      written += end - done;
+	      done = end;
+	    }
+	  } finally {
+	    pstmt.close();
+	  }
+	  return;
+	} catch( SQLException e ) {
+	  if( attempt == 0 ) {
+	    Log.debug(Logger.this, "writeRows(): " + tableName + ": " + e.getMessage() + 
+		      ", retrying");
+	    closeWriterConnection();
+	  } else {
+	    Log.error(Logger.this, "writeRows(): dropped " + (size - done) + 
+		      " quotes for " + tableName + ": " + e.getMessage());
+	    synchronized( this ) {
+	      dropped += size - done;
+	    }
+	  }
+	}
+      }
+    }
+
+    /**
+     * Returns the connection of the writer thread, connecting if needed.
+     */
+    private Connection getWriterConnection() throws SQLException
+    {
+      String name = dbName;
+      if( (writerConnection != null) && 
+	  (writerConnection.isClosed() || !name.equals(writerDbName)) ) {
+	closeWriterConnection();
+      }
+      if( writerConnection == null ) {
+	writerConnection = core.getDatabaseConnection(name);
+	writerDbName = name;
+      }
+
+      return writerConnection;
+    }
+
+    /**
+     * Closes the connection of the writer thread.
+     */
+    private void closeWriterConnection()
+    {
+      try {
+	if( writerConnection != null ) {
+	  writerConnection.close();
+	}
+      } catch( SQLException e ) {
+	// dont care
+      }
+      writerConnection = null;
+    }
+  }
+}
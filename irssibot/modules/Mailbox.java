@@ -0,0 +1,232 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.modules;
+
+import irssibot.config.ModuleData;
+import irssibot.protocol.*;
+
+/**
+ * Bounded queue of messages waiting to be processed by a module. Kept 
+ * in a ring buffer; what happens when it is full is decided by the 
+ * overflow policy.<P>
+ *
+ * Not synchronized; <code>AbstractModule</code> guards access.<P>
+ *
+ * @see irssibot.config.ModuleData
+ */
+public class Mailbox 
+{
+    private MessageData ring[] = null;
+    /**
+     * Index of the oldest message.
+     */
+    private int head = 0;
+    private int size = 0;
+    private String overflowPolicy = null;
+
+    /**
+     * Number of messages accepted to the mailbox.
+     */
+    private long queued = 0;
+    /**
+     * Number of messages dropped because the mailbox was full.
+     */
+    private long dropped = 0;
+    /**
+     * Number of times a producer had to wait for room.
+     */
+    private long blocked = 0;
+    /**
+     * Largest number of messages waiting at a time.
+     */
+    private int peakSize = 0;
+    /**
+     * Set when messages start getting dropped, cleared when the mailbox
+     * has drained to half.
+     */
+    private boolean overflowing = false;
+
+    /**
+     * Constructs.<P>
+     *
+     * @param capacity maximum number of messages
+     * @param overflowPolicy one of the <code>ModuleData.OVERFLOW_</code> 
+     * constants
+     */
+    Mailbox(int capacity, String overflowPolicy)
+    {
+	ring = new MessageData[capacity];
+	this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds a message. If the mailbox is full, a message is dropped 
+     * according to the overflow policy. With <code>OVERFLOW_BLOCK</code>
+     * the caller must wait until the mailbox is not full; if it does 
+     * not, the oldest message is dropped.<P>
+     *
+     * @param data message to add
+     * @return the dropped message or null if none
+     */
+    MessageData offer(MessageData data)
+    {
+	MessageData drop = null;
+
+	if( size == ring.length ) {
+	    if( ModuleData.OVERFLOW_DROP_NEWEST.equals(overflowPolicy) ) {
+		dropped++;
+		return data;
+	    } else if( ModuleData.OVERFLOW_COALESCE.equals(overflowPolicy) ) {
+		drop = removeSameChannel(data);
+	    }
+
+	    if( drop == null ) {
+		drop = poll();
+	    }
+	    dropped++;
+	}
+
+	ring[(head + size) % ring.length] = data;
+	size++;
+	queued++;
+	if( size > peakSize ) {
+	    peakSize = size;
+	}
+
+	return drop;
+    }
+
+    /**
+     * Removes and returns the oldest message.<P>
+     *
+     * @return the message or null if empty
+     */
+    MessageData poll()
+    {
+	if( size == 0 ) {
+	    return null;
+	}
+
+	MessageData data = ring[head];
+	ring[head] = null;
+	head = (head + 1) % ring.length;
+	size--;
+
+	if( overflowing && (size <= (ring.length / 2)) ) {
+	    overflowing = false;
+	}
+
+	return data;
+    }
+
+    /**
+     * Removes the oldest message to the same channel on the same 
+     * connection as data.
+     *
+     * @return removed message, or null if none
+     */
+    private MessageData removeSameChannel(MessageData data)
+    {
+	String channel = getChannel(data.message);
+	if( channel == null ) {
+	    return null;
+	}
+
+	for( int i = 0; i < size; i++ ) {
+	    int index = (head + i) % ring.length;
+	    MessageData queuedData = ring[index];
+
+	    if( (queuedData.serverConnection == data.serverConnection) && 
+		channel.equalsIgnoreCase(getChannel(queuedData.message)) ) {
+		// close the gap
+		for( int j = i; j < size - 1; j++ ) {
+		    ring[(head + j) % ring.length] = ring[(head + j + 1) % ring.length];
+		}
+		ring[(head + size - 1) % ring.length] = null;
+		size--;
+		return queuedData;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Returns the channel a message was sent to, or null if not sent 
+     * to a channel.
+     *
+     */
+    private static String getChannel(IrcMessage message)
+    {
+	if( message instanceof JoinMessage ) {
+	    return ((JoinMessage)message).getJoinedChannelName();
+	}
+
+	String arguments[] = message.getArguments();
+	if( (arguments != null) && Irc.isChannelName(arguments[0]) ) {
+	    return arguments[0];
+	}
+
+	return null;
+    }
+
+    /**
+     * Marks the mailbox as dropping messages.<P>
+     *
+     * @return true if it was not already marked, ie. this is the first
+     * drop since the mailbox last drained
+     */
+    boolean markOverflowing()
+    {
+	boolean first = !overflowing;
+	overflowing = true;
+	return first;
+    }
+
+    /**
+     * Counts a producer having to wait for room.<P>
+     */
+    void countBlocked()
+    {
+	blocked++;
+    }
+
+    boolean isEmpty() { return size == 0; }
+    boolean isFull() { return size == ring.length; }
+
+    public int size() { return size; }
+    public int getCapacity() { return ring.length; }
+    public String getOverflowPolicy() { return overflowPolicy; }
+    public long getQueuedCount() { return queued; }
+    public long getDroppedCount() { return dropped; }
+    public long getBlockedCount() { return blocked; }
+    public int getPeakSize() { return peakSize; }
+
+    /**
+     * Returns the mailbox state and counters as a string.<P>
+     */
+    public String toString()
+    {
+	return "mailbox " + size + "/" + ring.length + " (" + overflowPolicy + 
+	    "), queued " + queued + ", dropped " + dropped + 
+	    ", blocked " + blocked + ", peak " + peakSize;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.modules;
+
+import irssibot.protocol.IrcMessage;
+import irssibot.core.ServerConnection;
+
+/**
+ * Storage class for storing data about a IrcMessage and the
+ * ServerConnection that sent it.
+ *
+ */
+class MessageData 
+{
+    /**
+     * The actual message
+     */
+    public IrcMessage message = null;
+    /**
+     * The connection from whom the message came from
+     */
+    public ServerConnection serverConnection = null;
+
+    public MessageData(IrcMessage message,ServerConnection serverConnection)
+    {
+	this.message = message;
+	this.serverConnection = serverConnection;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.modules;
+
+import irssibot.util.log.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared executor for modules configured with <code>execution="shared"</code>.
+ * Such modules do not run a thread of their own; their queued messages 
+ * are processed by tasks submitted here. A module has at most one task 
+ * submitted at a time, so its messages are still processed one at a 
+ * time and in order.<P>
+ *
+ * Uses a virtual thread per task if the JVM has them, so that modules
+ * blocking on network or database calls do not tie up platform threads.
+ * Otherwise a fixed pool of daemon threads is used; its size is set with 
+ * <code>setPoolSize()</code> before the first module is started.<P>
+ */
+public class ModuleExecutor
+{
+    /**
+     * Component info string to be returned by toString()
+     */
+    private static final String info = "ModuleExecutor";
+    /**
+     * Number of pool threads if virtual threads are not available.
+     */
+    private static int poolSize = Runtime.getRuntime().availableProcessors();
+    /**
+     * The executor, created when first needed.
+     */
+    private static ExecutorService executor = null;
+    /**
+     * Describes the kind of executor in use.
+     */
+    private static String description = "not started";
+    /**
+     * Number of pool threads created, for naming them.
+     */
+    private static int threadCount = 0;
+
+    /**
+     * Sets the number of pool threads used if virtual threads are not
+     * available. Has no effect after the executor has been started.<P>
+     *
+     * @param size number of threads
+     * @exception IllegalArgumentException if size is less than 1
+     */
+    public static synchronized void setPoolSize(int size) 
+    {
+	if ( size < 1 ) {
+	    throw new IllegalArgumentException("pool size must be at least 1");
+	}
+	poolSize = size;
+    }
+
+    /**
+     * Returns the number of pool threads.<P>
+     */
+    public static synchronized int getPoolSize() 
+    {
+	return poolSize;
+    }
+
+    /**
+     * Returns a description of the executor, for example 
+     * <code>"virtual threads"</code>.<P>
+     */
+    public static synchronized String getDescription()
+    {
+	return description;
+    }
+
+    /**
+     * Runs a task in the shared executor.<P>
+     *
+     * @param task task to run
+     */
+    static void execute(Runnable task)
+    {
+	getExecutor().execute(task);
+    }
+
+    /**
+     * Returns the executor, creating it on first call.<P>
+     */
+    private static synchronized ExecutorService getExecutor()
+    {
+	if ( executor != null ) {
+	    return executor;
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() if the JVM has it
+	try {
+	    Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", 
+						      new Class[0]);
+	    executor = (ExecutorService)method.invoke(null, new Object[0]);
+	    description = "virtual threads";
+	} catch ( Exception e ) {
+	    executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+		    public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, info + "-" + threadCount++);
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	    description = poolSize + " pool threads";
+	}
+
+	Log.info(info, "getExecutor(): started with " + description);
+
+	return executor;
+    }
+}
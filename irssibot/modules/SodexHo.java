@@ -81,6 +81,15 @@ public class SodexHo extends AbstractModule
     return moduleInfo;
   }
 
+  /**
+   * Receives the sodexho and list commands, privately or as !lines on channels.<P>
+   */
+  public Subscription getSubscription() {
+    Subscription subscription = new Subscription(new String[] { "PRIVMSG" });
+    subscription.setChannelTextPrefix("!");
+    return subscription;
+  }
+
   public boolean onLoad(Properties state,Core core)
   {
     return true;
@@ -0,0 +1,144 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.modules;
+
+import irssibot.protocol.*;
+
+import java.util.Vector;
+
+/**
+ * Describes which messages a module wants to receive. Returned by
+ * <code>AbstractModule.getSubscription()</code>; messages not matching 
+ * are never queued for the module.<P>
+ *
+ * A subscription lists the commands to receive. It may further limit 
+ * channel messages to given channels, and PRIVMSGs and NOTICEs to
+ * channels to those whose text starts with a given prefix, such as 
+ * <code>"!"</code> for modules only acting on <code>!command</code>s. 
+ * Messages not sent to a channel, such as private messages to the bot, 
+ * QUIT and NICK, are not affected by these limits.<P>
+ *
+ * @see AbstractModule#getSubscription()
+ */
+public class Subscription 
+{
+    /**
+     * Opcodes of subscribed commands.
+     */
+    private int opcodes[] = null;
+    /**
+     * Lower case names of subscribed channels, or null for all.
+     */
+    private Vector channels = null;
+    /**
+     * Required start of channel PRIVMSG and NOTICE texts, or null.
+     */
+    private String channelTextPrefix = null;
+
+    /**
+     * Constructs a subscription to commands.<P>
+     *
+     * @param commands command names, for example <code>{ "PRIVMSG", "JOIN" }</code>
+     * @exception IllegalArgumentException if a command is not known
+     */
+    public Subscription(String commands[])
+    {
+	opcodes = new int[commands.length];
+	for( int i = 0; i < commands.length; i++ ) {
+	    opcodes[i] = Irc.getOpcode(commands[i]);
+	    if( opcodes[i] <= Irc.MAX_NUMERIC ) {
+		throw new IllegalArgumentException("Unknown command: " + commands[i]);
+	    }
+	}
+    }
+
+    /**
+     * Limits channel messages to given channels.<P>
+     *
+     * @param channelNames names of channels
+     */
+    public void setChannels(String channelNames[])
+    {
+	channels = new Vector(channelNames.length);
+	for( int i = 0; i < channelNames.length; i++ ) {
+	    channels.add(channelNames[i].toLowerCase());
+	}
+    }
+
+    /**
+     * Limits PRIVMSGs and NOTICEs to channels to those starting with 
+     * prefix.<P>
+     *
+     * @param prefix required start of message text
+     */
+    public void setChannelTextPrefix(String prefix)
+    {
+	channelTextPrefix = prefix;
+    }
+
+    /**
+     * Returns opcodes of the subscribed commands.<P>
+     */
+    public int[] getOpcodes()
+    {
+	return opcodes;
+    }
+
+    /**
+     * Checks a message of a subscribed command against the channel
+     * and text limits.<P>
+     *
+     * @param message message to check
+     * @return true if the message should be delivered
+     */
+    public boolean accepts(IrcMessage message)
+    {
+	if( (channels == null) && (channelTextPrefix == null) ) {
+	    return true;
+	}
+
+	String channel = null;
+	if( message instanceof JoinMessage ) {
+	    channel = ((JoinMessage)message).getJoinedChannelName();
+	} else {
+	    String arguments[] = message.getArguments();
+	    if( (arguments != null) && Irc.isChannelName(arguments[0]) ) {
+		channel = arguments[0];
+	    }
+	}
+	if( channel == null ) {
+	    return true;
+	}
+
+	if( (channels != null) && !channels.contains(channel.toLowerCase()) ) {
+	    return false;
+	}
+
+	int opcode = message.getOpcode();
+	if( (channelTextPrefix != null) && 
+	    ((opcode == Irc.OP_PRIVMSG) || (opcode == Irc.OP_NOTICE)) ) {
+	    String trailing = message.getTrailing();
+	    return (trailing != null) && trailing.startsWith(channelTextPrefix);
+	}
+
+	return true;
+    }
+}
@@ -249,6 +249,16 @@ public class TopicTools /*implements Module */extends AbstractModule
 	return moduleInfo;
     }
 
+    /**
+     * Receives the topic commands, privately or as !lines on channels.<P>
+     */
+    public Subscription getSubscription()
+    {
+	Subscription subscription = new Subscription(new String[] { "PRIVMSG" });
+	subscription.setChannelTextPrefix("!");
+	return subscription;
+    }
+
     /**
      * combine topics and send channel topic to server
      *
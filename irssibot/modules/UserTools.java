@@ -65,6 +65,16 @@ public class UserTools extends AbstractModule
 	return moduleInfo;
     }
 
+    /**
+     * Receives the user commands, privately or as !lines on channels.<P>
+     */
+    public Subscription getSubscription()
+    {
+	Subscription subscription = new Subscription(new String[] { "PRIVMSG" });
+	subscription.setChannelTextPrefix("!");
+	return subscription;
+    }
+
     public boolean onLoad(Properties state, Core core)
     {
       this.core = core;
@@ -184,7 +194,7 @@ public class UserTools extends AbstractModule
 			user.addHost(newHost);
 			write("Added new host " + newHost.toString() + 
 			      " to user " + user.getName() + "." + notice);
-			caller.notifyUserDataChanged();
+			caller.notifyUserDataChanged(user);
 		      } else {
 			write("Invalid hostmask " + args[2]);
 		      }
@@ -207,7 +217,7 @@ public class UserTools extends AbstractModule
 		    caller.addUser(user);
 
 		    write("Added user " + user.getName() + ".");
-		    caller.notifyUserDataChanged();
+		    caller.notifyUserDataChanged(user);
 		}
 	    }
 	}
@@ -243,13 +253,13 @@ public class UserTools extends AbstractModule
 			chanInfo.processChannelFlagsString(flagsStr);
 		    }
 		    write("Channel flags are now: "+user.getChannelFlags(channel.getChannelName())+".");
-		    caller.notifyUserDataChanged();
+		    caller.notifyUserDataChanged(user);
 		} else if( args[0].equals("globalflags") ) {
 		    /* handle global flags */
 		    if( invoker.isGlobalAdmin() ) {
 			user.processGlobalFlagsString(flagsStr);
 			write("Global flags are now: "+user.getGlobalFlags()+".");
-			caller.notifyUserDataChanged();
+			caller.notifyUserDataChanged(user);
 		    }
 		}
 	    }
@@ -267,7 +277,7 @@ public class UserTools extends AbstractModule
 			} else {
 			    user.setPassword(args[2]);
 			    write("Changed password for user "+user.getName()+".");
-			    caller.notifyUserDataChanged();
+			    caller.notifyUserDataChanged(user);
 			}
 		    }
 		}
@@ -296,7 +306,7 @@ public class UserTools extends AbstractModule
 		if( invoker.isGlobalAdmin() ) {
 		    if( caller.delUser(user) ) {
 			write("Deleted user "+userName);
-			caller.notifyUserDataChanged();
+			caller.notifyUserDataChanged(user);
 		    }
 		} else if( invoker.isChanAdmin(channel.getChannelName()) ) {
 		    /* chan admin; only remove channel info from user */
@@ -305,7 +315,7 @@ public class UserTools extends AbstractModule
 			if( user.getNumChannels() < 1 )
 			    caller.delUser(user);
 			write("Deleted user "+userName);
-			caller.notifyUserDataChanged();
+			caller.notifyUserDataChanged(user);
 		    }
 		}
 	    }
@@ -319,7 +329,7 @@ public class UserTools extends AbstractModule
 
 			if( user.delHost(hostMask) ) {
 			    write("Deleted hostmask "+maskStr+" from user "+user.getName()+".");
-			    caller.notifyUserDataChanged();
+			    caller.notifyUserDataChanged(user);
 			}
 		    }
 		}
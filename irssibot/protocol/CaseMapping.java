@@ -0,0 +1,137 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.protocol;
+
+/**
+ * Case mapping used by an IRC server to compare nicks and channel names,
+ * as advertised by the <code>CASEMAPPING</code> token of RPL_ISUPPORT 
+ * (005).<P>
+ *
+ * In <code>rfc1459</code> mapping the characters <code>[]\^</code> are
+ * the upper case equivalents of <code>{}|~</code>. In 
+ * <code>strict-rfc1459</code> the <code>^~</code> pair is excluded, and
+ * <code>ascii</code> maps only letters A-Z.<P>
+ */
+public final class CaseMapping {
+  public static final CaseMapping ASCII = new CaseMapping("ascii", 'Z');
+  public static final CaseMapping RFC1459 = new CaseMapping("rfc1459", '^');
+  public static final CaseMapping STRICT_RFC1459 = 
+    new CaseMapping("strict-rfc1459", ']');
+
+  /**
+   * Name as in CASEMAPPING token.
+   */
+  private String name = null;
+  /**
+   * Last upper case character. Characters from 'A' up to this one 
+   * are mapped to lower case by adding 32.
+   */
+  private char upperLimit = 'Z';
+
+  private CaseMapping(String name, char upperLimit) {
+    this.name = name;
+    this.upperLimit = upperLimit;
+  }
+
+  /**
+   * Returns the case mapping for a CASEMAPPING token value. Unknown 
+   * mappings default to <code>rfc1459</code>, as do servers that do not
+   * advertise one.<P>
+   *
+   * @param name CASEMAPPING value
+   * @return case mapping
+   */
+  public static CaseMapping forName(String name) {
+    if ( ASCII.name.equalsIgnoreCase(name) ) {
+      return ASCII;
+    } else if ( STRICT_RFC1459.name.equalsIgnoreCase(name) ) {
+      return STRICT_RFC1459;
+    } else {
+      return RFC1459;
+    }
+  }
+
+  /**
+   * Returns the lower case form of a nick or channel name in this
+   * mapping. Suitable as a hash key. The argument is returned as such 
+   * if it is already in lower case.<P>
+   *
+   * @param s nick or channel name
+   * @return lower case form
+   */
+  public String toLowerCase(String s) {
+    int length = s.length();
+    int i = 0;
+
+    while ( (i < length) && !isUpper(s.charAt(i)) ) {
+      i++;
+    }
+    if ( i == length ) {
+      return s;
+    }
+
+    char chars[] = s.toCharArray();
+    for ( ; i < length; i++ ) {
+      if ( isUpper(chars[i]) ) {
+	chars[i] += 32;
+      }
+    }
+
+    return new String(chars);
+  }
+
+  /**
+   * Compares two nicks or channel names in this mapping.<P>
+   *
+   * @return true if equal
+   */
+  public boolean equals(String a, String b) {
+    int length = a.length();
+    if ( length != b.length() ) {
+      return false;
+    }
+
+    for ( int i = 0; i < length; i++ ) {
+      char ca = a.charAt(i);
+      char cb = b.charAt(i);
+      if ( (ca != cb) && (toLower(ca) != toLower(cb)) ) {
+	return false;
+      }
+    }
+
+    return true;
+  }
+
+  private boolean isUpper(char c) {
+    return (c >= 'A') && (c <= upperLimit);
+  }
+
+  private char toLower(char c) {
+    return isUpper(c) ? (char)(c + 32) : c;
+  }
+
+  /**
+   * Returns the name of the mapping.<P>
+   */
+  public String toString() {
+    return name;
+  }
+}
@@ -22,6 +22,8 @@
  */
 package irssibot.protocol;
 
+import java.util.Hashtable;
+
 /**
  * Includes a collection of static constants, messages and such things 
  * related to the IRC protocol.<P>
@@ -42,6 +44,7 @@ public final class Irc
     public static final String RPL_YOURHOST         = "002";
     public static final String RPL_CREATED          = "003";
     public static final String RPL_MYINFO           = "004";
+    public static final String RPL_ISUPPORT         = "005";
 
     public static final String RPL_ENDOFMOTD        = "376";
     public static final String RPL_MOTD             = "372";
@@ -61,6 +64,66 @@ public final class Irc
     public static final String RPL_TOPIC            = "332";
 
     public static final String RPL_CHANNELMODEIS    = "324";
+
+    /*
+     * Command opcodes. Numeric replies use their numeric value as 
+     * opcode, named commands are numbered above MAX_NUMERIC.
+     */
+    public static final int OP_UNKNOWN              = -1;
+    public static final int MAX_NUMERIC             = 999;
+    // named commands 
+    public static final int OP_PRIVMSG              = 1000;
+    public static final int OP_NOTICE               = 1001;
+    public static final int OP_JOIN                 = 1002;
+    public static final int OP_PART                 = 1003;
+    public static final int OP_MODE                 = 1004;
+    public static final int OP_TOPIC                = 1005;
+    public static final int OP_KICK                 = 1006;
+    public static final int OP_QUIT                 = 1007;
+    public static final int OP_NICK                 = 1008;
+    public static final int OP_INVITE               = 1009;
+    public static final int OP_PING                 = 1010;
+    public static final int OP_PONG                 = 1011;
+    public static final int OP_ERROR                = 1012;
+    // error replies 
+    public static final int OP_ERR_NONICKNAMEGIVEN  = 431;
+    public static final int OP_ERR_ERRONEUSNICKNAME = 432;
+    public static final int OP_ERR_NICKNAMEINUSE    = 433;
+    public static final int OP_ERR_UNAVAILRESOURCE  = 437;
+    // command responses 
+    public static final int OP_RPL_WELCOME          = 1;
+    public static final int OP_RPL_YOURHOST         = 2;
+    public static final int OP_RPL_CREATED          = 3;
+    public static final int OP_RPL_MYINFO           = 4;
+    public static final int OP_RPL_ISUPPORT         = 5;
+    public static final int OP_RPL_ENDOFMOTD        = 376;
+    public static final int OP_RPL_MOTD             = 372;
+    public static final int OP_RPL_MOTDSTART        = 375;
+    public static final int OP_RPL_BANLIST          = 367;
+    public static final int OP_RPL_ENDOFBANLIST     = 368;
+    public static final int OP_RPL_NAMREPLY         = 353;
+    public static final int OP_RPL_ENDOFNAMES       = 366;
+    public static final int OP_RPL_WHOISUSER        = 311;
+    public static final int OP_RPL_WHOREPLY         = 352;
+    public static final int OP_RPL_ENDOFWHO         = 315;
+    public static final int OP_RPL_USERHOST         = 302;
+    public static final int OP_RPL_TOPIC            = 332;
+    public static final int OP_RPL_CHANNELMODEIS    = 324;
+
+    /**
+     * Named commands by opcode, and opcodes by name.
+     */
+    private static final String commandNames[] = { 
+	"PRIVMSG", "NOTICE", "JOIN", "PART", "MODE", "TOPIC", "KICK", 
+	"QUIT", "NICK", "INVITE", "PING", "PONG", "ERROR" 
+    };
+    private static final Hashtable commandOpcodes = new Hashtable();
+
+    static {
+	for ( int i = 0; i < commandNames.length; i++ ) {
+	    commandOpcodes.put(commandNames[i], Integer.valueOf(OP_PRIVMSG + i));
+	}
+    }
     /**
      * op status granted (+o)
      */
@@ -117,4 +180,81 @@ public final class Irc
      * channel limit removed (-l) <b>NOTE:</b> has not target.
      */
     public static final int MODE_LIMIT_REMOVED = 14;
+
+    /**
+     * Resolves a command to its opcode. Three digit numeric replies
+     * resolve to their numeric value.<P>
+     *
+     * @param command command part of a message
+     * @return opcode, or OP_UNKNOWN if command is not known
+     */
+    public static int getOpcode(String command)
+    {
+	if ( command.length() == 3 ) {
+	    int value = 0;
+	    int i = 0;
+	    for ( ; i < 3; i++ ) {
+		char c = command.charAt(i);
+		if ( (c < '0') || (c > '9') ) {
+		    break;
+		}
+		value = (value * 10) + (c - '0');
+	    }
+	    if ( i == 3 ) {
+		return value;
+	    }
+	}
+
+	Integer opcode = (Integer)commandOpcodes.get(command);
+	if ( opcode != null ) {
+	    return opcode.intValue();
+	} else {
+	    return OP_UNKNOWN;
+	}
+    }
+
+    /**
+     * Returns the shared name instance of a named command.<P>
+     *
+     * @param opcode opcode of a named command
+     * @return command name, or null if opcode is not a named command
+     */
+    public static String getCommandName(int opcode)
+    {
+	int index = opcode - OP_PRIVMSG;
+	if ( (index >= 0) && (index < commandNames.length) ) {
+	    return commandNames[index];
+	} else {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the number of named commands. Their opcodes are 
+     * <code>OP_PRIVMSG</code> to <code>OP_PRIVMSG + getCommandCount() - 1</code>.<P>
+     */
+    public static int getCommandCount()
+    {
+	return commandNames.length;
+    }
+
+    /**
+     * Checks if a message target is a channel name.<P>
+     *
+     * @param target a nick or channel name
+     * @return true if target starts with a channel prefix character
+     */
+    public static boolean isChannelName(String target)
+    {
+	return (target != null) && (target.length() > 0) && 
+	    ("#&+!".indexOf(target.charAt(0)) != -1);
+    }
+
+    /**
+     * Returns true if opcode is that of a numeric reply.<P>
+     */
+    public static boolean isNumeric(int opcode)
+    {
+	return (opcode >= 0) && (opcode <= MAX_NUMERIC);
+    }
 }
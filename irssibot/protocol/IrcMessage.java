@@ -22,8 +22,7 @@
  */
 package irssibot.protocol;
 
-import java.util.StringTokenizer;
-import java.util.Vector;
+import java.nio.charset.Charset;
 
 /**
  * Represents an IRC protocol message from server.<P>
@@ -34,11 +33,23 @@ import java.util.Vector;
  * params     =  *14( SPACE middle ) [ SPACE ":" trailing ]
  * </pre>
  *
+ * Parsing only records where the parts are in the raw message; the 
+ * prefix, arguments and trailing part are extracted on first access.
+ * A message parsed from bytes keeps the bytes and decodes only the 
+ * parts asked for.<P>
+ *
  * @author Matti Dahlbom
  * @version $Name:  $ $Revision: 1.2 $
  * @see RFC2812: IRC Client Protocol 
  */
 public class IrcMessage {
+  /**
+   * Flags for parts not yet extracted from the raw message.
+   */
+  private static final int PENDING_PREFIX = 1;
+  private static final int PENDING_ARGUMENTS = 2;
+  private static final int PENDING_TRAILING = 4;
+
   /**
      * Prefix part of the message, or <b>null</b> if none supplied.
      */
@@ -47,6 +58,10 @@ public class IrcMessage {
      * Command part of the message
      */
   protected String command = null;
+  /**
+   * Opcode of the command, as resolved by <code>Irc.getOpcode()</code>.
+   */
+  protected int opcode = Irc.OP_UNKNOWN;
   /**
      * Parameters of the message, or <b>null</b> if none supplied.
      */
@@ -56,9 +71,41 @@ public class IrcMessage {
      */
   protected String trailing = null;
   /**
-   * The original actual message string.
+   * The original actual message string. Decoded when first asked for
+   * if the message was parsed from bytes.
    */
   protected String raw = null; 
+  /**
+   * The raw message as bytes, or null if parsed from a string.
+   */
+  private byte data[] = null;
+  /**
+   * Charset the bytes are decoded with.
+   */
+  private Charset charset = null;
+  /**
+   * Parts not yet extracted from the raw message. The same message is
+   * read by several module threads, so it is only accessed with the 
+   * message locked once the message has been parsed.
+   */
+  private int pending = 0;
+  /**
+   * Index of the first character after the prefix, or -1 if none.
+   * Indices are in bytes for a message parsed from bytes.
+   */
+  private int prefixEnd = -1;
+  /**
+   * Index of the first argument.
+   */
+  private int argumentsStart = 0;
+  /**
+   * Number of arguments.
+   */
+  private int argumentCount = 0;
+  /**
+   * Index of the first character of the trailing part, or -1 if none.
+   */
+  private int trailingStart = -1;
 
   /**
    * Default constructor for creating empty reusable instance.<P>
@@ -84,6 +131,29 @@ public class IrcMessage {
     this.arguments = arguments;
     this.trailing = trailing;
     this.raw = raw;
+    opcode = Irc.getOpcode(command);
+  }
+
+  /**
+   * Constructs a copy of a parsed message. Used by subclasses to wrap 
+   * the result of <code>parse()</code>.<P>
+   *
+   * @param message message to copy
+   */
+  protected IrcMessage(IrcMessage message) {
+    prefix = message.prefix;
+    command = message.command;
+    opcode = message.opcode;
+    arguments = message.arguments;
+    trailing = message.trailing;
+    raw = message.raw;
+    data = message.data;
+    charset = message.charset;
+    pending = message.pending;
+    prefixEnd = message.prefixEnd;
+    argumentsStart = message.argumentsStart;
+    argumentCount = message.argumentCount;
+    trailingStart = message.trailingStart;
   }
 
   /**
@@ -95,18 +165,54 @@ public class IrcMessage {
      * @param trailing trailing part
      * @param raw the raw message
      */
-  protected void setData(String prefix, String command, String arguments[], 
+  protected synchronized void setData(String prefix, String command, String arguments[], 
 			 String trailing, String raw) {
     this.prefix = prefix;
     this.command = command;
     this.arguments = arguments;
     this.trailing = trailing;
     this.raw = raw;
+    opcode = Irc.getOpcode(command);
+    pending = 0;
+    data = null;
+  }
+
+  /**
+     * Parses a raw irc message from a slice of bytes, as returned by
+     * <code>LineFramer</code>. The slice is copied; parts are decoded
+     * with the given charset when first asked for.<P>
+     *
+     * @param data array containing the message
+     * @param offset offset of the message in data
+     * @param length length of the message in bytes, without line terminator
+     * @param charset charset of the message
+     * @return new instance
+     * @exception IllegalArgumentException if the input cannot be interpreted
+     * as a valid IRC message.
+     */
+  public static IrcMessage parse(byte data[], int offset, int length, Charset charset) {
+    IrcMessage message = new IrcMessage();
+    message.data = new byte[length];
+    System.arraycopy(data, offset, message.data, 0, length);
+    message.charset = charset;
+
+    return message.scan();
+  }
+
+  /**
+     * Parses a raw irc message from a slice of bytes in the platform 
+     * default charset.<P>
+     *
+     * @see #parse(byte[],int,int,Charset)
+     */
+  public static IrcMessage parse(byte data[], int offset, int length) {
+    return parse(data, offset, length, Charset.defaultCharset());
   }
 
   /**
      * Parses an raw irc message and returns an <code>IrcMessage</code> 
-     * instance for it.<P>
+     * instance for it. Only the command is extracted here, other parts
+     * are extracted when first asked for.<P>
      *
      * @param raw raw message
      * @return new instance
@@ -114,72 +220,136 @@ public class IrcMessage {
      * as a valid IRC message.
      */
   public static IrcMessage parse(String raw) {
-    String prefix = null;
-    String command = null;
-    String arguments[] = null;
-    String trailing = null;
-    StringTokenizer st = new StringTokenizer(raw, " ");
-    String token = null;
-
-    if ( st.hasMoreTokens() ) {
-      token = st.nextToken();
-    } else {
-      throw new IllegalArgumentException("Bad message syntax: " + raw);
+    IrcMessage message = new IrcMessage();
+    message.raw = raw;
+
+    return message.scan();
+  }
+
+  /**
+   * Locates the parts of the raw message and extracts the command.<P>
+   *
+   * @return this message, or a subclass instance wrapping it
+   * @exception IllegalArgumentException if the message is malformed
+   */
+  private IrcMessage scan() {
+    int length = length();
+    int index = skipSpaces(0);
+
+    if ( index == length ) {
+      throw new IllegalArgumentException("Bad message syntax: " + toString());
     }
 
-    if ( token.charAt(0) == ':' ) {
-      // parse prefix & command
-      prefix = token.substring(1);
+    if ( charAt(index) == ':' ) {
+      // prefix runs up to the first space
+      index = indexOf(' ', index);
+      if ( index < 0 ) {
+	throw new IllegalArgumentException("Bad message syntax: " + toString());
+      }
+      prefixEnd = index;
+      pending |= PENDING_PREFIX;
 
-      if ( st.hasMoreTokens() ) {
-	command = st.nextToken();
-      } else {
-	throw new IllegalArgumentException("Bad message syntax: " + raw);
+      index = skipSpaces(index);
+      if ( index == length ) {
+	throw new IllegalArgumentException("Bad message syntax: " + toString());
       }
-    } else {
-      // message has no prefix
-      command = token;
     }
 
-    if ( (command == null) || command.equals("") ) {
-      throw new IllegalArgumentException("Command cannot be null or empty! " + 
-					 "command = " + command);
+    int end = indexOf(' ', index);
+    if ( end < 0 ) {
+      end = length;
+    }
+    command = part(index, end);
+    opcode = Irc.getOpcode(command);
+    if ( opcode > Irc.MAX_NUMERIC ) {
+      // share the name instance of known commands
+      command = Irc.getCommandName(opcode);
     }
 
-    // parse parameters
-    Vector v = new Vector(5, 5);
-    while ( st.hasMoreTokens() ) {
-      token = st.nextToken();
-
-      // check for trailing part
-      if ( token.charAt(0) == ':' ) {
-	trailing = token.substring(1);
+    // locate parameters
+    index = skipSpaces(end);
+    argumentsStart = index;
+    while ( index < length ) {
+      if ( charAt(index) == ':' ) {
+	trailingStart = index + 1;
+	pending |= PENDING_TRAILING;
+	break;
+      }
 
-	// parse whole trailing part and we're through
-	while ( st.hasMoreTokens() ) {
-	  trailing += " " + st.nextToken();
-	}
-      } else {
-	v.add(token);
+      argumentCount++;
+      end = indexOf(' ', index);
+      if ( end < 0 ) {
+	break;
       }
+      index = skipSpaces(end);
     }
+    if ( argumentCount > 0 ) {
+      pending |= PENDING_ARGUMENTS;
+    }
+
+    if ( opcode == Irc.OP_JOIN ) {
+      return new JoinMessage(this);
+    } else {
+      return this;
+    }
+  }
+
+  /**
+   * Returns the length of the raw message, in bytes if parsed from 
+   * bytes.<P>
+   */
+  private int length() {
+    return (data != null) ? data.length : raw.length();
+  }
+
+  /**
+   * Returns the character at index of the raw message. Only meant for
+   * the ASCII delimiters, which are single bytes in the charsets used 
+   * on IRC.<P>
+   */
+  private char charAt(int index) {
+    return (data != null) ? (char)(data[index] & 0xff) : raw.charAt(index);
+  }
 
-    // create arguments -array
-    int size = v.size();
-    if ( size > 0 ) {
-      arguments = new String[size];
-	    
-      for ( int i = 0; i < size; i++ ) {
-	arguments[i] = (String)v.elementAt(i);
+  /**
+   * Returns the index of the first c at or after index, or -1.<P>
+   */
+  private int indexOf(char c, int index) {
+    if ( data == null ) {
+      return raw.indexOf(c, index);
+    }
+    for ( ; index < data.length; index++ ) {
+      if ( data[index] == c ) {
+	return index;
       }
     }
+    return -1;
+  }
 
-    if ( command.equals("JOIN") ) {
-      return new JoinMessage(prefix, command, arguments,
-			     trailing, raw);
-    } else {
-      return new IrcMessage(prefix, command, arguments, trailing, raw);
+  /**
+   * Returns the index of the first non-space character at or after
+   * index, or the length of the message if there is none.<P>
+   */
+  private int skipSpaces(int index) {
+    int length = length();
+    while ( (index < length) && (charAt(index) == ' ') ) {
+      index++;
     }
+    return index;
+  }
+
+  /**
+   * Returns a part of the raw message, decoding it if the message was 
+   * parsed from bytes.<P>
+   *
+   * @param start start index
+   * @param end end index (exclusive)
+   */
+  private String part(int start, int end) {
+    if ( data != null ) {
+      return new String(data, start, end - start, charset);
+    }
+    return raw.substring(start, end);
   }
 
   /**
@@ -187,7 +357,10 @@ public class IrcMessage {
    *
    * @param raw message string
    */
-  public String toString() {
+  public synchronized String toString() {
+    if ( (raw == null) && (data != null) ) {
+      raw = part(0, data.length);
+    }
     return raw;
   }
 
@@ -196,7 +369,11 @@ public class IrcMessage {
      *
      * @return prefix part
      */
-  public String getPrefix() {
+  public synchronized String getPrefix() {
+    if ( (pending & PENDING_PREFIX) != 0 ) {
+      prefix = part(indexOf(':', 0) + 1, prefixEnd);
+      pending &= ~PENDING_PREFIX;
+    }
     return prefix;
   }
 
@@ -209,12 +386,39 @@ public class IrcMessage {
     return command;
   }
 
+  /**
+   * Returns the opcode of the command, or <code>Irc.OP_UNKNOWN</code> if
+   * the command is not known. Numeric replies have their numeric
+   * value as opcode.<P>
+   *
+   * @return opcode
+   * @see Irc#getOpcode(String)
+   */
+  public int getOpcode() {
+    return opcode;
+  }
+
   /**
      * Returns the arguments, or <code>null</code> if none supplied.<P>
      *
      * @return arguments
      */
-  public String[] getArguments() {
+  public synchronized String[] getArguments() {
+    if ( (pending & PENDING_ARGUMENTS) != 0 ) {
+      String list[] = new String[argumentCount];
+      int index = argumentsStart;
+
+      for ( int i = 0; i < argumentCount; i++ ) {
+	int end = indexOf(' ', index);
+	if ( end < 0 ) {
+	  end = length();
+	}
+	list[i] = part(index, end);
+	index = skipSpaces(end);
+      }
+      arguments = list;
+      pending &= ~PENDING_ARGUMENTS;
+    }
     return arguments;
   }
 
@@ -223,18 +427,11 @@ public class IrcMessage {
      *
      * @return trailing part
      */
-  public String getTrailing() {
+  public synchronized String getTrailing() {
+    if ( (pending & PENDING_TRAILING) != 0 ) {
+      trailing = part(trailingStart, length());
+      pending &= ~PENDING_TRAILING;
+    }
     return trailing;
   }
 }
-
-
-
-
-
-
-
-
-
-
-
@@ -63,10 +63,24 @@ public class JoinMessage extends IrcMessage {
    */
   protected JoinMessage(String prefix, String command, String arguments[], 
 			String trailing, String raw) {
-    super(prefix, command, arguments, trailing, raw);
+    this(new IrcMessage(prefix, command, arguments, trailing, raw));
+  }
+
+  /**
+   * Constructs from a parsed message. Sets <code>JoinMessage</code> 
+   * specific data.<P>
+   *
+   * @param message the parsed message
+   * @exception IllegalArgumentException if message format is invalid
+   */
+  protected JoinMessage(IrcMessage message) {
+    super(message);
+
+    String arguments[] = getArguments();
+    String trailing = getTrailing();
 
     // extract joiners host
-    joinerHost = new Host(prefix);
+    joinerHost = new Host(getPrefix());
 
     // extract channel name
     if ( (arguments != null) && (arguments.length >= 1) ) {
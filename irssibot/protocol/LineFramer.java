@@ -0,0 +1,247 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.protocol;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a byte stream from an IRC server into lines. Data is read
+ * into a single reusable <code>ByteBuffer</code> and complete lines
+ * are handed out as slices (offset and length) of its backing array, 
+ * so no characters are decoded and no objects are allocated per line.<P>
+ *
+ * Lines are terminated by LF, optionally preceded by CR. Empty lines are
+ * skipped. Lines that do not fit into the buffer are discarded.<P>
+ *
+ * Usage:<br>
+ * <pre>
+ * framer.fill(in);   // or channel.read(framer.getBuffer())
+ * while ( framer.nextLine() ) {
+ *     IrcMessage.parse(framer.getArray(), framer.getLineOffset(), 
+ *                      framer.getLineLength());
+ * }
+ * </pre>
+ *
+ * The current line slice is valid until the next call to 
+ * <code>fill()</code> or <code>getBuffer()</code>.<P>
+ */
+public class LineFramer {
+  /**
+   * Default buffer size. IRC lines are at most 512 bytes, so this holds
+   * plenty of them.
+   */
+  public static final int DEFAULT_CAPACITY = 8192;
+  /**
+   * The buffer in write mode: position marks the end of read data.
+   */
+  private ByteBuffer buffer = null;
+  /**
+   * Start of data not yet handed out as lines.
+   */
+  private int start = 0;
+  /**
+   * Position from which to continue looking for a line terminator.
+   */
+  private int scan = 0;
+  /**
+   * Indicates that an overlong line is being skipped up to the next
+   * line terminator.
+   */
+  private boolean discarding = false;
+  /**
+   * Offset of the current line in the backing array.
+   */
+  private int lineOffset = 0;
+  /**
+   * Length of the current line without the line terminator.
+   */
+  private int lineLength = 0;
+  /**
+   * Length of the current line including the line terminator.
+   */
+  private int frameLength = 0;
+  /**
+   * Number of bytes discarded in overlong lines.
+   */
+  private long discardedBytes = 0;
+
+  /**
+   * Constructs with default capacity.<P>
+   */
+  public LineFramer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructs.<P>
+   *
+   * @param capacity buffer size; the longest accepted line
+   */
+  public LineFramer(int capacity) {
+    buffer = ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Returns the buffer to read more data into, for example with 
+   * <code>ReadableByteChannel.read()</code>. Space taken by lines already
+   * handed out is reclaimed first.<P>
+   *
+   * @return the buffer, in write mode
+   */
+  public ByteBuffer getBuffer() {
+    compact();
+    return buffer;
+  }
+
+  /**
+   * Reads more data from an input stream into the buffer. Blocks 
+   * like <code>InputStream.read()</code>.<P>
+   *
+   * @param in stream to read from
+   * @return number of bytes read, or -1 on end of stream
+   * @exception IOException if reading fails
+   */
+  public int fill(InputStream in) throws IOException {
+    compact();
+
+    int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+    if ( count > 0 ) {
+      buffer.position(buffer.position() + count);
+    }
+
+    return count;
+  }
+
+  /**
+   * Advances to the next complete line in the buffer.<P>
+   *
+   * @return true if a line is available, false if more data must be read
+   */
+  public boolean nextLine() {
+    byte data[] = buffer.array();
+    int end = buffer.position();
+
+    for ( int i = scan; i < end; i++ ) {
+      if ( data[i] != '\n' ) {
+	continue;
+      }
+
+      int length = i - start;
+      int offset = start;
+      start = i + 1;
+      scan = start;
+
+      if ( discarding ) {
+	// tail of an overlong line
+	discarding = false;
+	discardedBytes += length + 1;
+	continue;
+      }
+
+      frameLength = length + 1;
+      if ( (length > 0) && (data[offset + length - 1] == '\r') ) {
+	length--;
+      }
+
+      if ( length > 0 ) {
+	lineOffset = offset;
+	lineLength = length;
+	return true;
+      }
+    }
+    scan = end;
+
+    if ( (start == 0) && (end == buffer.capacity()) ) {
+      // buffer full without a line terminator
+      discarding = true;
+      discardedBytes += end;
+      buffer.clear();
+      scan = 0;
+    }
+
+    return false;
+  }
+
+  /**
+   * Moves unconsumed data to the start of the buffer.
+   *
+   */
+  private void compact() {
+    if ( start > 0 ) {
+      byte data[] = buffer.array();
+      int remaining = buffer.position() - start;
+
+      System.arraycopy(data, start, data, 0, remaining);
+      buffer.position(remaining);
+      scan -= start;
+      start = 0;
+    }
+  }
+
+  /**
+   * Discards all buffered data, for example on reconnect.<P>
+   */
+  public void reset() {
+    buffer.clear();
+    start = 0;
+    scan = 0;
+    discarding = false;
+  }
+
+  /**
+   * Returns the backing array the current line is in.<P>
+   */
+  public byte[] getArray() {
+    return buffer.array();
+  }
+
+  /**
+   * Returns the offset of the current line in the backing array.<P>
+   */
+  public int getLineOffset() {
+    return lineOffset;
+  }
+
+  /**
+   * Returns the length of the current line in bytes, without the line 
+   * terminator.<P>
+   */
+  public int getLineLength() {
+    return lineLength;
+  }
+
+  /**
+   * Returns the number of bytes the current line took on the wire,
+   * including the line terminator.<P>
+   */
+  public int getFrameLength() {
+    return frameLength;
+  }
+
+  /**
+   * Returns the number of bytes discarded in overlong lines.<P>
+   */
+  public long getDiscardedBytes() {
+    return discardedBytes;
+  }
+}
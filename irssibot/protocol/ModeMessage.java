@@ -72,14 +72,26 @@ public class ModeMessage extends IrcMessage {
    */
   protected ModeMessage(String prefix, String command, String arguments[], 
 			String trailing, String raw) {
-    super(prefix, command, arguments, trailing, raw);
+    this(new IrcMessage(prefix, command, arguments, trailing, raw));
+  }
 
-    int count = arguments.length;
-    if ( count < 2 ) {
+  /**
+   * Constructs from a parsed message. Sets <code>ModeMessage</code> 
+   * specific data.<P>
+   *
+   * @param message the parsed message
+   * @exception IllegalArgumentException if message format is invalid
+   */
+  protected ModeMessage(IrcMessage message) {
+    super(message);
+
+    String arguments[] = getArguments();
+    if ( (arguments == null) || (arguments.length < 2) ) {
       throw new IllegalArgumentException("Bad MODE message: " + toString());
     }
+    int count = arguments.length;
 
-    sourceHost = new Host(prefix);
+    sourceHost = new Host(getPrefix());
     channelName = arguments[0];
     modeString = arguments[1];
 
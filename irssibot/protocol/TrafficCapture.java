@@ -0,0 +1,213 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the traffic of an IRC session to a binary capture file, to be 
+ * read with <code>TrafficCaptureReader</code> and played back with 
+ * <code>TrafficReplay</code>.<P>
+ *
+ * The file starts with a header: the magic bytes <code>IBTC</code>, a 
+ * version byte, the start time (ms since epoch, 8 bytes) and the network
+ * and server address (as written by <code>DataOutput.writeUTF()</code>).
+ * Each record that follows is a type byte (<code>IN</code> for a line 
+ * read from the server, without line terminator; <code>OUT</code> for 
+ * bytes written to the server), the time in ns since the previous record 
+ * and the data length as unsigned variable length integers (7 bits per 
+ * byte, low bits first), and the data.<P>
+ */
+public class TrafficCapture {
+  /**
+   * Magic bytes at the start of a capture file
+   */
+  public static final byte MAGIC[] = { 'I', 'B', 'T', 'C' };
+  /**
+   * Capture file format version
+   */
+  public static final int VERSION = 1;
+  /**
+   * Record type of a line read from the server
+   */
+  public static final int IN = 1;
+  /**
+   * Record type of bytes written to the server
+   */
+  public static final int OUT = 2;
+  /**
+   * Maximum time (ms) written records are buffered
+   */
+  private static final long flushInterval = 1000;
+
+  /**
+   * The capture file
+   */
+  private File file = null;
+  /**
+   * Output to the capture file
+   */
+  private DataOutputStream out = null;
+  /**
+   * Time (ns) of the previous record
+   */
+  private long lastTime = 0;
+  /**
+   * Time (ms) the file was last flushed
+   */
+  private long lastFlush = 0;
+  /**
+   * Number of records written
+   */
+  private long recordCount = 0;
+
+  /**
+   * Creates a capture file and writes its header.<P>
+   *
+   * @param file the capture file
+   * @param network name of the network
+   * @param server address of the server
+   * @exception IOException if the file cannot be written
+   */
+  public TrafficCapture(File file, String network, String server) throws IOException {
+    this.file = file;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 
+							64 * 1024));
+    lastFlush = System.currentTimeMillis();
+    lastTime = System.nanoTime();
+
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(lastFlush);
+    out.writeUTF((network != null) ? network : "");
+    out.writeUTF((server != null) ? server : "");
+  }
+
+  /**
+   * Records a line read from the server.<P>
+   *
+   * @param data array containing the line
+   * @param offset offset of the line in data
+   * @param length length of the line without line terminator
+   * @exception IOException if the file cannot be written
+   */
+  public synchronized void recordIn(byte data[], int offset, int length) throws IOException {
+    writeHeader(IN, length);
+    out.write(data, offset, length);
+    written();
+  }
+
+  /**
+   * Records bytes written to the server. The position of the buffer 
+   * is not changed.<P>
+   *
+   * @param buffer buffer with the bytes written between position 
+   * and limit
+   * @exception IOException if the file cannot be written
+   */
+  public synchronized void recordOut(ByteBuffer buffer) throws IOException {
+    int length = buffer.remaining();
+    writeHeader(OUT, length);
+    if ( buffer.hasArray() ) {
+      out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+    } else {
+      byte data[] = new byte[length];
+      buffer.duplicate().get(data);
+      out.write(data);
+    }
+    written();
+  }
+
+  /**
+   * Flushes and closes the capture file.<P>
+   */
+  public synchronized void close() {
+    if ( out == null ) {
+      return;
+    }
+
+    try {
+      out.close();
+    } catch ( IOException e ) {
+      // dont care
+    }
+    out = null;
+  }
+
+  /**
+   * Returns the capture file.<P>
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the number of records written.<P>
+   */
+  public synchronized long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Writes type, time and length of a record.<P>
+   */
+  private void writeHeader(int type, int length) throws IOException {
+    if ( out == null ) {
+      throw new IOException("capture closed");
+    }
+
+    long now = System.nanoTime();
+    out.writeByte(type);
+    writeVarLong(now - lastTime);
+    writeVarLong(length);
+    lastTime = now;
+  }
+
+  /**
+   * Counts a written record and flushes the file if it has not been
+   * flushed for a while.<P>
+   */
+  private void written() throws IOException {
+    recordCount++;
+
+    long now = System.currentTimeMillis();
+    if ( (now - lastFlush) >= flushInterval ) {
+      out.flush();
+      lastFlush = now;
+    }
+  }
+
+  /**
+   * Writes a non-negative number as an unsigned variable length integer.<P>
+   */
+  private void writeVarLong(long value) throws IOException {
+    while ( (value & ~0x7fL) != 0 ) {
+      out.writeByte((int)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int)value);
+  }
+}
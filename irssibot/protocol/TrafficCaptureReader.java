@@ -0,0 +1,227 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a capture file written by <code>TrafficCapture</code> record
+ * by record.<P>
+ *
+ * Usage:<br>
+ * <pre>
+ * TrafficCaptureReader reader = new TrafficCaptureReader(file);
+ * while ( reader.next() ) {
+ *     if ( reader.getType() == TrafficCapture.IN ) {
+ *         ... reader.getData(), 0, reader.getLength() ...
+ *     }
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * The data array of a record is reused by the next record.<P>
+ */
+public class TrafficCaptureReader {
+  /**
+   * Input from the capture file
+   */
+  private DataInputStream in = null;
+  /**
+   * Capture start time (ms since epoch)
+   */
+  private long startTime = 0;
+  /**
+   * Name of the network captured
+   */
+  private String network = null;
+  /**
+   * Address of the server captured
+   */
+  private String server = null;
+  /**
+   * Type of the current record
+   */
+  private int type = 0;
+  /**
+   * Time (ns since the start of the capture) of the current record
+   */
+  private long time = 0;
+  /**
+   * Data of the current record
+   */
+  private byte data[] = new byte[1024];
+  /**
+   * Length of the data of the current record
+   */
+  private int length = 0;
+
+  /**
+   * Opens a capture file and reads its header.<P>
+   *
+   * @param file the capture file
+   * @exception IOException if the file cannot be read or is not
+   * a capture file
+   */
+  public TrafficCaptureReader(File file) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 
+						     64 * 1024));
+    try {
+      byte magic[] = new byte[TrafficCapture.MAGIC.length];
+      in.readFully(magic);
+      for ( int i = 0; i < magic.length; i++ ) {
+	if ( magic[i] != TrafficCapture.MAGIC[i] ) {
+	  throw new IOException(file + " is not a capture file");
+	}
+      }
+      int version = in.readUnsignedByte();
+      if ( version != TrafficCapture.VERSION ) {
+	throw new IOException(file + ": unsupported capture version " + version);
+      }
+      startTime = in.readLong();
+      network = in.readUTF();
+      server = in.readUTF();
+    } catch ( IOException e ) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the next record. A record cut short at the end of the file
+   * (by a crash while capturing) ends the file.<P>
+   *
+   * @return false if there are no more records
+   * @exception IOException if the file cannot be read or is corrupt
+   */
+  public boolean next() throws IOException {
+    int nextType = in.read();
+    if ( nextType == -1 ) {
+      return false;
+    }
+    if ( (nextType != TrafficCapture.IN) && (nextType != TrafficCapture.OUT) ) {
+      throw new IOException("bad record type " + nextType);
+    }
+
+    try {
+      long delta = readVarLong();
+      long nextLength = readVarLong();
+      if ( nextLength > (16 * 1024 * 1024) ) {
+	throw new IOException("bad record length " + nextLength);
+      }
+      if ( data.length < nextLength ) {
+	data = new byte[(int)nextLength * 2];
+      }
+      in.readFully(data, 0, (int)nextLength);
+
+      type = nextType;
+      time += delta;
+      length = (int)nextLength;
+    } catch ( EOFException e ) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Closes the capture file.<P>
+   */
+  public void close() {
+    try {
+      in.close();
+    } catch ( IOException e ) {
+      // dont care
+    }
+  }
+
+  /**
+   * Returns the capture start time (ms since epoch).<P>
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Returns the name of the network captured.<P>
+   */
+  public String getNetwork() {
+    return network;
+  }
+
+  /**
+   * Returns the address of the server captured.<P>
+   */
+  public String getServer() {
+    return server;
+  }
+
+  /**
+   * Returns the type of the current record, <code>TrafficCapture.IN</code>
+   * or <code>TrafficCapture.OUT</code>.<P>
+   */
+  public int getType() {
+    return type;
+  }
+
+  /**
+   * Returns the time of the current record in ns since the start of 
+   * the capture.<P>
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Returns the array holding the data of the current record from 
+   * index 0.<P>
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Returns the length of the data of the current record.<P>
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Reads an unsigned variable length integer.<P>
+   */
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for ( int shift = 0; shift < 64; shift += 7 ) {
+      int b = in.readUnsignedByte();
+      value |= (long)(b & 0x7f) << shift;
+      if ( (b & 0x80) == 0 ) {
+	return value;
+      }
+    }
+
+    throw new IOException("bad variable length integer");
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Plays a capture file written by <code>TrafficCapture</code> back to a 
+ * bot, as a load test with real traffic. Acts as an IRC server on a 
+ * local port: the bot is started with a config whose server list points
+ * at the port (and with the nick of the captured session), and the lines
+ * read from the server during the capture are sent to it, at the 
+ * recorded pace or as fast as possible.<P>
+ *
+ * At the end a PING is sent; the time until the bot answers it is the
+ * time the bot took to process the whole capture.<P>
+ *
+ * Usage: <code>java irssibot.protocol.TrafficReplay [-port port] 
+ * [-max | -speed factor] capture-file</code><P>
+ */
+public class TrafficReplay {
+  /**
+   * Token of the PING sent at the end of the replay
+   */
+  private static final String endToken = "irssibot-replay-end";
+
+  /**
+   * Input from the bot
+   */
+  private InputStream botIn = null;
+  /**
+   * Number of lines received from the bot
+   */
+  private long botLines = 0;
+  /**
+   * Number of bytes received from the bot
+   */
+  private long botBytes = 0;
+  /**
+   * Time (ns) the bot answered the end PING, or 0
+   */
+  private long endTime = 0;
+
+  /**
+   * Reads lines from the bot until the connection closes, watching for
+   * the answer to the end PING.<P>
+   */
+  private void readBot() {
+    LineFramer framer = new LineFramer();
+    try {
+      while ( true ) {
+	while ( !framer.nextLine() ) {
+	  if ( framer.fill(botIn) < 0 ) {
+	    return;
+	  }
+	}
+	synchronized ( this ) {
+	  botLines++;
+	  botBytes += framer.getFrameLength();
+	}
+	String line = new String(framer.getArray(), framer.getLineOffset(), 
+				 framer.getLineLength(), "ISO-8859-1");
+	if ( line.startsWith("PONG") && (line.indexOf(endToken) != -1) ) {
+	  synchronized ( this ) {
+	    endTime = System.nanoTime();
+	    notifyAll();
+	  }
+	}
+      }
+    } catch ( IOException e ) {
+      // connection closed
+    }
+  }
+
+  /**
+   * Waits for the answer to the end PING.<P>
+   *
+   * @param timeout time (ms) to wait
+   * @return time (ns) of the answer, or 0 if none
+   */
+  private synchronized long waitEnd(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while ( endTime == 0 ) {
+      long left = deadline - System.currentTimeMillis();
+      if ( left <= 0 ) {
+	break;
+      }
+      wait(left);
+    }
+
+    return endTime;
+  }
+
+  /**
+   * Waits for the bot to connect and plays a capture to it.<P>
+   *
+   * @param file capture file
+   * @param port local port to listen to
+   * @param speed pace relative to the capture, or 0 for as fast 
+   * as possible
+   */
+  private void replay(File file, int port, double speed) throws Exception {
+    TrafficCaptureReader reader = new TrafficCaptureReader(file);
+    System.out.println("capture of " + reader.getNetwork() + " (" + reader.getServer() + 
+		       ") started " + new java.util.Date(reader.getStartTime()));
+
+    ServerSocket listener = new ServerSocket(port, 1, InetAddress.getByName(null));
+    System.out.println("waiting for the bot to connect to port " + port + "..");
+    Socket socket = listener.accept();
+    listener.close();
+    socket.setTcpNoDelay(true);
+    botIn = socket.getInputStream();
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+    Thread botReader = new Thread(new Runnable() {
+	public void run() {
+	  readBot();
+	}
+      }, "TrafficReplay");
+    botReader.setDaemon(true);
+    botReader.start();
+
+    long inLines = 0;
+    long inBytes = 0;
+    long outLines = 0;
+    long start = System.nanoTime();
+
+    while ( reader.next() ) {
+      if ( reader.getType() == TrafficCapture.OUT ) {
+	byte data[] = reader.getData();
+	for ( int i = 0; i < reader.getLength(); i++ ) {
+	  if ( data[i] == '\n' ) {
+	    outLines++;
+	  }
+	}
+	continue;
+      }
+
+      if ( speed > 0 ) {
+	long due = start + (long)(reader.getTime() / speed);
+	long wait = due - System.nanoTime();
+	if ( wait > 0 ) {
+	  out.flush();
+	  Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+	}
+      }
+      out.write(reader.getData(), 0, reader.getLength());
+      out.write('\r');
+      out.write('\n');
+      inLines++;
+      inBytes += reader.getLength() + 2;
+    }
+    reader.close();
+
+    out.write(("PING :" + endToken + "\r\n").getBytes("ISO-8859-1"));
+    out.flush();
+    long sent = System.nanoTime();
+
+    long done = waitEnd(60000);
+    socket.close();
+
+    double sendSecs = (sent - start) / 1e9;
+    System.out.println("sent " + inLines + " lines (" + inBytes + " bytes) in " + 
+		       format(sendSecs) + " s");
+    if ( done != 0 ) {
+      double totalSecs = (done - start) / 1e9;
+      System.out.println("bot processed them in " + format(totalSecs) + " s, " + 
+			 (long)(inLines / totalSecs) + " lines/s");
+    } else {
+      System.out.println("bot did not answer the end PING in 60 s");
+    }
+    synchronized ( this ) {
+      System.out.println("bot wrote " + botLines + " lines (" + botBytes + 
+			 " bytes); " + outLines + " lines in the capture");
+    }
+  }
+
+  /**
+   * Formats seconds with three decimals.<P>
+   */
+  private static String format(double secs) {
+    return String.valueOf(Math.round(secs * 1000) / 1000.0);
+  }
+
+  /**
+   * Prints usage and exits.<P>
+   */
+  private static void usage() {
+    System.err.println("usage: java irssibot.protocol.TrafficReplay [-port port] " +
+		       "[-max | -speed factor] capture-file");
+    System.exit(1);
+  }
+
+  public static void main(String args[]) {
+    int port = 6667;
+    double speed = 1.0;
+    String path = null;
+
+    try {
+      for ( int i = 0; i < args.length; i++ ) {
+	if ( args[i].equals("-port") && (i + 1 < args.length) ) {
+	  port = Integer.parseInt(args[++i]);
+	} else if ( args[i].equals("-speed") && (i + 1 < args.length) ) {
+	  speed = Double.parseDouble(args[++i]);
+	} else if ( args[i].equals("-max") ) {
+	  speed = 0;
+	} else if ( args[i].startsWith("-") || (path != null) ) {
+	  usage();
+	} else {
+	  path = args[i];
+	}
+      }
+    } catch ( NumberFormatException e ) {
+      usage();
+    }
+    if ( (path == null) || (speed < 0) ) {
+      usage();
+    }
+
+    try {
+      new TrafficReplay().replay(new File(path), port, speed);
+    } catch ( Exception e ) {
+      System.err.println("TrafficReplay: " + e);
+      System.exit(1);
+    }
+  }
+}
@@ -41,14 +41,43 @@ public class Host
     private boolean starnameHost = false;
     private boolean isMask = false;
     private boolean wellformed = false;
+    /**
+     * Compiled form when used as a mask, created on first use.
+     */
+    private HostMask compiled = null;
 
     public String getNick() { return nick; }
     public String getIdent() { return originalIdent; }
     public String getHost() { return host; }
     public boolean isWellformed() { return wellformed; }
 
-    public void setNick(String nick) { this.nick = nick; }
-    public void setHost(String host) { this.host = host; }
+    public void setNick(String nick) { this.nick = nick; compiled = null; }
+    public void setHost(String host) { this.host = host; compiled = null; }
+
+    /**
+     * Returns true if this Host contains wildcards.<P>
+     */
+    public boolean isMask() { return isMask; }
+
+    /**
+     * Returns the ident without the preceding '~','-','^','=' 
+     * character, as used in matching.<P>
+     */
+    String getMatchIdent() { return ident; }
+
+    /**
+     * Returns the compiled form of this Host for matching other
+     * hosts against it.<P>
+     */
+    public HostMask getCompiled() 
+    {
+	HostMask mask = compiled;
+	if( mask == null ) {
+	    mask = new HostMask(this);
+	    compiled = mask;
+	}
+	return mask;
+    }
     
     public Host(String hostString) {
       if ( hostString == null ) {
@@ -144,19 +173,7 @@ public class Host
      */
     public boolean matches(Host mask)
     {
-	boolean ret = false;
-
-	if( wellformed && mask.isWellformed() ) {
-	    if( !isMask ) {
-		/* wild match nicks, idents and host parts */
-		if( StringUtil.wildmatch(mask.nick,nick) &&
-		    StringUtil.wildmatch(mask.ident,ident) &&
-		    StringUtil.wildmatch(mask.host,host) )
-		    ret = true;
-	    }
-	}
-
-	return ret;
+	return mask.getCompiled().matches(this);
     }
 }
 
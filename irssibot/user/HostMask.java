@@ -0,0 +1,86 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.user;
+
+import irssibot.util.WildcardPattern;
+
+/**
+ * Compiled form of a hostmask, for fast repeated matching.<P>
+ *
+ * @see Host#matches(Host)
+ */
+public final class HostMask
+{
+    private WildcardPattern nick = null;
+    private WildcardPattern ident = null;
+    private WildcardPattern host = null;
+    private boolean wellformed = false;
+
+    /**
+     * Compiles a hostmask.<P>
+     *
+     * @param mask the mask
+     */
+    public HostMask(Host mask)
+    {
+	wellformed = mask.isWellformed();
+	if( wellformed ) {
+	    nick = new WildcardPattern(mask.getNick());
+	    ident = new WildcardPattern(mask.getMatchIdent());
+	    host = new WildcardPattern(mask.getHost());
+	}
+    }
+
+    /**
+     * Matches a host against this mask. Same as 
+     * <code>host.matches(mask)</code>.<P>
+     *
+     * @param other host to match
+     * @return true if match, false if no match or other is a mask
+     */
+    public boolean matches(Host other)
+    {
+	return wellformed && other.isWellformed() && !other.isMask() &&
+	    nick.matches(other.getNick()) && 
+	    ident.matches(other.getMatchIdent()) && 
+	    host.matches(other.getHost());
+    }
+
+    /**
+     * Returns the compiled nick part.<P>
+     */
+    public WildcardPattern getNickPattern() { return nick; }
+
+    /**
+     * Returns the compiled ident part.<P>
+     */
+    public WildcardPattern getIdentPattern() { return ident; }
+
+    /**
+     * Returns the compiled host part.<P>
+     */
+    public WildcardPattern getHostPattern() { return host; }
+
+    /**
+     * Returns true if the mask was wellformed.<P>
+     */
+    public boolean isWellformed() { return wellformed; }
+}
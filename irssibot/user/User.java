@@ -53,6 +53,10 @@ public class User
     private long loginTime = 0;
     private boolean isGlobalAdmin = false;
     private boolean dynamic = false;
+    /**
+     * Index this user is in. Notified when hosts change.
+     */
+    private UserIndex userIndex = null;
 
     /**
      * Contains UserChannelInfo objects with channel names as keys
@@ -63,6 +67,8 @@ public class User
     public String getPassword() { return password; }
     public Host getLoginHost() { return loginHost; }
     public boolean isDynamic() { return dynamic; }
+
+    void setUserIndex(UserIndex userIndex) { this.userIndex = userIndex; }
     
     public User(String name,String globalFlags)
     {
@@ -117,18 +123,23 @@ public class User
 
     /**
      * Look through hostmasks. If a host with wildcard * found, mark the user dynamic.
+     * Called whenever hosts change, so also marks the user index out of date.
      *
      */
     private void checkHosts() 
     {
+	dynamic = false;
 	for( int i = 0; i < hosts.size(); i++ ) {
 	    Host mask = (Host)hosts.elementAt(i);
 	    if( mask.isStarnameHost() ) {
 		dynamic = true;
-		return;
+		break;
 	    }
 	}
-	dynamic = false;
+
+	if( userIndex != null ) {
+	    userIndex.invalidate();
+	}
     }
 
     /**
@@ -325,40 +336,90 @@ public class User
      */
     public String getXML()
     {
-	StringBuffer passwordBuffer = new StringBuffer(8);
-	String pass = "";
-	String ret = "<!-- user record begin -->\n";
-
-	if( (password != null) && (password.length() == 8) ) {
-	    /* scramble password */
-	    for( int i = 0; i < 8; i++ ) {
-		if( (password.charAt(i) >= '0') && (password.charAt(i) <= '9') ) {
-		    /* dont touch numerals .. */
-		    passwordBuffer.append(password.charAt(i));
-		} else {
-		    /* scramble others */
-		    passwordBuffer.append( (char)(password.charAt(i) + (i+1)) );
-		}
-	    }
-	    pass = passwordBuffer.toString();
-	}
+	StringBuffer buffer = new StringBuffer(256);
+	appendXML(buffer);
+	return buffer.toString();
+    }
+
+    /**
+     * Appends the XML representation of the user record to a buffer.
+     * Used for writing the whole user file without building a string
+     * per user.<P>
+     *
+     * @param ret buffer to append to
+     */
+    public void appendXML(StringBuffer ret)
+    {
+	String pass = scramblePassword(password);
+	ret.append("<!-- user record begin -->\n");
 
-	ret += "<user name=\""+name+"\" global-flags=\""+getGlobalFlags()+"\" password=\""+pass+"\">\n";
+	ret.append("<user name=\"").append(name).append("\" global-flags=\"").
+	    append(getGlobalFlags()).append("\" password=\"").append(pass).append("\">\n");
 	Enumeration en = channels.elements();
 	while( en.hasMoreElements() ) {
 	    UserChannelInfo chanInfo = (UserChannelInfo)en.nextElement();
-	    ret += "  <channel name=\""+chanInfo.getChannelName()+"\" flags=\""+chanInfo.getChannelFlags()+"\" />\n";
+	    ret.append("  <channel name=\"").append(chanInfo.getChannelName()).
+		append("\" flags=\"").append(chanInfo.getChannelFlags()).append("\" />\n");
 	}
-	ret += "  <hostmasks>\n";
+	ret.append("  <hostmasks>\n");
 	for( int i = 0; i < hosts.size(); i++ ) {
 	    Host host = (Host)hosts.elementAt(i);
-	    ret += "    <mask>"+host.toString()+"</mask>\n";
+	    ret.append("    <mask>").append(host.toString()).append("</mask>\n");
 	}
-	ret += "  </hostmasks>\n";
-	ret += "</user>\n";
-	ret += "<!-- user record end -->\n";
+	ret.append("  </hostmasks>\n");
+	ret.append("</user>\n");
+	ret.append("<!-- user record end -->\n");
+    }
 
-	return ret;
+    /**
+     * Scrambles a password for storing on disk. Numerals are kept, 
+     * other characters are incremented by their position [1..8].<P>
+     *
+     * @param password password of 8 characters
+     * @return scrambled password, or "" if password is not 8 characters
+     */
+    public static String scramblePassword(String password)
+    {
+	if( (password == null) || (password.length() != 8) ) {
+	    return "";
+	}
+
+	StringBuffer passwordBuffer = new StringBuffer(8);
+	for( int i = 0; i < 8; i++ ) {
+	    if( (password.charAt(i) >= '0') && (password.charAt(i) <= '9') ) {
+		/* dont touch numerals .. */
+		passwordBuffer.append(password.charAt(i));
+	    } else {
+		/* scramble others */
+		passwordBuffer.append( (char)(password.charAt(i) + (i+1)) );
+	    }
+	}
+
+	return passwordBuffer.toString();
+    }
+
+    /**
+     * Reverses scramblePassword().<P>
+     *
+     * @param scrambled scrambled password
+     * @return password, or null if scrambled is not 8 characters
+     */
+    public static String unscramblePassword(String scrambled)
+    {
+	if( (scrambled == null) || (scrambled.length() != 8) ) {
+	    return null;
+	}
+
+	StringBuffer passwordBuffer = new StringBuffer(8);
+	for( int i = 0; i < 8; i++ ) {
+	    if( (scrambled.charAt(i) >= '0') && (scrambled.charAt(i) <= '9') ) {
+		passwordBuffer.append(scrambled.charAt(i));
+	    } else {
+		passwordBuffer.append( (char)(scrambled.charAt(i) - (i+1)) );
+	    }
+	}
+
+	return passwordBuffer.toString();
     }
 
     /**
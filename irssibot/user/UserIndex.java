@@ -0,0 +1,321 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.user;
+
+import irssibot.util.WildcardPattern;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Index over the hostmasks of a list of users, for finding the users
+ * matching a host without matching every mask.<P>
+ *
+ * Each mask is filed under one key derived from its literal parts: the
+ * whole host if it has no wildcards, the trailing domain labels 
+ * (<code>*.example.com</code> under <code>example.com</code>), the 
+ * leading address labels (<code>192.168.1.*</code> under 
+ * <code>192.168.1</code>), the ident or the nick. Masks with no usable 
+ * literal part are always checked. A lookup only checks the masks filed 
+ * under keys derived from the host being looked up.<P>
+ *
+ * Results are the same as when going through the users in order, so 
+ * the first matching user in the list wins. The index is rebuilt on 
+ * the next lookup after <code>invalidate()</code>, which is called 
+ * automatically when the hosts of an indexed user change.<P>
+ */
+public class UserIndex
+{
+    private Vector users = null;
+    private boolean valid = false;
+
+    /**
+     * Users keyed by lower case name.
+     */
+    private Hashtable names = null;
+    /**
+     * Vectors of Entry objects keyed by host, host suffix, host prefix,
+     * ident and nick.
+     */
+    private Hashtable exactHosts = null;
+    private Hashtable hostSuffixes = null;
+    private Hashtable hostPrefixes = null;
+    private Hashtable idents = null;
+    private Hashtable nicks = null;
+    /**
+     * Entries that must always be checked.
+     */
+    private Vector unindexed = null;
+
+    /**
+     * A single hostmask of a user.
+     */
+    private static class Entry
+    {
+	User user = null;
+	int order = 0;
+	HostMask mask = null;
+
+	Entry(User user, int order, HostMask mask)
+	{
+	    this.user = user;
+	    this.order = order;
+	    this.mask = mask;
+	}
+    }
+
+    /**
+     * Constructs.<P>
+     *
+     * @param users Vector of User objects; the Vector is referenced, 
+     * not copied
+     */
+    public UserIndex(Vector users)
+    {
+	this.users = users;
+    }
+
+    /**
+     * Marks the index out of date. Must be called when users are added
+     * to or removed from the user list.<P>
+     */
+    public synchronized void invalidate()
+    {
+	valid = false;
+    }
+
+    /**
+     * Finds a user by name, not case sensitive.<P>
+     *
+     * @param name name of user
+     * @return User or null if not found
+     */
+    public synchronized User findUser(String name)
+    {
+	if( name == null ) {
+	    return null;
+	}
+	ensureValid();
+	return (User)names.get(name.toLowerCase());
+    }
+
+    /**
+     * Finds the first user with a mask matching host.<P>
+     *
+     * @param host host to match
+     * @return User or null if not found
+     */
+    public synchronized User findMatchingUser(Host host)
+    {
+	Entry matches[] = findMatches(host);
+	if( matches.length > 0 ) {
+	    return matches[0].user;
+	} else {
+	    return null;
+	}
+    }
+
+    /**
+     * Finds the first logged in user with a mask matching host. Dynamic 
+     * users must be logged in from host.<P>
+     *
+     * @param host host to match
+     * @return User or null if not found
+     * @see User#isLoggedIn()
+     */
+    public synchronized User findLoggedInUser(Host host)
+    {
+	Entry matches[] = findMatches(host);
+	for( int i = 0; i < matches.length; i++ ) {
+	    User user = matches[i].user;
+	    if( user.isLoggedIn() ) {
+		if( !user.isDynamic() || host.equals(user.getLoginHost()) ) {
+		    return user;
+		}
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Returns the entries matching host, in user order with one 
+     * entry per user.
+     *
+     */
+    private Entry[] findMatches(Host host)
+    {
+	ensureValid();
+
+	Vector found = new Vector(2);
+	if( !host.isWellformed() || host.isMask() ) {
+	    return new Entry[0];
+	}
+
+	String name = host.getHost().toLowerCase();
+	collect(exactHosts.get(name), host, found);
+
+	// trailing labels: a.example.com -> example.com, com
+	int index = name.indexOf('.');
+	while( index != -1 ) {
+	    collect(hostSuffixes.get(name.substring(index + 1)), host, found);
+	    index = name.indexOf('.', index + 1);
+	}
+
+	// leading labels: 192.168.1.5 -> 192, 192.168, 192.168.1
+	index = name.indexOf('.');
+	while( index != -1 ) {
+	    collect(hostPrefixes.get(name.substring(0, index)), host, found);
+	    index = name.indexOf('.', index + 1);
+	}
+
+	collect(idents.get(host.getMatchIdent().toLowerCase()), host, found);
+	collect(nicks.get(host.getNick().toLowerCase()), host, found);
+	collect(unindexed, host, found);
+
+	// order by user, dropping duplicates
+	Entry matches[] = new Entry[found.size()];
+	found.copyInto(matches);
+	for( int i = 1; i < matches.length; i++ ) {
+	    Entry entry = matches[i];
+	    int j = i - 1;
+	    while( (j >= 0) && (matches[j].order > entry.order) ) {
+		matches[j + 1] = matches[j];
+		j--;
+	    }
+	    matches[j + 1] = entry;
+	}
+
+	int count = 0;
+	for( int i = 0; i < matches.length; i++ ) {
+	    if( (count == 0) || (matches[count - 1].user != matches[i].user) ) {
+		matches[count++] = matches[i];
+	    }
+	}
+	if( count < matches.length ) {
+	    Entry list[] = new Entry[count];
+	    System.arraycopy(matches, 0, list, 0, count);
+	    matches = list;
+	}
+
+	return matches;
+    }
+
+    /**
+     * Adds the entries in bucket matching host to found.
+     *
+     */
+    private void collect(Object bucket, Host host, Vector found)
+    {
+	if( bucket != null ) {
+	    Vector entries = (Vector)bucket;
+	    for( int i = 0; i < entries.size(); i++ ) {
+		Entry entry = (Entry)entries.elementAt(i);
+		if( entry.mask.matches(host) ) {
+		    found.add(entry);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Rebuilds the index if it is out of date.
+     *
+     */
+    private void ensureValid()
+    {
+	if( valid ) {
+	    return;
+	}
+
+	names = new Hashtable();
+	exactHosts = new Hashtable();
+	hostSuffixes = new Hashtable();
+	hostPrefixes = new Hashtable();
+	idents = new Hashtable();
+	nicks = new Hashtable();
+	unindexed = new Vector();
+
+	for( int i = users.size() - 1; i >= 0; i-- ) {
+	    // backwards so that the first user of a name stays
+	    User user = (User)users.elementAt(i);
+	    user.setUserIndex(this);
+	    names.put(user.getName().toLowerCase(), user);
+
+	    Vector hosts = user.getHosts();
+	    for( int j = 0; j < hosts.size(); j++ ) {
+		HostMask mask = ((Host)hosts.elementAt(j)).getCompiled();
+		if( mask.isWellformed() ) {
+		    file(new Entry(user, i, mask));
+		}
+	    }
+	}
+
+	valid = true;
+    }
+
+    /**
+     * Files an entry under the most selective key available.
+     *
+     */
+    private void file(Entry entry)
+    {
+	WildcardPattern host = entry.mask.getHostPattern();
+
+	if( host.isExact() ) {
+	    put(exactHosts, host.getPrefix(), entry);
+	    return;
+	}
+
+	// suffix from the first complete label on
+	String suffix = host.getSuffix();
+	int index = suffix.indexOf('.');
+	if( (index != -1) && (index < suffix.length() - 1) ) {
+	    put(hostSuffixes, suffix.substring(index + 1), entry);
+	    return;
+	}
+
+	// prefix up to the last complete label
+	String prefix = host.getPrefix();
+	index = prefix.lastIndexOf('.');
+	if( index > 0 ) {
+	    put(hostPrefixes, prefix.substring(0, index), entry);
+	    return;
+	}
+
+	if( entry.mask.getIdentPattern().isExact() ) {
+	    put(idents, entry.mask.getIdentPattern().getPrefix(), entry);
+	} else if( entry.mask.getNickPattern().isExact() ) {
+	    put(nicks, entry.mask.getNickPattern().getPrefix(), entry);
+	} else {
+	    unindexed.add(entry);
+	}
+    }
+
+    private void put(Hashtable table, String key, Entry entry)
+    {
+	Vector entries = (Vector)table.get(key);
+	if( entries == null ) {
+	    entries = new Vector(2);
+	    table.put(key, entries);
+	}
+	entries.add(entry);
+    }
+}
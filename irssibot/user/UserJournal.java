@@ -0,0 +1,456 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.user;
+
+import irssibot.util.log.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/**
+ * Append-only journal of changes to a user file. Each change appends
+ * one line, so a change costs a small write instead of rewriting the 
+ * whole user file. The journal is replayed on top of the user file 
+ * when it is read at startup, and compacted by writing the user file
+ * and dropping the journal entries it contains.<P>
+ *
+ * Lines are complete user records, so replaying an entry already
+ * contained in the user file does no harm:
+ * <pre>
+ * put &lt;name&gt; &lt;global flags&gt; &lt;password&gt; &lt;#chan=flags,...&gt; [&lt;mask&gt; ...]
+ * del &lt;name&gt;
+ * </pre>
+ * Empty fields are written as <code>-</code>; the password is 
+ * scrambled as in the user file. A line without a line feed (from a
+ * crash during the append) is ignored.<P>
+ *
+ * Compaction: when a snapshot of the users is taken for writing the 
+ * user file, <code>rotate()</code> moves the journal aside to 
+ * <code>.journal.old</code>. Once the snapshot is on disk, 
+ * <code>snapshotWritten()</code> deletes it. Both files are replayed at 
+ * startup.<P>
+ */
+public class UserJournal
+{
+    /**
+     * Component info string to be returned by toString()
+     */
+    private static final String info = "UserJournal";
+    /**
+     * Character set of the journal
+     */
+    private static final String charset = "UTF-8";
+
+    /**
+     * The journal
+     */
+    private File file = null;
+    /**
+     * Journal moved aside by rotate() until the snapshot is written
+     */
+    private File oldFile = null;
+    /**
+     * Stream appending to the journal, opened when first needed
+     */
+    private FileOutputStream out = null;
+    /**
+     * Incremented on each rotate()
+     */
+    private int generation = 0;
+    /**
+     * Number of entries appended since the last rotate()
+     */
+    private int entryCount = 0;
+
+    /**
+     * Constructs a journal for a user file.<P>
+     *
+     * @param userFilePath path of the user file
+     */
+    public UserJournal(String userFilePath)
+    {
+	file = new File(userFilePath + ".journal");
+	oldFile = new File(userFilePath + ".journal.old");
+    }
+
+    public String toString() { return info + " (" + file + ")"; }
+
+    /**
+     * Returns the number of entries appended since the last snapshot.<P>
+     */
+    public synchronized int getEntryCount() { return entryCount; }
+
+    /**
+     * Appends the current state of a user.<P>
+     *
+     * @param user the added or changed user
+     */
+    public synchronized void userChanged(User user)
+    {
+	append(format(user));
+    }
+
+    /**
+     * Appends the deletion of a user.<P>
+     *
+     * @param user the deleted user
+     */
+    public synchronized void userDeleted(User user)
+    {
+	append("del " + user.getName());
+    }
+
+    /**
+     * Moves the journal aside for taking a snapshot of the users. If the
+     * previous snapshot has not been written yet, the journal is added 
+     * to the one moved aside then.<P>
+     *
+     * @return generation to pass to snapshotWritten()
+     */
+    public synchronized int rotate()
+    {
+	close();
+
+	if( file.exists() ) {
+	    if( !oldFile.exists() ) {
+		if( !file.renameTo(oldFile) ) {
+		    Log.error(this, "rotate(): could not rename " + file + " to " + oldFile);
+		}
+	    } else {
+		try {
+		    truncateIncomplete(oldFile);
+		    FileOutputStream oldOut = new FileOutputStream(oldFile, true);
+		    try {
+			oldOut.write(readComplete(file));
+			oldOut.getFD().sync();
+		    } finally {
+			oldOut.close();
+		    }
+		    file.delete();
+		} catch( IOException e ) {
+		    Log.error(this, "rotate(): could not move entries to " + oldFile + 
+			      ": " + e.getMessage());
+		}
+	    }
+	}
+
+	entryCount = 0;
+
+	return ++generation;
+    }
+
+    /**
+     * Called when the snapshot taken at <code>rotate()</code> is on disk.
+     * Deletes the journal moved aside unless another snapshot has been
+     * taken since.<P>
+     *
+     * @param snapshotGeneration value returned by rotate()
+     */
+    public synchronized void snapshotWritten(int snapshotGeneration)
+    {
+	if( (snapshotGeneration == generation) && oldFile.exists() ) {
+	    if( !oldFile.delete() ) {
+		Log.error(this, "snapshotWritten(): could not delete " + oldFile);
+	    }
+	}
+    }
+
+    /**
+     * Closes the journal. It is reopened by the next append.<P>
+     */
+    public synchronized void close()
+    {
+	if( out != null ) {
+	    try {
+		out.close();
+	    } catch( IOException e ) {
+		// dont care
+	    }
+	    out = null;
+	}
+    }
+
+    /**
+     * Appends a line and syncs it to disk.<P>
+     *
+     * @param line the entry
+     */
+    private void append(String line)
+    {
+	try {
+	    if( out == null ) {
+		truncateIncomplete(file);
+		out = new FileOutputStream(file, true);
+	    }
+	    out.write((line + "\n").getBytes(charset));
+	    out.getFD().sync();
+	    entryCount++;
+	} catch( IOException e ) {
+	    Log.error(this, "append(): " + e.getMessage());
+	    close();
+	}
+    }
+
+    /**
+     * Cuts off a line left incomplete by a crash, so that the next entry
+     * appended does not run into it.<P>
+     *
+     * @param journal the file
+     */
+    private static void truncateIncomplete(File journal) throws IOException
+    {
+	if( journal.length() == 0 ) {
+	    return;
+	}
+
+	RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+	try {
+	    long length = raf.length();
+	    raf.seek(length - 1);
+	    if( raf.read() == '\n' ) {
+		return;
+	    }
+	    while( length > 0 ) {
+		raf.seek(length - 1);
+		if( raf.read() == '\n' ) {
+		    break;
+		}
+		length--;
+	    }
+	    Log.error(info, "truncateIncomplete(): dropping incomplete entry at end of " + journal);
+	    raf.setLength(length);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Formats a put entry for a user.<P>
+     *
+     * @param user the user
+     */
+    private static String format(User user)
+    {
+	StringBuffer line = new StringBuffer(128);
+	line.append("put ").append(user.getName()).append(' ');
+	line.append(field(user.getGlobalFlags())).append(' ');
+	line.append(field(User.scramblePassword(user.getPassword()))).append(' ');
+
+	StringBuffer channels = new StringBuffer();
+	Enumeration en = user.getChannels().elements();
+	while( en.hasMoreElements() ) {
+	    UserChannelInfo chanInfo = (UserChannelInfo)en.nextElement();
+	    if( channels.length() > 0 ) {
+		channels.append(',');
+	    }
+	    channels.append(chanInfo.getChannelName()).append('=');
+	    if( chanInfo.getChannelFlags() != null ) {
+		channels.append(chanInfo.getChannelFlags());
+	    }
+	}
+	line.append(field(channels.toString()));
+
+	Vector hosts = user.getHosts();
+	for( int i = 0; i < hosts.size(); i++ ) {
+	    line.append(' ').append(hosts.elementAt(i).toString());
+	}
+
+	return line.toString();
+    }
+
+    /**
+     * Returns a field value, or "-" for an empty one.<P>
+     */
+    private static String field(String value)
+    {
+	return ((value == null) || (value.length() == 0)) ? "-" : value;
+    }
+
+    /**
+     * Replays the journal of a user file on top of the users read from
+     * the user file.<P>
+     *
+     * @param userFilePath path of the user file
+     * @param users User objects read from the user file; modified
+     * @return number of entries replayed
+     */
+    public static int replay(String userFilePath, Vector users)
+    {
+	return replay(new File(userFilePath + ".journal.old"), users) + 
+	    replay(new File(userFilePath + ".journal"), users);
+    }
+
+    /**
+     * Replays a journal file.<P>
+     *
+     * @param journal the journal file
+     * @param users User objects; modified
+     * @return number of entries replayed
+     */
+    private static int replay(File journal, Vector users)
+    {
+	if( !journal.exists() ) {
+	    return 0;
+	}
+
+	String contents = null;
+	try {
+	    contents = new String(readComplete(journal), charset);
+	} catch( IOException e ) {
+	    Log.error(info, "replay(): could not read " + journal + ": " + e.getMessage());
+	    return 0;
+	}
+
+	int count = 0;
+	StringTokenizer lines = new StringTokenizer(contents, "\n");
+	while( lines.hasMoreTokens() ) {
+	    String line = lines.nextToken();
+	    if( apply(line, users) ) {
+		count++;
+	    } else {
+		Log.error(info, "replay(): bad entry in " + journal + ": " + line);
+	    }
+	}
+
+	Log.info(info, "replay(): replayed " + count + " entries from " + journal);
+
+	return count;
+    }
+
+    /**
+     * Applies a journal entry.<P>
+     *
+     * @param line the entry
+     * @param users User objects; modified
+     * @return false if the entry is malformed
+     */
+    private static boolean apply(String line, Vector users)
+    {
+	StringTokenizer st = new StringTokenizer(line, " ");
+	if( st.countTokens() < 2 ) {
+	    return false;
+	}
+	String op = st.nextToken();
+	String name = st.nextToken();
+	int index = indexOf(users, name);
+
+	if( op.equals("del") ) {
+	    if( index != -1 ) {
+		users.removeElementAt(index);
+	    }
+	    return true;
+	}
+
+	if( !op.equals("put") || (st.countTokens() < 3) ) {
+	    return false;
+	}
+
+	String globalFlags = st.nextToken();
+	User user = new User(name, globalFlags.equals("-") ? "" : globalFlags);
+	String password = st.nextToken();
+	if( !password.equals("-") ) {
+	    user.setPassword(User.unscramblePassword(password));
+	}
+
+	String channels = st.nextToken();
+	if( !channels.equals("-") ) {
+	    StringTokenizer chans = new StringTokenizer(channels, ",");
+	    while( chans.hasMoreTokens() ) {
+		String chan = chans.nextToken();
+		int eqIndex = chan.lastIndexOf('=');
+		if( eqIndex <= 0 ) {
+		    return false;
+		}
+		user.addChannelInfo(new UserChannelInfo(chan.substring(0, eqIndex),
+							chan.substring(eqIndex + 1)));
+	    }
+	}
+
+	Vector masks = new Vector();
+	while( st.hasMoreTokens() ) {
+	    masks.add(st.nextToken());
+	}
+	user.addHosts(masks);
+
+	if( index != -1 ) {
+	    users.setElementAt(user, index);
+	} else {
+	    users.add(user);
+	}
+
+	return true;
+    }
+
+    /**
+     * Returns the index of the user with given name (case insensitive), 
+     * or -1.<P>
+     */
+    private static int indexOf(Vector users, String name)
+    {
+	for( int i = 0; i < users.size(); i++ ) {
+	    if( ((User)users.elementAt(i)).getName().equalsIgnoreCase(name) ) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Reads a journal file up to and including its last line feed.<P>
+     *
+     * @param journal the file
+     * @return the complete lines
+     */
+    private static byte[] readComplete(File journal) throws IOException
+    {
+	ByteArrayOutputStream data = new ByteArrayOutputStream((int)journal.length());
+	FileInputStream in = new FileInputStream(journal);
+	try {
+	    byte buffer[] = new byte[4096];
+	    int n = 0;
+	    while( (n = in.read(buffer)) > 0 ) {
+		data.write(buffer, 0, n);
+	    }
+	} finally {
+	    in.close();
+	}
+
+	byte bytes[] = data.toByteArray();
+	int length = bytes.length;
+	while( (length > 0) && (bytes[length - 1] != '\n') ) {
+	    length--;
+	}
+	if( length == bytes.length ) {
+	    return bytes;
+	}
+
+	byte complete[] = new byte[length];
+	System.arraycopy(bytes, 0, complete, 0, length);
+	return complete;
+    }
+}
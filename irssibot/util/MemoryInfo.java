@@ -0,0 +1,79 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Iterator;
+
+/**
+ * Heap and garbage collection figures of the VM, read from the platform
+ * MXBeans. The same beans are available to JMX clients (e.g. jconsole)
+ * when the VM is started with remote management enabled.<P>
+ */
+public class MemoryInfo
+{
+    /**
+     * Bytes in a megabyte
+     */
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * Returns a summary of heap usage, for example 
+     * <code>"heap 12/64 MB, max 1024 MB, non-heap 20 MB"</code>.<P>
+     */
+    public static String getHeapSummary()
+    {
+	MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	MemoryUsage heap = memory.getHeapMemoryUsage();
+	MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+
+	String ret = "heap " + (heap.getUsed() / MB) + "/" + (heap.getCommitted() / MB) + " MB";
+	if ( heap.getMax() >= 0 ) {
+	    ret += ", max " + (heap.getMax() / MB) + " MB";
+	}
+	ret += ", non-heap " + (nonHeap.getUsed() / MB) + " MB";
+
+	return ret;
+    }
+
+    /**
+     * Returns a summary of garbage collections since the VM was started,
+     * for example <code>"G1 Young Generation 12 (85 ms), G1 Old Generation 0 (0 ms)"</code>.<P>
+     */
+    public static String getGcSummary()
+    {
+	String ret = "";
+	Iterator iter = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+	while ( iter.hasNext() ) {
+	    GarbageCollectorMXBean gc = (GarbageCollectorMXBean)iter.next();
+	    if ( ret.length() > 0 ) {
+		ret += ", ";
+	    }
+	    ret += gc.getName() + " " + gc.getCollectionCount() + 
+		" (" + gc.getCollectionTime() + " ms)";
+	}
+
+	return ret;
+    }
+}
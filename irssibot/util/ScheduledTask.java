@@ -0,0 +1,169 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util;
+
+import irssibot.util.log.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A task scheduled with <code>Scheduler</code>. Can be cancelled, and
+ * tells its name and the time until it is next run.<P>
+ *
+ * @see Scheduler
+ */
+public class ScheduledTask implements Runnable, Comparable
+{
+    /**
+     * Name of the task
+     */
+    private String name = null;
+    /**
+     * The task to run
+     */
+    private Runnable task = null;
+    /**
+     * Period in milliseconds, or 0 if run once
+     */
+    private long period = 0;
+    /**
+     * Future of the task in the scheduler's executor
+     */
+    private ScheduledFuture future = null;
+    /**
+     * Class loader of the code the task runs
+     */
+    private ClassLoader owner = null;
+    /**
+     * Indicates whether the task has been cancelled
+     */
+    private boolean cancelled = false;
+
+    /**
+     * Constructs a task. Called by <code>Scheduler</code>.<P>
+     *
+     * @param name name of the task
+     * @param task task to run
+     * @param period period in milliseconds, or 0 if run once
+     */
+    ScheduledTask(String name, Runnable task, long period, ClassLoader owner)
+    {
+	this.name = (name != null) ? name : task.getClass().getName();
+	this.task = task;
+	this.period = period;
+	this.owner = owner;
+    }
+
+    /**
+     * Sets the future of the task. Called by <code>Scheduler</code>.<P>
+     */
+    synchronized void setFuture(ScheduledFuture future) 
+    {
+	this.future = future;
+	if ( cancelled ) {
+	    future.cancel(false);
+	}
+    }
+
+    public String getName() { return name; }
+    public long getPeriod() { return period; }
+    ClassLoader getOwner() { return owner; }
+    public synchronized boolean isCancelled() { return cancelled; }
+
+    /**
+     * Returns the time in milliseconds until the task is next run, or
+     * 0 if it is due or done.<P>
+     */
+    public synchronized long getDelay()
+    {
+	if ( (future == null) || future.isDone() ) {
+	    return 0;
+	}
+	return Math.max(0, future.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Orders tasks by the time they are next run. Unlike 
+     * <code>getDelay()</code>, the order does not change while sorting.<P>
+     */
+    public int compareTo(Object other)
+    {
+	ScheduledFuture otherFuture = ((ScheduledTask)other).future;
+	if ( (future == null) || (otherFuture == null) ) {
+	    return (future == null) ? ((otherFuture == null) ? 0 : 1) : -1;
+	}
+	return future.compareTo(otherFuture);
+    }
+
+    /**
+     * Cancels the task. A run already in progress is let finish.<P>
+     *
+     * @return true if the task was still pending
+     */
+    public boolean cancel()
+    {
+	boolean wasPending = false;
+	synchronized ( this ) {
+	    if ( cancelled ) {
+		return false;
+	    }
+	    cancelled = true;
+	    wasPending = (future == null) || !future.isDone();
+	    if ( future != null ) {
+		future.cancel(false);
+	    }
+	}
+	Scheduler.taskDone(this);
+
+	return wasPending;
+    }
+
+    /**
+     * Runs the task. Called by the scheduler thread; an exception thrown
+     * by the task is logged and does not stop a periodic task.<P>
+     */
+    public void run()
+    {
+	if ( isCancelled() ) {
+	    return;
+	}
+
+	try {
+	    task.run();
+	} catch ( Throwable t ) {
+	    Log.log(this, t);
+	}
+
+	if ( period == 0 ) {
+	    Scheduler.taskDone(this);
+	}
+    }
+
+    public String toString()
+    {
+	String ret = name + " in " + (getDelay() / 1000) + "s";
+	if ( period > 0 ) {
+	    ret += ", every " + (period / 1000) + "s";
+	}
+	return ret;
+    }
+}
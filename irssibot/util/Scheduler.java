@@ -0,0 +1,222 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util;
+
+import irssibot.util.log.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Central scheduler for timed work: timers, periodic housekeeping of
+ * server connections and module tasks. All tasks are run by a single
+ * daemon thread, so any number of pending tasks costs one thread.
+ * Tasks must therefore be short; a task that blocks delays every other
+ * task.<P>
+ *
+ * Each scheduled task is represented by a <code>ScheduledTask</code>,
+ * which can be cancelled. <code>getPendingTasks()</code> gives a view of
+ * tasks not yet run or cancelled.<P>
+ *
+ * @see ScheduledTask
+ */
+public class Scheduler
+{
+    /**
+     * Component info string to be returned by toString()
+     */
+    private static final String info = "Scheduler";
+    /**
+     * The executor, created when first needed.
+     */
+    private static ScheduledThreadPoolExecutor executor = null;
+    /**
+     * Tasks not yet run (or periodic tasks not yet cancelled).
+     */
+    private static HashSet pending = new HashSet();
+
+    /**
+     * Starts the scheduler thread. Called at startup so that the thread
+     * is not created from a module's code, which would keep the module's
+     * class loader reachable (through the thread's inherited access 
+     * control context) after the module is unloaded.<P>
+     */
+    public static void start()
+    {
+	getExecutor();
+    }
+
+    /**
+     * Schedules a task to be run once after a delay.<P>
+     *
+     * @param name name of the task, shown in the pending task view
+     * @param task task to run
+     * @param delay delay in milliseconds
+     * @return the scheduled task
+     * @exception IllegalArgumentException if task is null or delay 
+     * is negative
+     */
+    public static ScheduledTask schedule(String name, Runnable task, long delay)
+    {
+	return schedule(name, task, delay, 0);
+    }
+
+    /**
+     * Schedules a task to be run after a delay and then periodically 
+     * until cancelled. A period of 0 runs the task once.<P>
+     *
+     * @param name name of the task, shown in the pending task view
+     * @param task task to run
+     * @param delay delay in milliseconds before the first run
+     * @param period period in milliseconds between runs, or 0
+     * @return the scheduled task
+     * @exception IllegalArgumentException if task is null or delay or
+     * period is negative
+     */
+    public static ScheduledTask schedule(String name, Runnable task, long delay, long period)
+    {
+	if ( task == null ) {
+	    throw new IllegalArgumentException("task is null!");
+	}
+	return schedule(name, task, delay, period, task.getClass().getClassLoader());
+    }
+
+    /**
+     * Schedules a task on behalf of code loaded by <code>owner</code>.<P>
+     *
+     * @see #schedule(String,Runnable,long,long)
+     * @see #cancelTasks(ClassLoader)
+     */
+    static ScheduledTask schedule(String name, Runnable task, long delay, long period,
+				  ClassLoader owner)
+    {
+	if ( task == null ) {
+	    throw new IllegalArgumentException("task is null!");
+	}
+	if ( (delay < 0) || (period < 0) ) {
+	    throw new IllegalArgumentException("delay or period out of range!");
+	}
+
+	ScheduledTask scheduled = new ScheduledTask(name, task, period, owner);
+	synchronized ( pending ) {
+	    pending.add(scheduled);
+	}
+
+	if ( period == 0 ) {
+	    scheduled.setFuture(getExecutor().schedule(scheduled, delay, 
+							TimeUnit.MILLISECONDS));
+	} else {
+	    scheduled.setFuture(getExecutor().scheduleAtFixedRate(scheduled, delay, period,
+								  TimeUnit.MILLISECONDS));
+	}
+
+	return scheduled;
+    }
+
+    /**
+     * Returns the number of pending tasks.<P>
+     */
+    public static int getPendingCount()
+    {
+	synchronized ( pending ) {
+	    return pending.size();
+	}
+    }
+
+    /**
+     * Returns the pending tasks, the one due first first.<P>
+     */
+    public static ScheduledTask[] getPendingTasks()
+    {
+	ScheduledTask tasks[] = null;
+	synchronized ( pending ) {
+	    tasks = (ScheduledTask[])pending.toArray(new ScheduledTask[pending.size()]);
+	}
+
+	Arrays.sort(tasks);
+
+	return tasks;
+    }
+
+    /**
+     * Cancels the pending tasks of code loaded by a class loader, so that
+     * an unloaded module is not run or kept in memory by its timers.<P>
+     *
+     * @param owner the class loader
+     * @return number of tasks cancelled
+     */
+    public static int cancelTasks(ClassLoader owner)
+    {
+	ScheduledTask tasks[] = null;
+	synchronized ( pending ) {
+	    tasks = (ScheduledTask[])pending.toArray(new ScheduledTask[pending.size()]);
+	}
+
+	int count = 0;
+	for ( int i = 0; i < tasks.length; i++ ) {
+	    if ( (tasks[i].getOwner() == owner) && tasks[i].cancel() ) {
+		count++;
+	    }
+	}
+
+	return count;
+    }
+
+    /**
+     * Called by a task when it will not run again.<P>
+     *
+     * @param task the task
+     */
+    static void taskDone(ScheduledTask task)
+    {
+	synchronized ( pending ) {
+	    pending.remove(task);
+	}
+    }
+
+    /**
+     * Returns the executor, creating it on first call.<P>
+     */
+    private static synchronized ScheduledThreadPoolExecutor getExecutor()
+    {
+	if ( executor != null ) {
+	    return executor;
+	}
+
+	executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+		    Thread thread = new Thread(task, info);
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	// free cancelled tasks (e.g. timed unbans) right away
+	executor.setRemoveOnCancelPolicy(true);
+	executor.prestartAllCoreThreads();
+
+	Log.info(info, "getExecutor(): started");
+
+	return executor;
+    }
+}
@@ -23,24 +23,20 @@
 package irssibot.util;
 
 /**
- * A generic timer. The timer is deployed as its own 
- * thread with a given number of seconds and a 
- * <code>TimerCommand</code> object reference. After the timer
- * period, the <code>execute()</code> method of the
- * <code>TimerCommand</code> object is invoked.
+ * A generic timer. The timer is deployed with a given number of 
+ * seconds and a <code>TimerCommand</code> object reference. After the 
+ * timer period, the <code>execute()</code> method of the
+ * <code>TimerCommand</code> object is invoked.<P>
+ *
+ * Timers are run by the <code>Scheduler</code> thread, so pending timers 
+ * do not each hold a thread. <code>execute()</code> should therefore 
+ * return quickly.<P>
  *
  * @author Matti Dahlbom
  * @version $Name:  $ $Revision: 1.2 $ 
+ * @see Scheduler
  */
-public class Timer extends Thread {
-    /**
-     * Indicates whether this timer is still alive
-     */
-    private boolean isRunning = true;
-    /**
-     * Wait lock
-     */
-    private Object waitLock = new Object();
+public class Timer implements Runnable {
     /**
      * Wait period
      */
@@ -49,6 +45,10 @@ public class Timer extends Thread {
      * TimerCommand to execute
      */
     private TimerCommand command = null;
+    /**
+     * The task in the scheduler
+     */
+    private ScheduledTask task = null;
 
     /**
      * Inits the timer. 
@@ -85,43 +85,45 @@ public class Timer extends Thread {
 	}
 
 	Timer timer = new Timer(period, command);
-	timer.start();
+	timer.task = Scheduler.schedule("Timer (" + command.getClass().getName() + ")",
+					timer, period * 1000L, 0, 
+					command.getClass().getClassLoader());
 
 	return timer;
     }
 
     /**
-     * Performs the actual wait / execute invokation.
+     * Performs the execute invokation. Called by the scheduler.
      */
     public void run() {
-	long millisPeriod = period * 1000;
-	long now = System.currentTimeMillis();
-
-	synchronized ( waitLock ) {
-	    while ( isRunning && 
-		    ((System.currentTimeMillis() - now) < millisPeriod) ) {
-		try {
-		    waitLock.wait(millisPeriod);
-		} catch ( InterruptedException e ) {
-		    // dont care
-		}
-	    }
-	}
-
 	command.execute();
     }
 
     /**
-     * Kills this timer, ending the wait.
+     * Kills this timer, ending the wait. The command is executed 
+     * right away.
      *
      */
     public void killTimer() {
-	synchronized ( waitLock ) {
-	    isRunning = false;
-	    interrupt();
+	if ( task.cancel() ) {
+	    task = Scheduler.schedule(task.getName(), this, 0, 0,
+				      command.getClass().getClassLoader());
 	}
     }
-}
 
+    /**
+     * Cancels this timer; the command is not executed.
+     *
+     * @return true if the timer was still pending
+     */
+    public boolean cancel() {
+	return task.cancel();
+    }
 
-	       
+    /**
+     * Returns the number of seconds until the command is executed.
+     */
+    public int getRemainingTime() {
+	return (int)((task.getDelay() + 999) / 1000);
+    }
+}
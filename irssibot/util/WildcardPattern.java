@@ -0,0 +1,160 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util;
+
+import java.util.Vector;
+
+/**
+ * A precompiled wildcard pattern. Matches like 
+ * <code>StringUtil.wildmatch()</code>: <code>*</code> matches any number 
+ * of characters, comparison is not case sensitive and empty strings never
+ * match. The pattern is lowercased and split into literal segments once, 
+ * so matching needs no allocations.<P>
+ *
+ * @see StringUtil#wildmatch(String,String)
+ */
+public final class WildcardPattern {
+  /**
+   * Literal segments between asterisks, in lower case. A pattern 
+   * without asterisks has a single segment.
+   */
+  private String segments[] = null;
+  /**
+   * Whether the pattern contains no asterisks.
+   */
+  private boolean exact = false;
+  /**
+   * Sum of segment lengths; the shortest matching input.
+   */
+  private int minLength = 0;
+
+  /**
+   * Compiles a pattern.<P>
+   *
+   * @param pattern the pattern, may be null
+   */
+  public WildcardPattern(String pattern) {
+    if ( pattern == null ) {
+      pattern = "";
+    }
+    pattern = pattern.trim().toLowerCase();
+
+    if ( pattern.length() == 0 ) {
+      // matches nothing
+      segments = null;
+      return;
+    }
+
+    Vector v = new Vector(3);
+    int start = 0;
+    int index = 0;
+    while ( (index = pattern.indexOf('*', start)) != -1 ) {
+      v.add(pattern.substring(start, index));
+      start = index + 1;
+    }
+    v.add(pattern.substring(start));
+
+    segments = new String[v.size()];
+    v.copyInto(segments);
+    exact = (segments.length == 1);
+
+    for ( int i = 0; i < segments.length; i++ ) {
+      minLength += segments[i].length();
+    }
+  }
+
+  /**
+   * Matches input against the pattern.<P>
+   *
+   * @param input string to match
+   * @return true if input matches
+   */
+  public boolean matches(String input) {
+    if ( (segments == null) || (input == null) ) {
+      return false;
+    }
+
+    int length = input.length();
+    if ( (length > 0) && 
+	 ((input.charAt(0) <= ' ') || (input.charAt(length - 1) <= ' ')) ) {
+      input = input.trim();
+      length = input.length();
+    }
+    if ( (length == 0) || (length < minLength) ) {
+      return false;
+    }
+
+    if ( exact ) {
+      return (length == minLength) && 
+	input.regionMatches(true, 0, segments[0], 0, length);
+    }
+
+    // literal prefix and suffix
+    String prefix = segments[0];
+    String suffix = segments[segments.length - 1];
+    if ( !input.regionMatches(true, 0, prefix, 0, prefix.length()) ||
+	 !input.regionMatches(true, length - suffix.length(), 
+			      suffix, 0, suffix.length()) ) {
+      return false;
+    }
+
+    // segments in between, leftmost occurrence of each
+    int index = prefix.length();
+    int limit = length - suffix.length();
+    for ( int i = 1; i < segments.length - 1; i++ ) {
+      String segment = segments[i];
+      int segmentLength = segment.length();
+      int last = limit - segmentLength;
+
+      while ( (index <= last) && 
+	      !input.regionMatches(true, index, segment, 0, segmentLength) ) {
+	index++;
+      }
+      if ( index > last ) {
+	return false;
+      }
+      index += segmentLength;
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns true if the pattern has no wildcards.<P>
+   */
+  public boolean isExact() {
+    return exact && (segments != null);
+  }
+
+  /**
+   * Returns the literal part before the first wildcard, in lower case.<P>
+   */
+  public String getPrefix() {
+    return (segments != null) ? segments[0] : "";
+  }
+
+  /**
+   * Returns the literal part after the last wildcard, in lower case.<P>
+   */
+  public String getSuffix() {
+    return (segments != null) ? segments[segments.length - 1] : "";
+  }
+}
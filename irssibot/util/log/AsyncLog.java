@@ -0,0 +1,349 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util.log;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger that hands messages to another CommonLog in a writer thread
+ * of its own, so that logging does not wait on the disk. Messages are 
+ * put in a bounded lock-free ring buffer; the writer thread takes them 
+ * out in batches and, if the other logger is a <code>FlushableLog</code>,
+ * flushes once per batch.<P>
+ *
+ * Properties (the same Properties are passed on to the other logger):
+ * <ul>
+ * <li><code>async.delegate</code> class name of the CommonLog to write 
+ * to, default <code>irssibot.util.log.FileLog</code>
+ * <li><code>async.buffer-size</code> number of messages the buffer holds,
+ * rounded up to a power of two, default 8192
+ * <li><code>async.overflow</code> what to do when the buffer is full:
+ * <code>drop</code> (default) drops the message and the number of dropped
+ * messages is logged later; <code>block</code> waits for room
+ * </ul><P>
+ */
+public class AsyncLog implements CommonLog {
+  /**
+   * Overflow policy: drop the message
+   */
+  public static final String OVERFLOW_DROP = "drop";
+  /**
+   * Overflow policy: wait until there is room
+   */
+  public static final String OVERFLOW_BLOCK = "block";
+  /**
+   * Maximum number of messages written between flushes
+   */
+  private static final int maxBatch = 256;
+  /**
+   * Time (ns) the writer thread sleeps when idle if not woken up
+   */
+  private static final long idleWait = 100000000L;
+
+  /**
+   * Init properties
+   */
+  private Properties properties = null;
+  /**
+   * The logger messages are written to
+   */
+  private CommonLog delegate = null;
+  /**
+   * Indicates whether the buffer blocks when full instead of dropping
+   */
+  private boolean blockOnOverflow = false;
+  /**
+   * Messages in the buffer
+   */
+  private String slots[] = null;
+  /**
+   * Sequence number of each slot: equal to the position when free for
+   * that position, position + 1 when holding its message
+   */
+  private AtomicLongArray sequences = null;
+  /**
+   * slots.length - 1
+   */
+  private int mask = 0;
+  /**
+   * Next position to put a message at
+   */
+  private AtomicLong tail = new AtomicLong();
+  /**
+   * Next position to take a message from; used by the writer thread only
+   */
+  private long head = 0;
+  /**
+   * Number of messages dropped since last reported
+   */
+  private AtomicLong dropped = new AtomicLong();
+  /**
+   * Total number of messages dropped
+   */
+  private AtomicLong totalDropped = new AtomicLong();
+  /**
+   * The writer thread
+   */
+  private Thread writer = null;
+  /**
+   * Indicates whether the writer thread may be parked waiting for messages
+   */
+  private volatile boolean writerIdle = false;
+  /**
+   * Indicates whether the logger is running
+   */
+  private volatile boolean running = false;
+
+  /**
+   * Initializes this logger, the logger it writes to, and starts the
+   * writer thread.<P>
+   *
+   * @param properties init properties
+   * @exception IllegalArgumentException if bad properties
+   */
+  public void init(Properties properties) {
+    this.properties = properties;
+
+    String delegateClass = properties.getProperty("async.delegate", 
+						  "irssibot.util.log.FileLog");
+    try {
+      delegate = (CommonLog)Class.forName(delegateClass).newInstance();
+    } catch ( Exception e ) {
+      throw new IllegalArgumentException("Could not create logger " + delegateClass + 
+					 ": " + e);
+    }
+    if ( delegate instanceof AsyncLog ) {
+      throw new IllegalArgumentException("async.delegate must not be AsyncLog");
+    }
+    delegate.init(properties);
+    if ( delegate instanceof FlushableLog ) {
+      ((FlushableLog)delegate).setAutoFlush(false);
+    }
+
+    String overflow = properties.getProperty("async.overflow", OVERFLOW_DROP);
+    if ( overflow.equals(OVERFLOW_BLOCK) ) {
+      blockOnOverflow = true;
+    } else if ( !overflow.equals(OVERFLOW_DROP) ) {
+      throw new IllegalArgumentException("Bad async.overflow: " + overflow);
+    }
+
+    int size = 8192;
+    try {
+      size = Integer.parseInt(properties.getProperty("async.buffer-size", "8192"));
+    } catch ( NumberFormatException e ) {
+      throw new IllegalArgumentException("Bad async.buffer-size: " + e.getMessage());
+    }
+    int capacity = 2;
+    while ( capacity < size ) {
+      capacity <<= 1;
+    }
+
+    slots = new String[capacity];
+    sequences = new AtomicLongArray(capacity);
+    for ( int i = 0; i < capacity; i++ ) {
+      sequences.set(i, i);
+    }
+    mask = capacity - 1;
+
+    running = true;
+    writer = new Thread(new Runnable() {
+	public void run() {
+	  writeLoop();
+	}
+      }, "AsyncLog");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Returns path for property file from which this CommonLog was initialized.<P>
+   *
+   * @return path to property file
+   */
+  public String getPropertyFilePath() {
+    return properties.getProperty(PROPERTY_FILE_PATH_PROPERTY_NAME);
+  }
+
+  /**
+   * Returns the total number of messages dropped because the buffer 
+   * was full.<P>
+   */
+  public long getDroppedCount() {
+    return totalDropped.get();
+  }
+
+  /**
+   * Puts a message in the buffer for the writer thread. Does not wait
+   * unless the buffer is full and the overflow policy is 
+   * <code>block</code>.<P>
+   *
+   * @param message preformatted log message
+   * @exception LogException if the logger is not running
+   */
+  public void logMessage(String message) throws LogException {
+    if ( !running ) {
+      throw new LogException("AsyncLog not running!");
+    }
+
+    while ( !offer(message) ) {
+      if ( !blockOnOverflow || (Thread.currentThread() == writer) ) {
+	dropped.incrementAndGet();
+	totalDropped.incrementAndGet();
+	return;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(50000);
+      if ( !running ) {
+	throw new LogException("AsyncLog not running!");
+      }
+    }
+
+    if ( writerIdle ) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Stops the writer thread after it has written the messages in the 
+   * buffer, then stops the logger written to.<P>
+   */
+  public void stop() {
+    running = false;
+    if ( writer != null ) {
+      LockSupport.unpark(writer);
+      try {
+	writer.join();
+      } catch ( InterruptedException e ) {
+	// dont care
+      }
+      writer = null;
+    }
+    delegate.stop();
+  }
+
+  /**
+   * Puts a message in the buffer.<P>
+   *
+   * @return false if the buffer is full
+   */
+  private boolean offer(String message) {
+    while ( true ) {
+      long position = tail.get();
+      int index = (int)position & mask;
+      long difference = sequences.get(index) - position;
+
+      if ( difference == 0 ) {
+	if ( tail.compareAndSet(position, position + 1) ) {
+	  slots[index] = message;
+	  // publishes the message to the writer thread
+	  sequences.set(index, position + 1);
+	  return true;
+	}
+      } else if ( difference < 0 ) {
+	return false;
+      }
+      // else another thread took the position; retry
+    }
+  }
+
+  /**
+   * Takes the next message from the buffer. Called by the writer thread.<P>
+   *
+   * @return message, or null if none
+   */
+  private String poll() {
+    int index = (int)head & mask;
+    if ( sequences.get(index) != (head + 1) ) {
+      return null;
+    }
+
+    String message = slots[index];
+    slots[index] = null;
+    sequences.set(index, head + slots.length);
+    head++;
+
+    return message;
+  }
+
+  /**
+   * Writes messages from the buffer until stopped.<P>
+   */
+  private void writeLoop() {
+    while ( true ) {
+      int count = 0;
+      String message = null;
+      while ( (count < maxBatch) && ((message = poll()) != null) ) {
+	write(message);
+	count++;
+      }
+
+      long lost = dropped.getAndSet(0);
+      if ( lost > 0 ) {
+	write("AsyncLog: " + lost + " log messages dropped, buffer full");
+      }
+
+      if ( count > 0 ) {
+	flush();
+	continue;
+      }
+
+      if ( !running ) {
+	return;
+      }
+
+      // nothing to write; sleep until a producer wakes us up
+      writerIdle = true;
+      if ( sequences.get((int)head & mask) != (head + 1) ) {
+	writerIdle = false;
+	continue;
+      }
+      LockSupport.parkNanos(idleWait);
+      writerIdle = false;
+    }
+  }
+
+  /**
+   * Writes a message to the logger written to.<P>
+   */
+  private void write(String message) {
+    try {
+      delegate.logMessage(message);
+    } catch ( LogException e ) {
+      System.err.println("AsyncLog: error: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Flushes the logger written to, if it buffers.<P>
+   */
+  private void flush() {
+    if ( delegate instanceof FlushableLog ) {
+      try {
+	((FlushableLog)delegate).flush();
+      } catch ( LogException e ) {
+	System.err.println("AsyncLog: error: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -31,11 +31,15 @@ import java.util.Properties;
  * @author Matti Dahlbom
  * @version $Name:  $ $Revision: 1.2 $
  */
-public class FileLog implements CommonLog {
+public class FileLog implements FlushableLog {
   /**
    * Output stream for current log file
    */
   private BufferedOutputStream out = null;
+  /**
+   * Indicates whether each message is flushed as it is written
+   */
+  private boolean autoFlush = true;
   /**
    * Init properties
    */
@@ -63,7 +67,7 @@ public class FileLog implements CommonLog {
    * @param message log message to write
    * @exception LogException if there is an error writing to file 
    */
-  public void logMessage(String message) throws LogException {
+  public synchronized void logMessage(String message) throws LogException {
     if ( out == null ) {
       throw new LogException("Output stream to log file not initialized!");
     }
@@ -73,6 +77,34 @@ public class FileLog implements CommonLog {
     
     try {
       out.write(data, 0, data.length);
+      if ( autoFlush ) {
+	out.flush();
+      }
+    } catch ( IOException e ) {
+      throw new LogException(e);
+    }
+  }
+
+  /**
+   * Sets whether each message is flushed as it is written.<P>
+   *
+   * @param autoFlush false to buffer messages until flush()
+   */
+  public synchronized void setAutoFlush(boolean autoFlush) {
+    this.autoFlush = autoFlush;
+  }
+
+  /**
+   * Writes out buffered messages.<P>
+   *
+   * @exception LogException if there is an error writing to file 
+   */
+  public synchronized void flush() throws LogException {
+    if ( out == null ) {
+      return;
+    }
+
+    try {
       out.flush();
     } catch ( IOException e ) {
       throw new LogException(e);
@@ -95,7 +127,7 @@ public class FileLog implements CommonLog {
 
     try {
       File file = new File(path);
-      out = new BufferedOutputStream(new FileOutputStream(file));
+      out = new BufferedOutputStream(new FileOutputStream(file), 16 * 1024);
     } catch ( IOException e ) {
       throw new IllegalArgumentException("Error estabilishing output stream to file " + path +
 					 ": " + e.getMessage());
@@ -106,7 +138,7 @@ public class FileLog implements CommonLog {
    * Stops and deinits this logger. Closes the log file.<P>
    *
    */
-  public void stop() {
+  public synchronized void stop() {
     try {
       out.close();
     } catch ( IOException e ) {
@@ -0,0 +1,41 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util.log;
+
+/**
+ * A CommonLog that can buffer written messages, so that a caller 
+ * writing many messages at once (such as <code>AsyncLog</code>) can 
+ * flush once per batch instead of once per message.<P>
+ */
+public interface FlushableLog extends CommonLog {
+  /**
+   * Sets whether each message is flushed as it is written. On by default.<P>
+   *
+   * @param autoFlush false to buffer messages until flush()
+   */
+  public void setAutoFlush(boolean autoFlush);
+  /**
+   * Writes out buffered messages.<P>
+   *
+   * @exception LogException if logging error occurs
+   */
+  public void flush() throws LogException;
+}
@@ -23,7 +23,9 @@
 package irssibot.util.log;
 
 import java.util.Date;
+import java.util.Hashtable;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.text.SimpleDateFormat;
 
 import java.io.PrintStream;
@@ -32,6 +34,18 @@ import java.io.ByteArrayOutputStream;
 /**
  * Logging system for IrssiBot.<P>
  *
+ * Debug messages are logged when their level is at least the debug level
+ * of their source. The source of a message is the class name of the 
+ * object passed as its source (or the object itself if a String); a 
+ * level set for a source with <code>setSourceLevel()</code> applies to 
+ * that class and, for a package prefix, to all classes in it. Other 
+ * sources use the global debug level.<P>
+ *
+ * Messages that are costly to build should be logged with the 
+ * <code>debugf()</code> methods, which take a template with 
+ * <code>{}</code> placeholders and build the message only if it is 
+ * going to be logged, or guarded with <code>isDebugEnabled()</code>.<P>
+ *
  * @author Matti Dahlbom
  * @version $Name:  $ $Revision: 1.2 $
  */
@@ -42,14 +56,66 @@ public class Log {
   public static int DEBUG_HIGH = 10;
   public static int DEBUG_OFF = 99;
 
+  /**
+   * Source name of server messages. Server messages are logged unless 
+   * the level of this source is set to DEBUG_OFF.
+   */
+  public static final String SERVER_SOURCE = "server";
+
   /**
    * Current debug level
    */
-  private static int debugLevel = DEBUG_NORMAL;
+  private static volatile int debugLevel = DEBUG_NORMAL;
+  /**
+   * Debug levels set per source. Maps source name or prefix (String) to
+   * level (Integer).
+   */
+  private static Hashtable sourceLevels = new Hashtable();
+  /**
+   * Indicates whether any levels are set in <code>sourceLevels</code>
+   */
+  private static volatile boolean haveSourceLevels = false;
+  /**
+   * Resolved debug levels of sources. Maps source name (String) to 
+   * level (Integer); replaced when levels change.
+   */
+  private static volatile ConcurrentHashMap levelCache = new ConcurrentHashMap();
+  /**
+   * Cached in <code>levelCache</code> for sources with no level set
+   */
+  private static final Integer NO_LEVEL = Integer.valueOf(-1);
+  /**
+   * Indicates whether server messages are logged
+   */
+  private static volatile boolean serverEnabled = true;
   /**
-   * Date formatter for log messages
+   * Date formatter for log messages. Not thread safe; used with its
+   * lock held.
    */
   private static SimpleDateFormat sdf = new SimpleDateFormat("'['HH':'mm':'ss']'");
+  /**
+   * Indicates whether the date format shows fractions of a second, 
+   * in which case timestamps are not cached
+   */
+  private static boolean subSecondFormat = false;
+  /**
+   * Timestamp formatted for the current second
+   */
+  private static volatile Timestamp cachedTime = new Timestamp(-1, "");
+
+  /**
+   * A formatted timestamp and the second it was formatted for.
+   * Immutable so that it can be shared without locking.
+   */
+  private static class Timestamp {
+    final long second;
+    final String text;
+
+    Timestamp(long second, String text) {
+      this.second = second;
+      this.text = text;
+    }
+  }
   /**
    * Current logger
    */
@@ -70,7 +136,11 @@ public class Log {
   public static void init(CommonLog logger, String dateFormatString) {
     Log.logger = logger;
     if ( dateFormatString != null ) {
-      sdf = new SimpleDateFormat(dateFormatString);
+      synchronized ( Log.class ) {
+	sdf = new SimpleDateFormat(dateFormatString);
+	subSecondFormat = (dateFormatString.indexOf('S') != -1);
+	cachedTime = new Timestamp(-1, "");
+      }
     }
   }
   
@@ -84,10 +154,28 @@ public class Log {
   /**
    * Returns the current date format string.<P>
    */
-  public static String getDateFormatString() {
+  public static synchronized String getDateFormatString() {
     return sdf.toPattern();
   }
 
+  /**
+   * Returns the current time formatted for a log message. The text is
+   * formatted once per second and shared by all threads.<P>
+   */
+  private static String getTimestamp() {
+    long now = System.currentTimeMillis();
+    Timestamp cached = cachedTime;
+    if ( (cached.second == (now / 1000)) && !subSecondFormat ) {
+      return cached.text;
+    }
+
+    synchronized ( Log.class ) {
+      String text = sdf.format(new Date(now));
+      cachedTime = new Timestamp(now / 1000, text);
+      return text;
+    }
+  }
+
   /**
    * Stops the current logger and deinits logging.<P>
    */
@@ -126,6 +214,193 @@ public class Log {
     return debugLevel;
   }
 
+  /**
+   * Sets the debug level of a source. The source is a class name, a 
+   * package name (applies to all classes in the package and its 
+   * subpackages) or a class name without package. Setting the level 
+   * of SERVER_SOURCE to DEBUG_OFF stops logging server messages.<P>
+   *
+   * @param source class or package name
+   * @param level new debug level of the source
+   * @exception IllegalArgumentException if level is out
+   * of range
+   */
+  public static void setSourceLevel(String source, int level) {
+    if ( (level < 0) || (level > DEBUG_OFF) ) {
+      throw new IllegalArgumentException("level out of range!");
+    }
+
+    Log.info("Log", "setSourceLevel(): setting log level of " + source + " to " + level);
+
+    synchronized ( sourceLevels ) {
+      sourceLevels.put(source, Integer.valueOf(level));
+      sourceLevelsChanged();
+    }
+  }
+
+  /**
+   * Removes the debug level set for a source; the source then uses 
+   * the level of its package, or the global debug level.<P>
+   *
+   * @param source class or package name
+   * @return true if a level was set for the source
+   */
+  public static boolean removeSourceLevel(String source) {
+    synchronized ( sourceLevels ) {
+      if ( sourceLevels.remove(source) == null ) {
+	return false;
+      }
+      sourceLevelsChanged();
+    }
+
+    Log.info("Log", "removeSourceLevel(): " + source + " uses default log level");
+    return true;
+  }
+
+  /**
+   * Returns the debug levels set per source.<P>
+   *
+   * @return Hashtable of source names (String) to levels (Integer)
+   */
+  public static Hashtable getSourceLevels() {
+    synchronized ( sourceLevels ) {
+      return (Hashtable)sourceLevels.clone();
+    }
+  }
+
+  /**
+   * Called with <code>sourceLevels</code> locked after it has changed.<P>
+   */
+  private static void sourceLevelsChanged() {
+    haveSourceLevels = !sourceLevels.isEmpty();
+    levelCache = new ConcurrentHashMap();
+
+    Integer serverLevel = (Integer)sourceLevels.get(SERVER_SOURCE);
+    serverEnabled = (serverLevel == null) || (serverLevel.intValue() < DEBUG_OFF);
+  }
+
+  /**
+   * Returns the debug level in effect for a message source.<P>
+   *
+   * @param obj the source of log messages
+   * @return debug level
+   */
+  public static int getDebugLevel(Object obj) {
+    if ( !haveSourceLevels ) {
+      return debugLevel;
+    }
+
+    String name = null;
+    if ( obj instanceof String ) {
+      name = (String)obj;
+    } else if ( obj != null ) {
+      name = obj.getClass().getName();
+    } else {
+      return debugLevel;
+    }
+
+    ConcurrentHashMap cache = levelCache;
+    Integer level = (Integer)cache.get(name);
+    if ( level == null ) {
+      level = resolveLevel(name);
+      cache.put(name, level);
+    }
+    int value = level.intValue();
+
+    return (value < 0) ? debugLevel : value;
+  }
+
+  /**
+   * Looks up the debug level set for a source name: the name itself,
+   * the name without package, or the longest package prefix of the name.<P>
+   *
+   * @param name source name
+   * @return level, or -1 if none is set
+   */
+  private static Integer resolveLevel(String name) {
+    synchronized ( sourceLevels ) {
+      Integer level = (Integer)sourceLevels.get(name);
+      if ( level != null ) {
+	return level;
+      }
+
+      int index = name.lastIndexOf('.');
+      if ( index != -1 ) {
+	level = (Integer)sourceLevels.get(name.substring(index + 1));
+	if ( level != null ) {
+	  return level;
+	}
+      }
+
+      while ( index > 0 ) {
+	level = (Integer)sourceLevels.get(name.substring(0, index));
+	if ( level != null ) {
+	  return level;
+	}
+	index = name.lastIndexOf('.', index - 1);
+      }
+    }
+
+    return NO_LEVEL;
+  }
+
+  /**
+   * Returns whether debug messages of default level from a source 
+   * are logged.<P>
+   *
+   * @param obj the source of log messages
+   */
+  public static boolean isDebugEnabled(Object obj) {
+    return (DEBUG_NORMAL >= getDebugLevel(obj));
+  }
+
+  /**
+   * Returns whether debug messages of given level from a source 
+   * are logged.<P>
+   *
+   * @param obj the source of log messages
+   * @param level debug level
+   */
+  public static boolean isDebugEnabled(Object obj, int level) {
+    return (level >= getDebugLevel(obj));
+  }
+
+  /**
+   * Returns whether server messages are logged.<P>
+   */
+  public static boolean isServerEnabled() {
+    return serverEnabled;
+  }
+
+  /**
+   * Builds a message from a template by replacing each <code>{}</code>
+   * with the next argument. Extra placeholders are left as is.<P>
+   *
+   * @param template message template
+   * @param args arguments
+   * @return message
+   */
+  public static String format(String template, Object args[]) {
+    if ( (args == null) || (args.length == 0) ) {
+      return template;
+    }
+
+    StringBuffer buf = new StringBuffer(template.length() + 16 * args.length);
+    int start = 0;
+    for ( int i = 0; i < args.length; i++ ) {
+      int index = template.indexOf("{}", start);
+      if ( index == -1 ) {
+	break;
+      }
+      buf.append(template, start, index);
+      buf.append(String.valueOf(args[i]));
+      start = index + 2;
+    }
+    buf.append(template, start, template.length());
+
+    return buf.toString();
+  }
+
   /**
    * Prints a logging message via current logger.<P>
    *
@@ -139,7 +414,7 @@ public class Log {
     }
 
     String tName = Thread.currentThread().getName();
-    String time = sdf.format(new Date());
+    String time = getTimestamp();
     String source = " ";
     if ( obj != null ) {
       source += obj.toString();
@@ -173,7 +448,7 @@ public class Log {
       throw new IllegalArgumentException("level out of range!");
     }
 
-    if ( level >= debugLevel ) {
+    if ( level >= getDebugLevel(obj) ) {
       logMessage(obj, "DEBUG", message);
     }
   }
@@ -186,10 +461,87 @@ public class Log {
    * @param message log message
    */
   public static void debug(Object obj, String message) {
-    if ( DEBUG_NORMAL >= debugLevel ) {
+    if ( DEBUG_NORMAL >= getDebugLevel(obj) ) {
       logMessage(obj, "DEBUG", message);
     }
   }
+
+  /**
+   * Prints a debug message to log with default debug level, building
+   * the message only if it is logged.<P>
+   *
+   * @param obj the source of this log message
+   * @param message builds log message
+   */
+  public static void debug(Object obj, LogMessage message) {
+    if ( DEBUG_NORMAL >= getDebugLevel(obj) ) {
+      logMessage(obj, "DEBUG", message.getMessage());
+    }
+  }
+
+  /**
+   * Prints a debug message to log with default debug level. The 
+   * message is built from the template only if it is logged.<P>
+   *
+   * @param obj the source of this log message
+   * @param template log message with a <code>{}</code> placeholder
+   * @param arg argument for the placeholder
+   */
+  public static void debugf(Object obj, String template, Object arg) {
+    if ( DEBUG_NORMAL >= getDebugLevel(obj) ) {
+      logMessage(obj, "DEBUG", format(template, new Object[] { arg }));
+    }
+  }
+
+  /**
+   * Prints a debug message to log with default debug level. The 
+   * message is built from the template only if it is logged.<P>
+   *
+   * @param obj the source of this log message
+   * @param template log message with <code>{}</code> placeholders
+   * @param arg1 argument for the first placeholder
+   * @param arg2 argument for the second placeholder
+   */
+  public static void debugf(Object obj, String template, Object arg1, Object arg2) {
+    if ( DEBUG_NORMAL >= getDebugLevel(obj) ) {
+      logMessage(obj, "DEBUG", format(template, new Object[] { arg1, arg2 }));
+    }
+  }
+
+  /**
+   * Prints a debug message to log with default debug level. The 
+   * message is built from the template only if it is logged.<P>
+   *
+   * @param obj the source of this log message
+   * @param template log message with <code>{}</code> placeholders
+   * @param args arguments for the placeholders
+   */
+  public static void debugf(Object obj, String template, Object... args) {
+    if ( DEBUG_NORMAL >= getDebugLevel(obj) ) {
+      logMessage(obj, "DEBUG", format(template, args));
+    }
+  }
+
+  /**
+   * Prints a debug message to log with given debug level. The 
+   * message is built from the template only if it is logged.<P>
+   *
+   * @param obj the source of this log message
+   * @param level log level to use
+   * @param template log message with <code>{}</code> placeholders
+   * @param args arguments for the placeholders
+   * @exception IllegalArgumentException if level is out
+   * of range
+   */
+  public static void debugf(Object obj, int level, String template, Object... args) {
+    if ( (level < 0) || (level >= DEBUG_OFF) ) {
+      throw new IllegalArgumentException("level out of range!");
+    }
+
+    if ( level >= getDebugLevel(obj) ) {
+      logMessage(obj, "DEBUG", format(template, args));
+    }
+  }
  
   /**
    * Prints an info message to log.<P>
@@ -219,7 +571,9 @@ public class Log {
    * @param message log message
    */
   public static void server(String message) {
-    logMessage(null, "SERVER:", message);
+    if ( serverEnabled ) {
+      logMessage(null, "SERVER:", message);
+    }
   }
 
   /**
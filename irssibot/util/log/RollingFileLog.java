@@ -0,0 +1,611 @@
+/*
+ * IrssiBot - An advanced IRC automation ("bot")
+ * Copyright (C) 2000-2007 Matti Dahlbom
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * mdahlbom@cc.hut.fi
+ */
+package irssibot.util.log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Logger for file based logging that rotates the log file. Unlike 
+ * <code>FileLog</code>, appends to an existing log file.<P>
+ *
+ * The log file is rolled over to <code>logfile.yyyy-MM-dd.N</code> when
+ * it would grow past a maximum size and/or when the day changes. Rolled
+ * files are gzip compressed in a background thread, and the oldest ones 
+ * removed if only a number of them is kept.<P>
+ *
+ * Properties:
+ * <ul>
+ * <li><code>logfile</code> path to the log file
+ * <li><code>rolling.max-size</code> size in bytes (K, M and G suffixes
+ * allowed) at which the file is rolled over, 0 for no limit; default 100M
+ * <li><code>rolling.daily</code> whether the file is rolled over at 
+ * midnight; default true
+ * <li><code>rolling.compress</code> whether rolled files are gzipped;
+ * default true
+ * <li><code>rolling.keep</code> number of rolled files kept, 0 for all;
+ * default 0
+ * <li><code>rolling.mmap</code> whether messages are written through a 
+ * memory mapped region of the file instead of write calls; default false
+ * <li><code>rolling.mmap-region</code> size of the mapped region; 
+ * default 1M
+ * </ul><P>
+ *
+ * With <code>rolling.mmap</code> the file is extended a region at a 
+ * time; the unused end is cut off when the file is closed, or when it 
+ * is opened again after a crash.<P>
+ */
+public class RollingFileLog implements FlushableLog {
+  /**
+   * Date format of rolled file names
+   */
+  private static final String dayFormat = "yyyy-MM-dd";
+  /**
+   * Suffix of compressed files
+   */
+  private static final String gzipSuffix = ".gz";
+  /**
+   * Suffix of files being compressed
+   */
+  private static final String tempSuffix = ".tmp";
+
+  /**
+   * Thread compressing rolled files and removing old ones, shared 
+   * by all instances
+   */
+  private static ExecutorService compressor = null;
+
+  /**
+   * Init properties
+   */
+  private Properties properties = null;
+  /**
+   * The log file
+   */
+  private File file = null;
+  /**
+   * Maximum size of the log file, or 0 if none
+   */
+  private long maxSize = 0;
+  /**
+   * Indicates whether the log file is rolled over at midnight
+   */
+  private boolean daily = true;
+  /**
+   * Indicates whether rolled files are compressed
+   */
+  private boolean compress = true;
+  /**
+   * Number of rolled files kept, or 0 if all
+   */
+  private int keep = 0;
+  /**
+   * Indicates whether memory mapped writes are used
+   */
+  private boolean mmap = false;
+  /**
+   * Size of the mapped region
+   */
+  private int regionSize = 1024 * 1024;
+  /**
+   * Indicates whether each message is flushed as it is written
+   */
+  private boolean autoFlush = true;
+
+  /**
+   * Output stream for the log file when not using mmap
+   */
+  private BufferedOutputStream out = null;
+  /**
+   * Channel to the log file when using mmap
+   */
+  private FileChannel channel = null;
+  /**
+   * Currently mapped region of the log file
+   */
+  private MappedByteBuffer region = null;
+  /**
+   * Number of bytes of log in the log file
+   */
+  private long size = 0;
+  /**
+   * The day (in <code>dayFormat</code>) the messages in the log file are from
+   */
+  private String fileDay = null;
+  /**
+   * Time (ms) of next midnight
+   */
+  private long nextDay = 0;
+
+  /**
+   * Returns path for property file from which this CommonLog was initialized.<P>
+   *
+   * @return path to property file
+   */
+  public String getPropertyFilePath() {
+    return properties.getProperty(PROPERTY_FILE_PATH_PROPERTY_NAME);
+  }
+
+  /**
+   * Initializes this logger and opens the log file. Queues any rolled 
+   * files left uncompressed for compressing.<P>
+   *
+   * @param properties init properties
+   * @exception IllegalArgumentException if bad properties or the log file
+   * cannot be opened
+   */
+  public synchronized void init(Properties properties) {
+    this.properties = properties;
+
+    String path = properties.getProperty("logfile");
+    if ( path == null ) {
+      throw new IllegalArgumentException("Property logfile missing!");
+    }
+    file = new File(path).getAbsoluteFile();
+
+    maxSize = parseSize("rolling.max-size", "100M");
+    daily = properties.getProperty("rolling.daily", "true").trim().equals("true");
+    compress = properties.getProperty("rolling.compress", "true").trim().equals("true");
+    mmap = properties.getProperty("rolling.mmap", "false").trim().equals("true");
+    regionSize = (int)parseSize("rolling.mmap-region", "1M");
+    if ( (regionSize < 4096) || (regionSize > (256 * 1024 * 1024)) ) {
+      throw new IllegalArgumentException("rolling.mmap-region out of range");
+    }
+    try {
+      keep = Integer.parseInt(properties.getProperty("rolling.keep", "0").trim());
+    } catch ( NumberFormatException e ) {
+      throw new IllegalArgumentException("Bad rolling.keep: " + e.getMessage());
+    }
+
+    try {
+      // the day of an existing log file is the day it was last written
+      long now = System.currentTimeMillis();
+      long modified = file.exists() ? file.lastModified() : now;
+      openFile(modified);
+      if ( daily && (now >= nextDay) ) {
+	roll(now);
+      }
+    } catch ( IOException e ) {
+      throw new IllegalArgumentException("Error opening log file " + path +
+					 ": " + e.getMessage());
+    }
+
+    final File rolled[] = listRolledFiles();
+    submit(new Runnable() {
+	public void run() {
+	  for ( int i = 0; i < rolled.length; i++ ) {
+	    String name = rolled[i].getName();
+	    if ( name.endsWith(tempSuffix) ) {
+	      rolled[i].delete();
+	    } else if ( compress && !name.endsWith(gzipSuffix) ) {
+	      compressFile(rolled[i]);
+	    }
+	  }
+	  removeOldFiles();
+	}
+      });
+  }
+
+  /**
+   * Logs a preformatted log message to file, appending a line
+   * break character <code>\n</code>. Rolls the file over first if 
+   * needed.<P>
+   *
+   * @param message log message to write
+   * @exception LogException if there is an error writing to file 
+   */
+  public synchronized void logMessage(String message) throws LogException {
+    if ( (out == null) && (channel == null) ) {
+      throw new LogException("Log file not open!");
+    }
+
+    message += "\n";
+    byte data[] = message.getBytes();
+
+    try {
+      if ( daily || (maxSize > 0) ) {
+	long now = System.currentTimeMillis();
+	if ( (daily && (now >= nextDay)) || 
+	     ((maxSize > 0) && (size > 0) && ((size + data.length) > maxSize)) ) {
+	  roll(now);
+	}
+      }
+
+      if ( mmap ) {
+	writeMapped(data);
+      } else {
+	out.write(data, 0, data.length);
+	if ( autoFlush ) {
+	  out.flush();
+	}
+      }
+      size += data.length;
+    } catch ( IOException e ) {
+      throw new LogException(e);
+    }
+  }
+
+  /**
+   * Sets whether each message is flushed as it is written. Has no 
+   * effect with mmap, where written messages are always visible to
+   * readers of the file.<P>
+   *
+   * @param autoFlush false to buffer messages until flush()
+   */
+  public synchronized void setAutoFlush(boolean autoFlush) {
+    this.autoFlush = autoFlush;
+  }
+
+  /**
+   * Writes out buffered messages.<P>
+   *
+   * @exception LogException if there is an error writing to file 
+   */
+  public synchronized void flush() throws LogException {
+    if ( out == null ) {
+      return;
+    }
+
+    try {
+      out.flush();
+    } catch ( IOException e ) {
+      throw new LogException(e);
+    }
+  }
+
+  /**
+   * Stops and deinits this logger. Closes the log file and waits a 
+   * while for compressing to finish; unfinished compressing is 
+   * done when the log is started next time.<P>
+   */
+  public void stop() {
+    synchronized ( this ) {
+      try {
+	closeFile();
+      } catch ( IOException e ) {
+	System.err.println("RollingFileLog: error closing " + file + ": " + e.getMessage());
+      }
+    }
+
+    // wait for tasks queued so far
+    try {
+      Runnable marker = new Runnable() {
+	  public void run() {
+	  }
+	};
+      submit(marker).get(30, TimeUnit.SECONDS);
+    } catch ( Exception e ) {
+      // dont care
+    }
+  }
+
+  /**
+   * Opens the log file for appending.<P>
+   *
+   * @param time time (ms) the messages in the file are from
+   */
+  private void openFile(long time) throws IOException {
+    if ( mmap ) {
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      size = findEnd(channel);
+      region = null;
+    } else {
+      out = new BufferedOutputStream(new FileOutputStream(file, true), 16 * 1024);
+      size = file.length();
+    }
+
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    fileDay = new SimpleDateFormat(dayFormat).format(calendar.getTime());
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    calendar.add(Calendar.DAY_OF_MONTH, 1);
+    nextDay = calendar.getTimeInMillis();
+  }
+
+  /**
+   * Closes the log file. With mmap, cuts off the unused end of the file.<P>
+   */
+  private void closeFile() throws IOException {
+    if ( out != null ) {
+      out.close();
+      out = null;
+    }
+    if ( channel != null ) {
+      region = null;
+      channel.truncate(size);
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Rolls the log file over: renames it and opens a new log file. The 
+   * renamed file is compressed in the background.<P>
+   *
+   * @param now current time (ms)
+   */
+  private void roll(long now) throws IOException {
+    closeFile();
+
+    if ( file.length() > 0 ) {
+      final File rolled = nextRolledFile();
+      if ( !file.renameTo(rolled) ) {
+	System.err.println("RollingFileLog: could not rename " + file + " to " + rolled);
+      } else {
+	submit(new Runnable() {
+	    public void run() {
+	      if ( compress ) {
+		compressFile(rolled);
+	      }
+	      removeOldFiles();
+	    }
+	  });
+      }
+    }
+
+    openFile(now);
+  }
+
+  /**
+   * Returns the first free name for a rolled file of the current day.<P>
+   */
+  private File nextRolledFile() {
+    String prefix = file.getName() + "." + fileDay + ".";
+    for ( int i = 1; ; i++ ) {
+      File rolled = new File(file.getParentFile(), prefix + i);
+      if ( !rolled.exists() && !new File(rolled.getPath() + gzipSuffix).exists() &&
+	   !new File(rolled.getPath() + gzipSuffix + tempSuffix).exists() ) {
+	return rolled;
+      }
+    }
+  }
+
+  /**
+   * Returns rolled files of the log file, compressed or not, and 
+   * unfinished compressed files, oldest first.<P>
+   */
+  private File[] listRolledFiles() {
+    final String prefix = file.getName() + ".";
+    File files[] = file.getParentFile().listFiles(new FilenameFilter() {
+	public boolean accept(File dir, String name) {
+	  if ( !name.startsWith(prefix) ) {
+	    return false;
+	  }
+	  String rest = name.substring(prefix.length());
+	  if ( rest.endsWith(tempSuffix) ) {
+	    rest = rest.substring(0, rest.length() - tempSuffix.length());
+	  }
+	  if ( rest.endsWith(gzipSuffix) ) {
+	    rest = rest.substring(0, rest.length() - gzipSuffix.length());
+	  }
+	  // yyyy-MM-dd.N
+	  return rest.matches("[0-9]{4}-[0-9]{2}-[0-9]{2}\\.[0-9]+");
+	}
+      });
+    if ( files == null ) {
+      return new File[0];
+    }
+
+    Arrays.sort(files, new Comparator() {
+	public int compare(Object o1, Object o2) {
+	  return compareRolled(((File)o1).getName(), ((File)o2).getName());
+	}
+      });
+    return files;
+  }
+
+  /**
+   * Compares names of rolled files by day and then by number.<P>
+   */
+  private int compareRolled(String name1, String name2) {
+    int start = file.getName().length() + 1;
+    int day = name1.substring(start, start + 10).compareTo(name2.substring(start, start + 10));
+    if ( day != 0 ) {
+      return day;
+    }
+
+    return Long.compare(rolledNumber(name1, start + 11), rolledNumber(name2, start + 11));
+  }
+
+  /**
+   * Parses the number of a rolled file from its name.<P>
+   */
+  private static long rolledNumber(String name, int start) {
+    int end = start;
+    while ( (end < name.length()) && Character.isDigit(name.charAt(end)) ) {
+      end++;
+    }
+
+    return Long.parseLong(name.substring(start, end));
+  }
+
+  /**
+   * Gzips a rolled file and removes it. Runs in the compressor thread.<P>
+   */
+  private static void compressFile(File rolled) {
+    File temp = new File(rolled.getPath() + gzipSuffix + tempSuffix);
+    File target = new File(rolled.getPath() + gzipSuffix);
+    if ( !rolled.exists() ) {
+      // queued twice at startup
+      return;
+    }
+
+    try {
+      InputStream in = new FileInputStream(rolled);
+      try {
+	OutputStream gz = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024);
+	try {
+	  byte buf[] = new byte[64 * 1024];
+	  int num;
+	  while ( (num = in.read(buf)) != -1 ) {
+	    gz.write(buf, 0, num);
+	  }
+	} finally {
+	  gz.close();
+	}
+      } finally {
+	in.close();
+      }
+
+      if ( !temp.renameTo(target) ) {
+	throw new IOException("could not rename " + temp);
+      }
+      rolled.delete();
+    } catch ( IOException e ) {
+      System.err.println("RollingFileLog: error compressing " + rolled + ": " + e.getMessage());
+      temp.delete();
+    }
+  }
+
+  /**
+   * Removes the oldest rolled files if more than <code>keep</code> of 
+   * them. Runs in the compressor thread.<P>
+   */
+  private void removeOldFiles() {
+    if ( keep <= 0 ) {
+      return;
+    }
+
+    File files[] = listRolledFiles();
+    Vector finished = new Vector();
+    for ( int i = 0; i < files.length; i++ ) {
+      if ( !files[i].getName().endsWith(tempSuffix) ) {
+	finished.add(files[i]);
+      }
+    }
+    for ( int i = 0; i < (finished.size() - keep); i++ ) {
+      ((File)finished.elementAt(i)).delete();
+    }
+  }
+
+  /**
+   * Queues a task for the compressor thread, starting it if needed.<P>
+   */
+  private static synchronized Future submit(Runnable task) {
+    if ( compressor == null ) {
+      compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+	  public Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "RollingFileLog");
+	    t.setDaemon(true);
+	    t.setPriority(Thread.MIN_PRIORITY);
+	    return t;
+	  }
+	});
+    }
+
+    return compressor.submit(task);
+  }
+
+  /**
+   * Writes to the log file through the mapped region, mapping the 
+   * next region when the current one is full.<P>
+   */
+  private void writeMapped(byte data[]) throws IOException {
+    int offset = 0;
+    while ( offset < data.length ) {
+      if ( (region == null) || !region.hasRemaining() ) {
+	region = channel.map(FileChannel.MapMode.READ_WRITE, size + offset, regionSize);
+      }
+      int num = Math.min(region.remaining(), data.length - offset);
+      region.put(data, offset, num);
+      offset += num;
+    }
+  }
+
+  /**
+   * Returns the number of bytes of log in a file written with mmap: 
+   * the size of the file without the zero bytes at its end.<P>
+   */
+  private static long findEnd(FileChannel channel) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    long end = channel.size();
+
+    while ( end > 0 ) {
+      long start = Math.max(0, end - buf.capacity());
+      buf.clear();
+      buf.limit((int)(end - start));
+      while ( buf.hasRemaining() ) {
+	if ( channel.read(buf, start + buf.position()) == -1 ) {
+	  break;
+	}
+      }
+      for ( int i = buf.position() - 1; i >= 0; i-- ) {
+	if ( buf.get(i) != 0 ) {
+	  return start + i + 1;
+	}
+      }
+      end = start;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Parses a size property.<P>
+   *
+   * @param name property name
+   * @param defaultValue default value of the property
+   * @return size in bytes
+   * @exception IllegalArgumentException if bad size
+   */
+  private long parseSize(String name, String defaultValue) {
+    String value = properties.getProperty(name, defaultValue).trim().toUpperCase();
+    long multiplier = 1;
+    if ( value.endsWith("K") ) {
+      multiplier = 1024;
+    } else if ( value.endsWith("M") ) {
+      multiplier = 1024 * 1024;
+    } else if ( value.endsWith("G") ) {
+      multiplier = 1024 * 1024 * 1024;
+    }
+    if ( multiplier != 1 ) {
+      value = value.substring(0, value.length() - 1).trim();
+    }
+
+    try {
+      long size = Long.parseLong(value) * multiplier;
+      if ( size < 0 ) {
+	throw new NumberFormatException("negative");
+      }
+      return size;
+    } catch ( NumberFormatException e ) {
+      throw new IllegalArgumentException("Bad " + name + ": " + e.getMessage());
+    }
+  }
+}